@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One of CouchDB's built-in reduce functions, "_count", "_sum" or "_stats". The view storage
+ * recognizes these and evaluates them in the database where it can, instead of calling
+ * reduce() on every row; reduce() is still used (with rereduce) where it can't.
+ * <p/>
+ * Non-numeric values are ignored by "_sum" and "_stats".
+ */
+public final class BuiltInReducer implements Reducer {
+    public static final BuiltInReducer COUNT = new BuiltInReducer("_count");
+    public static final BuiltInReducer SUM = new BuiltInReducer("_sum");
+    public static final BuiltInReducer STATS = new BuiltInReducer("_stats");
+
+    private final String name;
+
+    private BuiltInReducer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the built-in reducer with the given name (such as "_count"), or null if there's
+     * none.
+     */
+    @InterfaceAudience.Public
+    public static BuiltInReducer named(String name) {
+        if (name == null)
+            return null;
+        name = name.trim();
+        if (COUNT.name.equals(name))
+            return COUNT;
+        if (SUM.name.equals(name))
+            return SUM;
+        if (STATS.name.equals(name))
+            return STATS;
+        return null;
+    }
+
+    /**
+     * The name of the reducer, as used in design documents.
+     */
+    @InterfaceAudience.Public
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+        if (this == COUNT)
+            return rereduce ? (long) View.totalValues(values) : (long) values.size();
+        else if (this == SUM)
+            return View.totalValues(values);
+        else
+            return rereduce ? mergeStats(values) : stats(values);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static Map<String, Object> stats(List<Object> values) {
+        long count = 0;
+        double sum = 0, sumsqr = 0;
+        Double min = null, max = null;
+        for (Object value : values) {
+            if (!(value instanceof Number)) {
+                Log.w(Log.TAG_VIEW, "Warning non-numeric value found in _stats: %s", value);
+                continue;
+            }
+            double number = ((Number) value).doubleValue();
+            count++;
+            sum += number;
+            sumsqr += number * number;
+            if (min == null || number < min)
+                min = number;
+            if (max == null || number > max)
+                max = number;
+        }
+        return makeStats(sum, count, min, max, sumsqr);
+    }
+
+    private static Map<String, Object> mergeStats(List<Object> partials) {
+        long count = 0;
+        double sum = 0, sumsqr = 0;
+        Double min = null, max = null;
+        for (Object partial : partials) {
+            if (!(partial instanceof Map))
+                continue;
+            Map<?, ?> stats = (Map<?, ?>) partial;
+            count += toNumber(stats.get("count")).longValue();
+            sum += toNumber(stats.get("sum")).doubleValue();
+            sumsqr += toNumber(stats.get("sumsqr")).doubleValue();
+            if (stats.get("min") instanceof Number) {
+                double partialMin = ((Number) stats.get("min")).doubleValue();
+                if (min == null || partialMin < min)
+                    min = partialMin;
+            }
+            if (stats.get("max") instanceof Number) {
+                double partialMax = ((Number) stats.get("max")).doubleValue();
+                if (max == null || partialMax > max)
+                    max = partialMax;
+            }
+        }
+        return makeStats(sum, count, min, max, sumsqr);
+    }
+
+    private static Number toNumber(Object value) {
+        return value instanceof Number ? (Number) value : 0;
+    }
+
+    /**
+     * Returns a "_stats" result in the same form as CouchDB's.
+     */
+    @InterfaceAudience.Private
+    public static Map<String, Object> makeStats(double sum, long count, Double min, Double max,
+                                                double sumsqr) {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("sum", sum);
+        stats.put("count", count);
+        stats.put("min", min);
+        stats.put("max", max);
+        stats.put("sumsqr", sumsqr);
+        return stats;
+    }
+}
@@ -26,6 +26,7 @@ import com.couchbase.lite.replicator.ReplicationState;
 import com.couchbase.lite.replicator.ReplicationStateTransition;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.store.EncryptableStore;
+import com.couchbase.lite.store.QueryRowIterator;
 import com.couchbase.lite.store.StorageValidation;
 import com.couchbase.lite.store.Store;
 import com.couchbase.lite.store.StoreDelegate;
@@ -54,6 +55,7 @@ import java.lang.reflect.Constructor;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -105,6 +107,8 @@ public class Database implements StoreDelegate {
     private final AtomicBoolean open = new AtomicBoolean(false);
     private final AtomicBoolean closing = new AtomicBoolean(false);
     private final RefCounter storeRef = new RefCounter();
+    // QueryRowStreams holding a storeRef, which close() closes if they're still open:
+    private final Set<QueryRowStream> openStreams = new CopyOnWriteArraySet<QueryRowStream>();
 
     private Map<String, View> views;
     private Map<String, String> viewDocTypes;
@@ -135,6 +139,7 @@ public class Database implements StoreDelegate {
     private final long startTime;
     private Timer purgeTimer;
     private final Object purgeTimerLock = new Object();
+    private ViewIndexScheduler viewIndexScheduler;
 
 
 
@@ -593,6 +598,17 @@ public class Database implements StoreDelegate {
         }
     }
 
+    /**
+     * Returns the scheduler that can keep this database's view indexes up to date in the
+     * background. It does nothing until views are registered with it and it's started.
+     */
+    @InterfaceAudience.Public
+    public synchronized ViewIndexScheduler getViewIndexScheduler() {
+        if (viewIndexScheduler == null)
+            viewIndexScheduler = new ViewIndexScheduler(this);
+        return viewIndexScheduler;
+    }
+
     /**
      * Sets the contents of the local document with the given ID. Unlike CouchDB, no revision-ID
      * checking is done; the put always succeeds. If the properties dictionary is nil, the document
@@ -1449,6 +1465,11 @@ public class Database implements StoreDelegate {
 
     @InterfaceAudience.Public
     public synchronized boolean close() {
+        // A stream left open would make this wait forever (or deadlock, on its own thread):
+        for (QueryRowStream stream : openStreams) {
+            Log.w(TAG, "%s: closing a QueryRowStream that was left open", this);
+            stream.forceClose();
+        }
         storeRef.await();
 
         // NOTE: synchronized Manager.lockDatabases to prevent Manager to give the deleting Database
@@ -1468,6 +1489,10 @@ public class Database implements StoreDelegate {
                         listener.databaseClosing();
                 }
 
+                // Stop updating view indexes in the background:
+                if (viewIndexScheduler != null)
+                    viewIndexScheduler.stop();
+
                 synchronized (viewLock) {
                     if (views != null) {
                         for (View view : views.values())
@@ -1714,6 +1739,27 @@ public class Database implements StoreDelegate {
         }
     }
 
+    /**
+     * Iterates over all documents, like getAllDocs, reading them as they're iterated.
+     */
+    private QueryRowIterator getAllDocsIterator(QueryOptions options) throws CouchbaseLiteException {
+        if (options == null || options.getAllDocsMode() != Query.AllDocsMode.BY_SEQUENCE) {
+            if (!isOpen()) throw new CouchbaseLiteRuntimeException("Database is closed.");
+            storeRef.retain();
+            try {
+                return store.getAllDocsIterator(options);
+            } finally {
+                storeRef.release();
+            }
+        }
+
+        // For changes feed mode (kCBLBySequence) the rows are collected up front:
+        Map<String, Object> allDocsResult = getAllDocs(options);
+        List<QueryRow> rows = allDocsResult != null ?
+                (List<QueryRow>) allDocsResult.get("rows") : null;
+        return QueryRowIterator.fromList(rows != null ? rows : new ArrayList<QueryRow>());
+    }
+
     private QueryRow getQueryRow(RevisionInternal rev, long minSeq, long maxSeq, Predicate<QueryRow> filter) {
         if (rev == null)
             return null;
@@ -2021,59 +2067,119 @@ public class Database implements StoreDelegate {
         storeRef.retain();
         try {
             Log.v(TAG, "INSERT %s, history[%d]", inRev, history == null ? 0 : history.size());
-            String docID = inRev.getDocID();
-            String revID = inRev.getRevID();
-            if (!Document.isValidDocumentId(docID) || (revID == null))
-                throw new CouchbaseLiteException(Status.BAD_ID);
-
-            int historyCount = 0;
-            if (history != null)
-                historyCount = history.size();
-
-            if (historyCount == 0) {
-                history = new ArrayList<String>();
-                history.add(revID);
-            } else if (!history.get(0).equals(revID)) {
-                // If inRev's revID doesn't appear in history, add it at the start:
-                List<String> nuHistory = new ArrayList<String>(history);
-                nuHistory.add(0, revID);
-                history = nuHistory;
-            }
+            history = historyForForceInsert(inRev, history);
+            inRev = processAttachmentsForForceInsert(inRev, history);
+            store.forceInsert(inRev, history, getStorageValidation(), source);
+        } finally {
+            storeRef.release();
+        }
+    }
 
-            // Attachments
-            Map<String, Object> attachments = inRev.getAttachments();
-            if (attachments != null) {
-                RevisionInternal updatedRev = inRev.copy();
-                List<String> ancestry = history.subList(1, history.size());
-                Status status = new Status(Status.OK);
-                if (!processAttachmentsForRevision(updatedRev, ancestry, status)) {
-                    throw new CouchbaseLiteException(status);
+    /**
+     * Inserts a batch of already-existing revisions replicated from a remote database, in a
+     * single transaction. Each revision is handled as by forceInsert, but a revision that
+     * fails doesn't stop the rest of the batch.
+     *
+     * @param histories The revision history of each revision, in the same order as inRevs.
+     * @return The status of each insertion, in the same order as inRevs.
+     */
+    @InterfaceAudience.Private
+    public List<Status> forceInsertBatch(List<RevisionInternal> inRevs,
+                                         List<List<String>> histories,
+                                         URL source)
+            throws CouchbaseLiteException {
+        if (!isOpen()) throw new CouchbaseLiteRuntimeException("Database is closed.");
+        storeRef.retain();
+        try {
+            Log.v(TAG, "INSERT batch of %d revisions", inRevs.size());
+            Status[] statuses = new Status[inRevs.size()];
+            List<RevisionInternal> revsToInsert = new ArrayList<RevisionInternal>(inRevs.size());
+            List<List<String>> historiesToInsert = new ArrayList<List<String>>(inRevs.size());
+            List<Integer> indexes = new ArrayList<Integer>(inRevs.size());
+            for (int i = 0; i < inRevs.size(); i++) {
+                try {
+                    List<String> history = historyForForceInsert(inRevs.get(i), histories.get(i));
+                    revsToInsert.add(processAttachmentsForForceInsert(inRevs.get(i), history));
+                    historiesToInsert.add(history);
+                    indexes.add(i);
+                } catch (CouchbaseLiteException e) {
+                    statuses[i] = e.getCBLStatus();
                 }
-                inRev = updatedRev;
             }
 
-            // TODO: Need to implement Shared (Manager.shared)
-            StorageValidation validationBlock = null;
-            if (validations != null && validations.size() > 0) {
-                validationBlock = new StorageValidation() {
-                    @Override
-                    public Status validate(RevisionInternal newRev, RevisionInternal prevRev, String parentRevID) {
-                        try {
-                            validateRevision(newRev, prevRev, parentRevID);
-                        } catch (CouchbaseLiteException e) {
-                            return new Status(Status.FORBIDDEN);
-                        }
-                        return new Status(Status.OK);
-                    }
-                };
+            if (revsToInsert.size() > 0) {
+                List<Status> inserted = store.forceInsertBatch(revsToInsert, historiesToInsert,
+                        getStorageValidation(), source);
+                for (int i = 0; i < indexes.size(); i++)
+                    statuses[indexes.get(i)] = inserted.get(i);
             }
-
-            store.forceInsert(inRev, history, validationBlock, source);
+            return Arrays.asList(statuses);
         } finally {
             storeRef.release();
         }
     }
 
+    /**
+     * Checks the revision's IDs, and returns its history with its own revID first.
+     */
+    private static List<String> historyForForceInsert(RevisionInternal inRev, List<String> history)
+            throws CouchbaseLiteException {
+        String docID = inRev.getDocID();
+        String revID = inRev.getRevID();
+        if (!Document.isValidDocumentId(docID) || (revID == null))
+            throw new CouchbaseLiteException(Status.BAD_ID);
+
+        int historyCount = 0;
+        if (history != null)
+            historyCount = history.size();
+
+        if (historyCount == 0) {
+            history = new ArrayList<String>();
+            history.add(revID);
+        } else if (!history.get(0).equals(revID)) {
+            // If inRev's revID doesn't appear in history, add it at the start:
+            List<String> nuHistory = new ArrayList<String>(history);
+            nuHistory.add(0, revID);
+            history = nuHistory;
+        }
+        return history;
+    }
+
+    /**
+     * Returns the revision to insert, with its attachments processed if it has any.
+     */
+    private RevisionInternal processAttachmentsForForceInsert(RevisionInternal inRev,
+                                                              List<String> history)
+            throws CouchbaseLiteException {
+        Map<String, Object> attachments = inRev.getAttachments();
+        if (attachments == null)
+            return inRev;
+        RevisionInternal updatedRev = inRev.copy();
+        List<String> ancestry = history.subList(1, history.size());
+        Status status = new Status(Status.OK);
+        if (!processAttachmentsForRevision(updatedRev, ancestry, status)) {
+            throw new CouchbaseLiteException(status);
+        }
+        return updatedRev;
+    }
+
+    private StorageValidation getStorageValidation() {
+        // TODO: Need to implement Shared (Manager.shared)
+        if (validations == null || validations.size() == 0)
+            return null;
+        return new StorageValidation() {
+            @Override
+            public Status validate(RevisionInternal newRev, RevisionInternal prevRev, String parentRevID) {
+                try {
+                    validateRevision(newRev, prevRev, parentRevID);
+                } catch (CouchbaseLiteException e) {
+                    return new Status(Status.FORBIDDEN);
+                }
+                return new Status(Status.OK);
+            }
+        };
+    }
+
     @InterfaceAudience.Private
     public String lastSequenceWithCheckpointId(String checkpointId) {
         if (!isOpen()) throw new CouchbaseLiteRuntimeException("Database is closed.");
@@ -2125,7 +2231,15 @@ public class Database implements StoreDelegate {
         if (!isOpen()) throw new CouchbaseLiteRuntimeException("Database is closed.");
         storeRef.retain();
         try {
-            return store.purgeRevisions(docsToRevs);
+            Map<String, Object> result = store.purgeRevisions(docsToRevs);
+            // Purging removes index rows without changing the views' last sequences:
+            synchronized (viewLock) {
+                if (views != null) {
+                    for (View view : views.values())
+                        view.clearQueryCache();
+                }
+            }
+            return result;
         } finally {
             storeRef.release();
         }
@@ -2443,10 +2557,48 @@ public class Database implements StoreDelegate {
                                             QueryOptions options,
                                             List<Long> outLastSequence)
             throws CouchbaseLiteException {
+        return queryViewIterator(viewName, options, outLastSequence).toList();
+    }
+
+    /**
+     * Like queryViewIterator, but returns a QueryRowStream that keeps the store open until it's
+     * read to the end or closed.
+     */
+    /* package */ QueryRowStream queryViewStream(String viewName,
+                                                 QueryOptions options,
+                                                 List<Long> outLastSequence)
+            throws CouchbaseLiteException {
+        if (!isOpen()) throw new CouchbaseLiteRuntimeException("Database is closed.");
+        storeRef.retain();
+        boolean success = false;
+        try {
+            QueryRowIterator rows = queryViewIterator(viewName, options, outLastSequence);
+            QueryRowStream stream = new QueryRowStream(this, rows, storeRef, outLastSequence.get(0));
+            openStreams.add(stream);
+            success = true;
+            return stream;
+        } finally {
+            if (!success)
+                storeRef.release();
+        }
+    }
+
+    /* package */ void streamClosed(QueryRowStream stream) {
+        openStreams.remove(stream);
+    }
+
+    /**
+     * Like queryViewNamed, but returns an iterator that reads the rows from the database as
+     * they're iterated. It must be read to the end or closed.
+     */
+    protected QueryRowIterator queryViewIterator(String viewName,
+                                                 QueryOptions options,
+                                                 List<Long> outLastSequence)
+            throws CouchbaseLiteException {
 
         long before = System.currentTimeMillis();
         long lastSequence = 0;
-        List<QueryRow> rows = null;
+        QueryRowIterator rows = null;
 
         if (viewName != null && viewName.length() > 0) {
             final View view = getView(viewName);
@@ -2462,7 +2614,7 @@ public class Database implements StoreDelegate {
                     lastSequence < getLastSequenceNumber()) {
                 reindex = true;
             }
-            rows = view.query(options);
+            rows = view.queryIterator(options);
             if (reindex) {
                 new Thread(new Runnable() {
                     @Override
@@ -2477,18 +2629,39 @@ public class Database implements StoreDelegate {
             }
         } else {
             // nil view means query _all_docs
-            // note: this is a little kludgy, but we have to pull out the "rows" field from the
-            // result dictionary because that's what we want.  should be refactored, but
-            // it's a little tricky, so postponing.
-            Map<String, Object> allDocsResult = getAllDocs(options);
-            rows = (List<QueryRow>) allDocsResult.get("rows");
+            rows = getAllDocsIterator(options);
             lastSequence = getLastSequenceNumber();
         }
         outLastSequence.add(lastSequence);
 
         long delta = System.currentTimeMillis() - before;
-        Log.d(Database.TAG, "Query view %s completed in %d milliseconds", viewName, delta);
+        Log.d(Database.TAG, "Query view %s started in %d milliseconds", viewName, delta);
+
+        return rows;
+    }
 
+    /**
+     * Like queryViewIterator, but instead of rerunning the query, brings its previous result rows
+     * up to date after the given documents changed. Returns null if that isn't possible, in
+     * which case the query has to be rerun.
+     */
+    protected List<QueryRow> updateViewQuery(String viewName,
+                                             QueryOptions options,
+                                             List<QueryRow> previousRows,
+                                             Set<String> changedDocIDs,
+                                             List<Long> outLastSequence)
+            throws CouchbaseLiteException {
+        // The view's index has to be updated first, so all-docs and stale queries are rerun:
+        if (viewName == null || viewName.length() == 0 ||
+                options.getStale() != Query.IndexUpdateMode.BEFORE)
+            return null;
+        View view = getView(viewName);
+        if (view == null)
+            throw new CouchbaseLiteException(new Status(Status.NOT_FOUND));
+        view.updateIndex();
+        List<QueryRow> rows = view.updateQuery(options, previousRows, changedDocIDs);
+        if (rows != null)
+            outLastSequence.add(view.getLastSequenceIndexed());
         return rows;
     }
 
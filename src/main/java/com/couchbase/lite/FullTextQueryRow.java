@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonDocument;
+
+import java.nio.charset.Charset;
+
+/**
+ * A result row from a full-text query (see Query.setFullTextQuery). The row's key is null; the
+ * text that was emitted, and where the query matched it, are available from this row.
+ * <p/>
+ * CBLFullTextQueryRow
+ */
+public class FullTextQueryRow extends QueryRow {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String fullText;
+    private final int[] matchOffsets; // (term, byte offset, byte length) of each match
+    private final String snippet;
+
+    /**
+     * Constructor
+     *
+     * @param offsets The result of SQLite FTS's offsets() function for the row.
+     * @param snippet The result of SQLite FTS's snippet() function, with the matched words
+     *                marked by \001 and \002; or null if snippets weren't requested.
+     */
+    @InterfaceAudience.Private
+    public FullTextQueryRow(String docID,
+                            long sequence,
+                            JsonDocument valueJSON,
+                            RevisionInternal docRevision,
+                            String fullText,
+                            String offsets,
+                            String snippet) {
+        super(docID, sequence, null, valueJSON, docRevision);
+        this.fullText = fullText;
+        this.snippet = snippet;
+        // offsets() returns four integers per match: column, term, byte offset, byte length.
+        String[] numbers = offsets != null && offsets.length() > 0 ?
+                offsets.split(" ") : new String[0];
+        int matchCount = numbers.length / 4;
+        matchOffsets = new int[matchCount * 3];
+        for (int i = 0; i < matchCount; i++) {
+            for (int j = 0; j < 3; j++)
+                matchOffsets[3 * i + j] = Integer.parseInt(numbers[4 * i + 1 + j]);
+        }
+    }
+
+    /**
+     * The text emitted when the view was indexed, which contains the match(es).
+     */
+    @InterfaceAudience.Public
+    public String getFullText() {
+        return fullText;
+    }
+
+    /**
+     * The number of matches of query words found in the full text. (If a query word appears more
+     * than once, each instance is a separate match.) Matches are numbered from zero up to this.
+     */
+    @InterfaceAudience.Public
+    public int getMatchCount() {
+        return matchOffsets.length / 3;
+    }
+
+    /**
+     * The index of the search term matched by a particular match. Search terms are the
+     * individual words in the full-text search expression, skipping duplicates and noise/stop
+     * words. They're numbered from zero.
+     */
+    @InterfaceAudience.Public
+    public int getTermIndexOfMatch(int matchNumber) {
+        return matchOffsets[3 * matchNumber];
+    }
+
+    /**
+     * The character range in the full text of a particular match, as {start, length}.
+     */
+    @InterfaceAudience.Public
+    public int[] getTextRangeOfMatch(int matchNumber) {
+        // SQLite's offsets are in bytes of UTF-8; convert them to character offsets:
+        byte[] utf8 = fullText.getBytes(UTF8);
+        int byteStart = matchOffsets[3 * matchNumber + 1];
+        int byteLength = matchOffsets[3 * matchNumber + 2];
+        int start = new String(utf8, 0, byteStart, UTF8).length();
+        int length = new String(utf8, byteStart, byteLength, UTF8).length();
+        return new int[]{start, length};
+    }
+
+    /**
+     * Returns a short substring of the full text containing at least some of the matched words,
+     * with each matched word surrounded by wordStart and wordEnd (e.g. "[" and "]"), or null
+     * if the query didn't request snippets.
+     */
+    @InterfaceAudience.Public
+    public String getSnippet(String wordStart, String wordEnd) {
+        if (snippet == null)
+            return null;
+        return snippet.replace("\001", wordStart).replace("\002", wordEnd);
+    }
+}
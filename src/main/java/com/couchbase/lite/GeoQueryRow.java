@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonDocument;
+
+/**
+ * A result row from a geo query (see Query.setBoundingBox). The row's key is null; the
+ * emitted bounding box is available from this row.
+ * <p/>
+ * CBLGeoQueryRow
+ */
+public class GeoQueryRow extends QueryRow {
+    private final GeoRect boundingBox;
+
+    @InterfaceAudience.Private
+    public GeoQueryRow(String docID,
+                       long sequence,
+                       JsonDocument valueJSON,
+                       RevisionInternal docRevision,
+                       GeoRect boundingBox) {
+        super(docID, sequence, null, valueJSON, docRevision);
+        this.boundingBox = boundingBox;
+    }
+
+    /**
+     * The bounding box that was emitted as the row's key. The index stores coordinates with
+     * single precision, rounded outwards, so this may be slightly larger than what was emitted.
+     */
+    @InterfaceAudience.Public
+    public GeoRect getBoundingBox() {
+        return boundingBox;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * A 2D geometric rectangle, such as a bounding box. Coordinates are typically longitude (x) and
+ * latitude (y), but any planar coordinates can be used.
+ * <p/>
+ * CBLGeoRect
+ */
+public final class GeoRect {
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    @InterfaceAudience.Public
+    public GeoRect(double minX, double minY, double maxX, double maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * Returns a rectangle that contains just a point.
+     */
+    @InterfaceAudience.Public
+    public static GeoRect point(double x, double y) {
+        return new GeoRect(x, y, x, y);
+    }
+
+    @InterfaceAudience.Public
+    public double getMinX() {
+        return minX;
+    }
+
+    @InterfaceAudience.Public
+    public double getMinY() {
+        return minY;
+    }
+
+    @InterfaceAudience.Public
+    public double getMaxX() {
+        return maxX;
+    }
+
+    @InterfaceAudience.Public
+    public double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * Does this rectangle overlap (or touch) another?
+     */
+    @InterfaceAudience.Public
+    public boolean intersects(GeoRect other) {
+        return minX <= other.maxX && other.minX <= maxX &&
+                minY <= other.maxY && other.minY <= maxY;
+    }
+
+    /**
+     * The distance from a point to the nearest point of this rectangle; 0 if it's inside.
+     */
+    @InterfaceAudience.Public
+    public double distanceTo(double x, double y) {
+        double dx = Math.max(Math.max(minX - x, 0), x - maxX);
+        double dy = Math.max(Math.max(minY - y, 0), y - maxY);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof GeoRect))
+            return false;
+        GeoRect rect = (GeoRect) o;
+        return minX == rect.minX && minY == rect.minY && maxX == rect.maxX && maxY == rect.maxY;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(minX);
+        bits = 31 * bits + Double.doubleToLongBits(minY);
+        bits = 31 * bits + Double.doubleToLongBits(maxX);
+        bits = 31 * bits + Double.doubleToLongBits(maxY);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "GeoRect{" +
+                "minX=" + minX +
+                ", minY=" + minY +
+                ", maxX=" + maxX +
+                ", maxY=" + maxY +
+                '}';
+    }
+}
@@ -17,36 +17,60 @@ import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Query subclass that automatically refreshes the result rows every time the database changes.
  * All you need to do is use add a listener to observe changes.
+ * <p/>
+ * When only a few documents changed, the result is refreshed by replacing just those documents'
+ * rows in the previous result; the whole query is rerun only if that can't be done, e.g. if
+ * it's reduced or grouped, or uses keys, skip or a limit.
+ * <p/>
+ * Changes are coalesced: after a change the query waits until no further change has arrived
+ * for updateInterval, but no longer than maxStaleness, and it never runs more often than every
+ * updateInterval. The queries run on the Manager's work executor, one at a time per LiveQuery.
  */
 public final class LiveQuery extends Query implements Database.ChangeListener {
 
+    // Max number of changed documents to refresh incrementally; beyond that the query is rerun
+    private static final int MAX_INCREMENTAL_CHANGES = 100;
+
+    public static final long DEFAULT_UPDATE_INTERVAL = 200; // ms
+    public static final long DEFAULT_MAX_STALENESS = 1000;  // ms
+
     private boolean observing;
+    // The documents changed since the last refresh began, or null if the next refresh has to
+    // rerun the whole query
+    private Set<String> changedDocIDs;
+    private String rowsOptionsKey; // QueryOptions.getCacheKey() of the query that produced rows
     private QueryEnumerator rows;
     private List<ChangeListener> observers = new ArrayList<ChangeListener>();
     private Throwable lastError;
     private final AtomicBoolean runningState; // true == running, false == stopped
 
-    /**
-     * If a query is running and the user calls stop() on this query, the future
-     * will be used in order to cancel the query in progress.
-     */
-    protected Future queryFuture;
+    // Update scheduling, guarded by this:
+    private long updateInterval = DEFAULT_UPDATE_INTERVAL;
+    private long maxStaleness = DEFAULT_MAX_STALENESS;
+    private boolean updatePending;    // an update was requested since the last query began
+    private boolean updateNow;        // ...and it shouldn't wait for further changes
+    private long firstPendingUpdate;  // when the oldest pending update was requested
+    private long lastPendingUpdate;   // when the newest pending update was requested
+    private long lastQueryStarted;
+    private boolean queryRunning;
+    private long generation;          // bumped by stop(), so results of earlier runs are dropped
+    private Future scheduledUpdate;   // timer that runs the query once it's due
 
     /**
-     * If the update() method is called while a query is in progress, once it is
-     * finished it will be scheduled to re-run update().  This tracks the future
-     * related to that scheduled task.
+     * The query in progress, if any; waitForRows() waits on it.
      */
-    protected Future rerunUpdateFuture;
+    protected Future queryFuture;
 
     /**
      * Constructor
@@ -74,6 +98,34 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         }
     }
 
+    /**
+     * The minimum time (in milliseconds) between runs of the query, which is also how long it
+     * waits for further changes after a change before it runs. Defaults to 200 ms.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getUpdateInterval() {
+        return updateInterval;
+    }
+
+    @InterfaceAudience.Public
+    public synchronized void setUpdateInterval(long updateInterval) {
+        this.updateInterval = updateInterval;
+    }
+
+    /**
+     * The longest time (in milliseconds) the query waits for changes to stop arriving, before it
+     * runs anyway. Defaults to 1000 ms.
+     */
+    @InterfaceAudience.Public
+    public synchronized long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    @InterfaceAudience.Public
+    public synchronized void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
     /**
      * Returns the last error, if any, that occured while executing the Query, otherwise null.
      */
@@ -99,6 +151,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
 
         if (!observing) {
             observing = true;
+            synchronized (this) {
+                changedDocIDs = null;
+            }
             getDatabase().addChangeListener(this);
             Log.v(Log.TAG_QUERY, "%s: start() is calling update()", this);
             update();
@@ -124,17 +179,15 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             getDatabase().removeChangeListener(this);
         }
 
-        // slight diversion from iOS version -- cancel the queryFuture
-        // regardless of the willUpdate value, since there can be an update in flight
-        // with willUpdate set to false.  was needed to make testLiveQueryStop() unit test pass.
-        if (queryFuture != null) {
-            boolean cancelled = queryFuture.cancel(true);
-            Log.v(Log.TAG_QUERY, "%s: cancelled queryFuture %s, returned: %s", this, queryFuture, cancelled);
-        }
-
-        if (rerunUpdateFuture != null) {
-            boolean cancelled = rerunUpdateFuture.cancel(true);
-            Log.d(Log.TAG_QUERY, "%s: cancelled rerunUpdateFuture %s, returned: %s", this, rerunUpdateFuture, cancelled);
+        // A query in flight is left to finish, so that a restart doesn't run a second one
+        // alongside it; its result belongs to an older generation and is dropped.
+        synchronized (this) {
+            if (scheduledUpdate != null) {
+                scheduledUpdate.cancel(false);
+                scheduledUpdate = null;
+            }
+            updatePending = false;
+            generation++;
         }
 
     }
@@ -203,6 +256,8 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         private LiveQuery source;
         private Throwable error;
         private QueryEnumerator queryEnumerator;
+        private List<QueryRow> addedRows;
+        private List<QueryRow> removedRows;
 
         ChangeEvent() {
         }
@@ -212,6 +267,13 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             this.queryEnumerator = queryEnumerator;
         }
 
+        ChangeEvent(LiveQuery source, QueryEnumerator queryEnumerator,
+                    List<QueryRow> addedRows, List<QueryRow> removedRows) {
+            this(source, queryEnumerator);
+            this.addedRows = addedRows;
+            this.removedRows = removedRows;
+        }
+
         ChangeEvent(Throwable error) {
             this.error = error;
         }
@@ -228,6 +290,21 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return queryEnumerator;
         }
 
+        /**
+         * The rows that are in the new result but weren't in the previous one. (On the first
+         * result, all of its rows.)
+         */
+        public List<QueryRow> getAddedRows() {
+            return addedRows;
+        }
+
+        /**
+         * The rows of the previous result that aren't in the new one.
+         */
+        public List<QueryRow> getRemovedRows() {
+            return removedRows;
+        }
+
     }
 
     /**
@@ -238,8 +315,20 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
         public void changed(ChangeEvent event);
     }
 
+    /**
+     * Requests an immediate update of the rows. It runs as soon as the query in flight, if any,
+     * has finished.
+     */
     @InterfaceAudience.Private
     /* package */ void update() {
+        update(true);
+    }
+
+    /**
+     * Requests an update of the rows; unless immediately is true, it's coalesced with further
+     * changes as per updateInterval and maxStaleness.
+     */
+    private void update(boolean immediately) {
         Log.v(Log.TAG_QUERY, "%s: update() called.", this);
 
         if (runningState.get() == false) {
@@ -247,93 +336,160 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
             return;
         }
 
-        if (queryFuture != null && !queryFuture.isCancelled() && !queryFuture.isDone()) {
-            // There is a already a query in flight, so leave it alone except to schedule something
-            // to run update() again once it finishes.
-            Log.d(Log.TAG_QUERY, "%s: already a query in flight, scheduling call to update() once it's done", LiveQuery.this);
-            if (rerunUpdateFuture != null && !rerunUpdateFuture.isCancelled() && !rerunUpdateFuture.isDone()) {
-                boolean cancelResult = rerunUpdateFuture.cancel(true);
-                Log.d(Log.TAG_QUERY, "%s: cancelled %s result: %s", LiveQuery.this, rerunUpdateFuture, cancelResult);
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!updatePending) {
+                updatePending = true;
+                firstPendingUpdate = now;
             }
-            rerunUpdateFuture = rerunUpdateAfterQueryFinishes(queryFuture);
-            Log.d(Log.TAG_QUERY, "%s: created new rerunUpdateFuture: %s", LiveQuery.this, rerunUpdateFuture);
+            lastPendingUpdate = now;
+            if (immediately) {
+                updateNow = true;
+                if (scheduledUpdate != null) {
+                    scheduledUpdate.cancel(false);
+                    scheduledUpdate = null;
+                }
+            }
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Runs the query if a pending update is due, or else schedules it for when it is. Must be
+     * called while synchronized.
+     */
+    private void scheduleUpdate() {
+        if (!updatePending || queryRunning || scheduledUpdate != null)
+            return; // the query in flight, or the timer, calls this again
+        long now = System.currentTimeMillis();
+        long runAt = now;
+        if (!updateNow) {
+            // Wait for the changes to pause, but not for too long, and rate-limit the queries:
+            runAt = Math.min(lastPendingUpdate + updateInterval, firstPendingUpdate + maxStaleness);
+            runAt = Math.max(runAt, lastQueryStarted + updateInterval);
+        }
+        if (runAt <= now) {
+            runQuery();
             return;
         }
+        scheduledUpdate = getDatabase().getManager().runAsync(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LiveQuery.this) {
+                    scheduledUpdate = null;
+                    if (runningState.get())
+                        scheduleUpdate();
+                }
+            }
+        }, runAt - now);
+    }
 
-        // No query in flight, so kick one off
-        queryFuture = runAsyncInternal(new QueryCompleteListener() {
+    /**
+     * Starts running the query. Must be called while synchronized.
+     */
+    private void runQuery() {
+        updatePending = false;
+        updateNow = false;
+        lastQueryStarted = System.currentTimeMillis();
+
+        // If only some documents changed since the last query, this one just refreshes their rows:
+        final QueryEnumerator previousRows = rows;
+        final String optionsKey = getQueryOptions().getCacheKey();
+        boolean sameQuery = optionsKey != null && optionsKey.equals(rowsOptionsKey);
+        final Set<String> docIDs = previousRows != null && sameQuery ? changedDocIDs : null;
+        changedDocIDs = new HashSet<String>();
+        final long runGeneration = generation;
+
+        queryFuture = runAsyncInternal(previousRows, docIDs, new QueryCompleteListener() {
             @Override
             public void completed(QueryEnumerator rowsParam, Throwable error) {
-                if (error != null) {
-                    for (ChangeListener observer : observers) {
-                        observer.changed(new ChangeEvent(error));
+                try {
+                    queryCompleted(runGeneration, previousRows, optionsKey, rowsParam, error);
+                } finally {
+                    synchronized (LiveQuery.this) {
+                        queryRunning = false;
+                        if (runningState.get())
+                            scheduleUpdate();
                     }
-                    lastError = error;
-                } else {
-
-                    if (runningState.get() == false) {
-                        Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
-                        return;
-                    }
-
-                    if (rowsParam != null && !rowsParam.equals(rows)) {
-                        setRows(rowsParam);
-                        for (ChangeListener observer : observers) {
-                            Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", LiveQuery.this);
-                            // TODO: LiveQuery.ChangeListener should not be fired for non-match?
-                            // https://github.com/couchbase/couchbase-lite-java-core/issues/648
-                            observer.changed(new ChangeEvent(LiveQuery.this, rows));
-                        }
-                    }
-                    lastError = null;
                 }
             }
         });
+        queryRunning = queryFuture != null;
         Log.d(Log.TAG_QUERY, "%s: update() created queryFuture: %s", this, queryFuture);
-
     }
 
-    /**
-     * kick off async task that will wait until the query finishes, and after it
-     * does, it will run upate() again in case the current query in flight misses
-     * some of the recently added items.
-     */
-    private Future rerunUpdateAfterQueryFinishes(final Future queryFutureInProgress) {
-        if (queryFutureInProgress == null) {
-            throw new NullPointerException();
-        }
-        return getDatabase().getManager().runAsync(new Runnable() {
-            @Override
-            public void run() {
-
-                if (runningState.get() == false) {
-                    Log.v(Log.TAG_QUERY, "%s: rerunUpdateAfterQueryFinishes.run() fired, but running state == false.  Ignoring.", this);
+    private void queryCompleted(long runGeneration, QueryEnumerator previousRows, String optionsKey,
+                                QueryEnumerator rowsParam, Throwable error) {
+        if (error != null) {
+            synchronized (this) {
+                if (runGeneration != generation) {
+                    Log.v(Log.TAG_QUERY, "%s: dropping error of a query run before stop()", this);
                     return;
                 }
+                changedDocIDs = null;
+            }
+            for (ChangeListener observer : observers) {
+                observer.changed(new ChangeEvent(error));
+            }
+            lastError = error;
+        } else {
 
-                while (true) {
-                    try {
-                        queryFutureInProgress.get();
-                    } catch (InterruptedException e) {
-                        continue;
-                    } catch (CancellationException e) {
-                        // can safely ignore these
-                    } catch (ExecutionException e) {
-                        Log.e(Log.TAG_QUERY, "Got exception waiting for queryFutureInProgress to finish", e);
-                    }
-                    break;
-                }
+            if (runningState.get() == false) {
+                Log.d(Log.TAG_QUERY, "%s: update() finished query, but running state == false.", this);
+                return;
+            }
 
-                if (runningState.get() == false) {
-                    Log.v(Log.TAG_QUERY, "%s: queryFutureInProgress.get() done, but running state == false.", this);
+            if (rowsParam != null && !rowsParam.equals(rows)) {
+                List<QueryRow> added = new ArrayList<QueryRow>();
+                List<QueryRow> removed = new ArrayList<QueryRow>();
+                diffRows(previousRows != null ? previousRows.getRows() : null,
+                        rowsParam.getRows(), added, removed);
+                if (!setRows(runGeneration, rowsParam, optionsKey))
                     return;
+                for (ChangeListener observer : observers) {
+                    Log.d(Log.TAG_QUERY, "%s: update() calling back observer with rows", this);
+                    // TODO: LiveQuery.ChangeListener should not be fired for non-match?
+                    // https://github.com/couchbase/couchbase-lite-java-core/issues/648
+                    observer.changed(new ChangeEvent(this, rows, added, removed));
                 }
+            } else if (rowsParam != null) {
+                setRows(runGeneration, rowsParam, optionsKey); // unchanged rows, maybe from new options
+            }
+            lastError = null;
+        }
+    }
 
-                update();
+    /**
+     * Finds the rows added and removed between two results, by comparing the rows of each
+     * document (or, for reduced rows, of each key).
+     */
+    private static void diffRows(List<QueryRow> oldRows, List<QueryRow> newRows,
+                                 List<QueryRow> added, List<QueryRow> removed) {
+        Map<Object, List<QueryRow>> oldRowsByDoc = new HashMap<Object, List<QueryRow>>();
+        if (oldRows != null) {
+            for (QueryRow row : oldRows) {
+                Object id = rowGroup(row);
+                List<QueryRow> docRows = oldRowsByDoc.get(id);
+                if (docRows == null) {
+                    docRows = new ArrayList<QueryRow>();
+                    oldRowsByDoc.put(id, docRows);
+                }
+                docRows.add(row);
             }
-        });
+        }
+        for (QueryRow row : newRows) {
+            List<QueryRow> docRows = oldRowsByDoc.get(rowGroup(row));
+            if (docRows == null || !docRows.remove(row))
+                added.add(row);
+        }
+        for (List<QueryRow> docRows : oldRowsByDoc.values())
+            removed.addAll(docRows);
     }
 
+    private static Object rowGroup(QueryRow row) {
+        String docID = row.getSourceDocumentId();
+        return docID != null ? docID : row.getKey();
+    }
 
     /**
      * @exclude
@@ -341,15 +497,33 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
     @Override
     @InterfaceAudience.Private
     public void changed(Database.ChangeEvent event) {
-        update();
+        synchronized (this) {
+            if (changedDocIDs != null) {
+                for (DocumentChange change : event.getChanges())
+                    changedDocIDs.add(change.getDocumentId());
+                if (changedDocIDs.size() > MAX_INCREMENTAL_CHANGES)
+                    changedDocIDs = null;
+            }
+        }
+        update(false);
     }
 
     /**
+     * Stores the result of the run of the given generation; returns false, leaving the rows
+     * alone, if stop() was called since that run began.
+     *
      * @exclude
      */
     @InterfaceAudience.Private
-    private synchronized void setRows(QueryEnumerator queryEnumerator) {
+    private synchronized boolean setRows(long runGeneration, QueryEnumerator queryEnumerator,
+                                         String optionsKey) {
+        if (runGeneration != generation) {
+            Log.v(Log.TAG_QUERY, "%s: dropping rows of a query run before stop()", this);
+            return false;
+        }
         rows = queryEnumerator;
+        rowsOptionsKey = optionsKey;
+        return true;
     }
 
     /**
@@ -357,6 +531,9 @@ public final class LiveQuery extends Query implements Database.ChangeListener {
      */
     @InterfaceAudience.Public
     public void queryOptionsChanged() {
+        synchronized (this) {
+            changedDocIDs = null;
+        }
         this.update();
     }
 }
@@ -49,6 +49,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -740,6 +741,14 @@ public final class Manager {
         return this.options.getExecutorThreadPoolSize();
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getIndexingThreadCount() {
+        return this.options.getIndexingThreadCount();
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Internal (protected or private) Methods
     ///////////////////////////////////////////////////////////////////////////
@@ -963,6 +972,20 @@ public final class Manager {
         }
     }
 
+    /**
+     * Runs the runnable on the work executor after the given delay, in milliseconds.
+     */
+    @InterfaceAudience.Private
+    protected Future runAsync(Runnable runnable, long delay) {
+        synchronized (workExecutor) {
+            if (!workExecutor.isShutdown()) {
+                return workExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+            } else {
+                return null;
+            }
+        }
+    }
+
     /**
      * in CBLManager.m
      * - (NSString*) pathForDatabaseNamed: (NSString*)name
@@ -35,6 +35,13 @@ public class ManagerOptions {
      */
     private int executorThreadPoolSize = 0;
 
+    /**
+     * the number of threads that run view map functions while indexing. With 0 or 1 (the default)
+     * map functions are called one document at a time on the indexing thread. With more, they are
+     * called concurrently for different documents, so they must be thread-safe.
+     */
+    private int indexingThreadCount = 0;
+
     public ManagerOptions() {
     }
 
@@ -61,4 +68,12 @@ public class ManagerOptions {
     public void setExecutorThreadPoolSize(int executorThreadPoolSize) {
         this.executorThreadPoolSize = executorThreadPoolSize;
     }
+
+    public int getIndexingThreadCount() {
+        return indexingThreadCount;
+    }
+
+    public void setIndexingThreadCount(int indexingThreadCount) {
+        this.indexingThreadCount = indexingThreadCount;
+    }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Future;
 
 /**
@@ -87,6 +88,7 @@ public class Query {
      * (Useful if the view contains multiple identical keys, making .startKey ambiguous.)
      */
     private String startKeyDocId;
+    private long startKeyRowId; // set by setContinuationToken
 
     /**
      * If non-nil, the document ID to end at.
@@ -182,6 +184,36 @@ public class Query {
      */
     private Predicate<QueryRow> postFilter;
 
+    /**
+     * If non-null, the query is a full-text search of the text the view emitted with
+     * SpecialKey keys, and this is the SQLite FTS match expression, e.g. "cat OR dog".
+     * The result rows are FullTextQueryRows. The key range options don't apply.
+     */
+    private String fullTextQuery;
+
+    /**
+     * If set to YES, full-text query rows will have snippets (see FullTextQueryRow.getSnippet).
+     */
+    private boolean fullTextSnippets;
+
+    /**
+     * If set to YES (the default), full-text query rows are ordered by relevance, best first.
+     */
+    private boolean fullTextRanking = true;
+
+    /**
+     * If non-null, the query is a geo query of the rectangles the view emitted with SpecialKey
+     * keys, matching the ones that intersect this bounding box. The result rows are
+     * GeoQueryRows. The key range options don't apply.
+     */
+    private GeoRect boundingBox;
+
+    /**
+     * If positive, the geo query instead matches the rectangles within this distance of the
+     * center of boundingBox. (Set by setGeoRadius.)
+     */
+    private double geoRadius;
+
 
     private long lastSequence;
 
@@ -229,12 +261,18 @@ public class Query {
         prefixMatchLevel = query.prefixMatchLevel;
         mapOnly = query.mapOnly;
         startKeyDocId = query.startKeyDocId;
+        startKeyRowId = query.startKeyRowId;
         endKeyDocId = query.endKeyDocId;
         indexUpdateMode = query.indexUpdateMode;
         allDocsMode = query.allDocsMode;
         inclusiveStart = query.inclusiveStart;
         inclusiveEnd = query.inclusiveEnd;
         postFilter = query.postFilter;
+        fullTextQuery = query.fullTextQuery;
+        fullTextSnippets = query.fullTextSnippets;
+        fullTextRanking = query.fullTextRanking;
+        boundingBox = query.boundingBox;
+        geoRadius = query.geoRadius;
     }
 
     /**
@@ -284,6 +322,7 @@ public class Query {
     @InterfaceAudience.Public
     public void setStartKey(Object startKey) {
         this.startKey = startKey;
+        this.startKeyRowId = 0;
     }
 
     @InterfaceAudience.Public
@@ -304,6 +343,7 @@ public class Query {
     @InterfaceAudience.Public
     public void setStartKeyDocId(String startKeyDocId) {
         this.startKeyDocId = startKeyDocId;
+        this.startKeyRowId = 0;
     }
 
     @InterfaceAudience.Public
@@ -376,6 +416,92 @@ public class Query {
         this.prefixMatchLevel = prefixMatchLevel;
     }
 
+    @InterfaceAudience.Public
+    public String getFullTextQuery() {
+        return fullTextQuery;
+    }
+
+    @InterfaceAudience.Public
+    public void setFullTextQuery(String fullTextQuery) {
+        this.fullTextQuery = fullTextQuery;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isFullTextSnippets() {
+        return fullTextSnippets;
+    }
+
+    @InterfaceAudience.Public
+    public void setFullTextSnippets(boolean fullTextSnippets) {
+        this.fullTextSnippets = fullTextSnippets;
+    }
+
+    @InterfaceAudience.Public
+    public boolean isFullTextRanking() {
+        return fullTextRanking;
+    }
+
+    @InterfaceAudience.Public
+    public void setFullTextRanking(boolean fullTextRanking) {
+        this.fullTextRanking = fullTextRanking;
+    }
+
+    @InterfaceAudience.Public
+    public GeoRect getBoundingBox() {
+        return boundingBox;
+    }
+
+    /**
+     * Makes this a geo query, for the rectangles that intersect a bounding box.
+     */
+    @InterfaceAudience.Public
+    public void setBoundingBox(GeoRect boundingBox) {
+        this.boundingBox = boundingBox;
+        this.geoRadius = 0;
+    }
+
+    @InterfaceAudience.Public
+    public double getGeoRadius() {
+        return geoRadius;
+    }
+
+    /**
+     * Makes this a geo query, for the rectangles within a distance of a point. The distance is
+     * planar, in the units of the coordinates.
+     */
+    @InterfaceAudience.Public
+    public void setGeoRadius(double centerX, double centerY, double radius) {
+        this.boundingBox = new GeoRect(centerX - radius, centerY - radius,
+                centerX + radius, centerY + radius);
+        this.geoRadius = radius;
+    }
+
+    /**
+     * Continues a previous query with the same options after the last row of its results, given
+     * the continuation token of its QueryEnumerator: sets the startKey and startKeyDocId to that
+     * row's (remembering which of the document's rows with that key it was) and makes them
+     * exclusive, and resets skip to 0, since the rows it skipped are already
+     * behind the token. Unlike skip, this doesn't get slower with each page.
+     */
+    @InterfaceAudience.Public
+    public void setContinuationToken(String continuationToken) {
+        List<?> lastRow;
+        try {
+            lastRow = Manager.getObjectMapper().readValue(continuationToken, List.class);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        }
+        if (lastRow.size() < 2 || lastRow.size() > 3 ||
+                !(lastRow.get(1) == null || lastRow.get(1) instanceof String) ||
+                !(lastRow.size() == 2 || lastRow.get(2) instanceof Number))
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        this.startKey = lastRow.get(0);
+        this.startKeyDocId = (String) lastRow.get(1);
+        this.startKeyRowId = lastRow.size() > 2 ? ((Number) lastRow.get(2)).longValue() : 0;
+        this.inclusiveStart = false;
+        this.skip = 0;
+    }
+
     @InterfaceAudience.Public
     public boolean isInclusiveStart() {
         return inclusiveStart;
@@ -448,6 +574,20 @@ public class Query {
         return new QueryEnumerator(database, rows, lastSequence);
     }
 
+    /**
+     * Runs the query, returning a stream that reads the result rows from the database as they're
+     * iterated instead of all at once, so that a large result set doesn't have to fit in memory.
+     * The stream must be used on the calling thread, and closed if it isn't read to the end.
+     */
+    @InterfaceAudience.Public
+    public QueryRowStream runStreaming() throws CouchbaseLiteException {
+        List<Long> outSequence = new ArrayList<Long>();
+        String viewName = (view != null) ? view.getName() : null;
+        QueryRowStream rows = database.queryViewStream(viewName, getQueryOptions(), outSequence);
+        lastSequence = outSequence.get(0);
+        return rows;
+    }
+
     /**
      * Returns a live query with the same parameters.
      */
@@ -480,6 +620,20 @@ public class Query {
      */
     @InterfaceAudience.Private
     Future runAsyncInternal(final QueryCompleteListener onComplete) {
+        return runAsyncInternal(null, null, onComplete);
+    }
+
+    /**
+     * Like runAsyncInternal(onComplete), but if previousRows and changedDocIDs are given, first
+     * tries to bring the previous result up to date after those documents changed, instead of
+     * rerunning the query.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    Future runAsyncInternal(final QueryEnumerator previousRows,
+                            final Set<String> changedDocIDs,
+                            final QueryCompleteListener onComplete) {
 
         return database.getManager().runAsync(new Runnable() {
             @Override
@@ -493,6 +647,15 @@ public class Query {
                     String viewName = (view != null) ? view.getName() : null;
                     QueryOptions options = getQueryOptions();
                     List<Long> outSequence = new ArrayList<Long>();
+                    if (previousRows != null && changedDocIDs != null) {
+                        List<QueryRow> updated = database.updateViewQuery(viewName, options,
+                                previousRows.getRows(), changedDocIDs, outSequence);
+                        if (updated != null) {
+                            onComplete.completed(new QueryEnumerator(database, updated,
+                                    outSequence.get(0)), null);
+                            return;
+                        }
+                    }
                     List<QueryRow> rows = database.queryViewNamed(viewName, options, outSequence);
                     long sequenceNumber = outSequence.get(0);
                     QueryEnumerator enumerator = new QueryEnumerator(database, rows, sequenceNumber);
@@ -516,7 +679,7 @@ public class Query {
     }
 
     @InterfaceAudience.Private
-    private QueryOptions getQueryOptions() {
+    /* package */ QueryOptions getQueryOptions() {
         QueryOptions queryOptions = new QueryOptions();
         queryOptions.setStartKey(getStartKey());
         queryOptions.setEndKey(getEndKey());
@@ -536,8 +699,14 @@ public class Query {
         queryOptions.setStale(getIndexUpdateMode());
         queryOptions.setAllDocsMode(getAllDocsMode());
         queryOptions.setStartKeyDocId(getStartKeyDocId());
+        queryOptions.setStartKeyRowId(startKeyRowId);
         queryOptions.setEndKeyDocId(getEndKeyDocId());
         queryOptions.setPostFilter(getPostFilter());
+        queryOptions.setFullTextQuery(getFullTextQuery());
+        queryOptions.setFullTextSnippets(isFullTextSnippets());
+        queryOptions.setFullTextRanking(isFullTextRanking());
+        queryOptions.setBoundingBox(getBoundingBox());
+        queryOptions.setGeoRadius(getGeoRadius());
         return queryOptions;
     }
 
@@ -14,12 +14,17 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 /**
  * An enumerator for Couchbase Lite View Query results.
+ * <p/>
+ * To read a large result set without holding all of its rows in memory, use
+ * Query.runStreaming() instead.
  */
 public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
 
@@ -137,6 +142,37 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
         return sequenceNumber < database.getLastSequenceNumber();
     }
 
+    /**
+     * Returns a token identifying the last row of the results (by its key, document ID and index
+     * row, since a document can emit the same key more than once), to pass to
+     * Query.setContinuationToken() to get the next page of results: the query then starts
+     * right after this row, by seeking in the index rather than skipping rows. Returns null if
+     * there are no rows, or the last row has no key (e.g. in a full-text query).
+     */
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        return rows.size() > 0 ? continuationToken(rows.get(rows.size() - 1)) : null;
+    }
+
+    /**
+     * Returns the continuation token of a row, or null if it has no key.
+     */
+    /* package */ static String continuationToken(QueryRow lastRow) {
+        if (lastRow == null || lastRow.getKey() == null)
+            return null;
+        List<Object> token = new ArrayList<Object>(3);
+        token.add(lastRow.getKey());
+        token.add(lastRow.getSourceDocumentId());
+        if (lastRow.getIndexRowId() > 0)
+            token.add(lastRow.getIndexRowId());
+        try {
+            return Manager.getObjectMapper().writeValueAsString(token);
+        } catch (Exception e) {
+            Log.w(Log.TAG_QUERY, "Couldn't encode the continuation token of %s", e, lastRow);
+            return null;
+        }
+    }
+
     /**
      * Resets the enumeration so the next call to -nextObject or -nextRow will return the first row.
      */
@@ -149,4 +185,8 @@ public class QueryEnumerator implements Iterator<QueryRow>, Iterable<QueryRow> {
     public Iterator<QueryRow> iterator() {
         return this;
     }
+
+    /* package */ List<QueryRow> getRows() {
+        return rows;
+    }
 }
@@ -17,6 +17,7 @@
 
 package com.couchbase.lite;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -48,8 +49,14 @@ public class QueryOptions {
 
     private String startKeyDocId;
     private String endKeyDocId;
+    private long startKeyRowId; // orders the rows of startKeyDocId with startKey; 0 if none
 
     private Predicate<QueryRow> postFilter;
+    private String fullTextQuery;
+    private boolean fullTextSnippets = false;
+    private boolean fullTextRanking = true;
+    private GeoRect boundingBox;
+    private double geoRadius = 0;
 
     public Object getStartKey() {
         return startKey;
@@ -195,6 +202,14 @@ public class QueryOptions {
         this.startKeyDocId = startKeyDocId;
     }
 
+    public long getStartKeyRowId() {
+        return startKeyRowId;
+    }
+
+    public void setStartKeyRowId(long startKeyRowId) {
+        this.startKeyRowId = startKeyRowId;
+    }
+
     public String getEndKeyDocId() {
         return endKeyDocId;
     }
@@ -211,6 +226,89 @@ public class QueryOptions {
         this.postFilter = postFilter;
     }
 
+    public String getFullTextQuery() {
+        return fullTextQuery;
+    }
+
+    public void setFullTextQuery(String fullTextQuery) {
+        this.fullTextQuery = fullTextQuery;
+    }
+
+    public boolean isFullTextSnippets() {
+        return fullTextSnippets;
+    }
+
+    public void setFullTextSnippets(boolean fullTextSnippets) {
+        this.fullTextSnippets = fullTextSnippets;
+    }
+
+    public boolean isFullTextRanking() {
+        return fullTextRanking;
+    }
+
+    public void setFullTextRanking(boolean fullTextRanking) {
+        this.fullTextRanking = fullTextRanking;
+    }
+
+    public GeoRect getBoundingBox() {
+        return boundingBox;
+    }
+
+    public void setBoundingBox(GeoRect boundingBox) {
+        this.boundingBox = boundingBox;
+    }
+
+    /**
+     * If positive, the query matches the geo keys within this distance of the center of the
+     * bounding box (which is then the square around that circle).
+     */
+    public double getGeoRadius() {
+        return geoRadius;
+    }
+
+    public void setGeoRadius(double geoRadius) {
+        this.geoRadius = geoRadius;
+    }
+
+    /**
+     * Returns a string identifying the result of a query with these options, or null if the
+     * result can't be cached (because there's a postFilter, or a key isn't JSON-encodable).
+     * Options that don't affect the result rows, such as stale and updateSeq, aren't included.
+     */
+    public String getCacheKey() {
+        if (postFilter != null)
+            return null;
+        List<Object> normalized = new ArrayList<Object>();
+        normalized.add(startKey);
+        normalized.add(endKey);
+        normalized.add(keys);
+        normalized.add(skip);
+        normalized.add(limit);
+        normalized.add(groupLevel);
+        normalized.add(prefixMatchLevel);
+        normalized.add(descending);
+        normalized.add(includeDocs);
+        normalized.add(inclusiveStart);
+        normalized.add(inclusiveEnd);
+        normalized.add(reduce);
+        normalized.add(reduceSpecified);
+        normalized.add(group);
+        normalized.add(allDocsMode != null ? allDocsMode.name() : null);
+        normalized.add(startKeyDocId);
+        normalized.add(endKeyDocId);
+        normalized.add(startKeyRowId);
+        normalized.add(fullTextQuery);
+        normalized.add(fullTextSnippets);
+        normalized.add(fullTextRanking);
+        normalized.add(boundingBox != null ? boundingBox.toString() : null);
+        normalized.add(geoRadius);
+        try {
+            return Manager.getObjectMapper().writeValueAsString(normalized);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return "QueryOptions{" +
@@ -233,7 +331,13 @@ public class QueryOptions {
                 ", allDocsMode=" + allDocsMode +
                 ", startKeyDocId='" + startKeyDocId + '\'' +
                 ", endKeyDocId='" + endKeyDocId + '\'' +
+                ", startKeyRowId=" + startKeyRowId +
                 ", postFilter=" + postFilter +
+                ", fullTextQuery='" + fullTextQuery + '\'' +
+                ", fullTextSnippets=" + fullTextSnippets +
+                ", fullTextRanking=" + fullTextRanking +
+                ", boundingBox=" + boundingBox +
+                ", geoRadius=" + geoRadius +
                 '}';
     }
 }
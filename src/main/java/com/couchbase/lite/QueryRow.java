@@ -15,16 +15,19 @@ package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * A result row from a CouchbaseLite view query.
- * Full-text and geo queries return subclasses -- see CBLFullTextQueryRow and CBLGeoQueryRow.
+ * Full-text and geo queries return subclasses -- see FullTextQueryRow and GeoQueryRow.
  */
 public class QueryRow {
 
@@ -38,6 +41,14 @@ public class QueryRow {
      */
     private Object value;
 
+    /**
+     * The JSON of the key and value, when they haven't been parsed yet. Rows can be shared
+     * between threads (by the query cache and by LiveQuery), so they're only parsed, and the
+     * results published, while holding the row's lock.
+     */
+    private JsonDocument keyJSON;
+    private JsonDocument valueJSON;
+
     /**
      * The database sequence number of the associated doc/revision.
      */
@@ -55,6 +66,12 @@ public class QueryRow {
      */
     private String sourceDocID;
 
+    /**
+     * The rowid of the view index row this row was read from, which tells apart the rows a
+     * document emitted with the same key; 0 if unknown.
+     */
+    private long indexRowId;
+
     /**
      * The properties of the document this row was mapped from.
      * To get this, you must have set the .prefetch property on the query; else this will be nil.
@@ -87,6 +104,20 @@ public class QueryRow {
         this.documentRevision = docRevision;
     }
 
+    /**
+     * Constructor for a row whose key and value are parsed from JSON when first accessed.
+     */
+    @InterfaceAudience.Private
+    public QueryRow(String docID,
+                    long sequence,
+                    JsonDocument keyJSON,
+                    JsonDocument valueJSON,
+                    RevisionInternal docRevision) {
+        this(docID, sequence, (Object) null, (Object) null, docRevision);
+        this.keyJSON = keyJSON;
+        this.valueJSON = valueJSON;
+    }
+
 
     protected Database getDatabase() {
         return database;
@@ -96,6 +127,37 @@ public class QueryRow {
         this.database = database;
     }
 
+    /**
+     * Makes the row's key, value and document properties immutable, all the way down, so that
+     * the row can be handed to several callers (see View.setQueryCacheSize) without one of them
+     * changing what the others see.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void freeze() {
+        key = freeze(getKey());
+        value = freeze(getValue());
+        Map<String, Object> properties = getDocumentProperties();
+        if (properties != null)
+            documentRevision.setProperties((Map<String, Object>) freeze(properties));
+    }
+
+    private static Object freeze(Object object) {
+        if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            Map<Object, Object> frozen = new LinkedHashMap<Object, Object>(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet())
+                frozen.put(entry.getKey(), freeze(entry.getValue()));
+            return Collections.unmodifiableMap(frozen);
+        } else if (object instanceof List) {
+            List<?> list = (List<?>) object;
+            List<Object> frozen = new ArrayList<Object>(list.size());
+            for (Object item : list)
+                frozen.add(freeze(item));
+            return Collections.unmodifiableList(frozen);
+        }
+        return object;
+    }
+
 
     /**
      * The document this row was mapped from.  This will be nil if a grouping was enabled in
@@ -116,7 +178,11 @@ public class QueryRow {
      * The row's key: this is the first parameter passed to the emit() call that generated the row.
      */
     @InterfaceAudience.Public
-    public Object getKey() {
+    public synchronized Object getKey() {
+        if (keyJSON != null) {
+            key = keyJSON.jsonObject();
+            keyJSON = null;
+        }
         return key;
     }
 
@@ -124,7 +190,11 @@ public class QueryRow {
      * The row's value: this is the second parameter passed to the emit() call that generated the row.
      */
     @InterfaceAudience.Public
-    public Object getValue() {
+    public synchronized Object getValue() {
+        if (valueJSON != null) {
+            value = valueJSON.jsonObject();
+            valueJSON = null;
+        }
         return value;
     }
 
@@ -141,6 +211,7 @@ public class QueryRow {
         if (documentRevision != null)
             docID = documentRevision.getDocID();
         if (docID == null) {
+            Object value = getValue();
             if (value != null) {
                 if (value instanceof Map) {
                     Map<String, Object> props = (Map<String, Object>) value;
@@ -153,6 +224,16 @@ public class QueryRow {
         return docID;
     }
 
+    @InterfaceAudience.Private
+    public long getIndexRowId() {
+        return indexRowId;
+    }
+
+    @InterfaceAudience.Private
+    public void setIndexRowId(long indexRowId) {
+        this.indexRowId = indexRowId;
+    }
+
     /**
      * The ID of the document that caused this view row to be emitted.  This is the value of
      * the "id" property of the JSON view row. It will be the same as the .documentID property,
@@ -177,6 +258,7 @@ public class QueryRow {
         if (documentRevision != null)
             rev = documentRevision.getRevID();
         if (rev == null) {
+            Object value = getValue();
             if (value instanceof Map) {
                 Map<String, Object> mapValue = (Map<String, Object>) value;
                 rev = (String) mapValue.get("_rev");
@@ -217,7 +299,7 @@ public class QueryRow {
     @InterfaceAudience.Public
     public List<SavedRevision> getConflictingRevisions() {
         Document doc = database.getDocument(sourceDocID);
-        Map<String, Object> valueTmp = (Map<String, Object>) value;
+        Map<String, Object> valueTmp = (Map<String, Object>) getValue();
         List<String> conflicts = (List<String>) valueTmp.get("_conflicts");
         if (conflicts == null) {
             conflicts = new ArrayList<String>();
@@ -252,13 +334,14 @@ public class QueryRow {
         QueryRow other = (QueryRow) object;
 
         if (database == other.database
-                && Utils.isEqual(key, other.getKey())
+                && Utils.isEqual(getKey(), other.getKey())
                 && Utils.isEqual(sourceDocID, other.getSourceDocumentId())
                 && Utils.isEqual(documentRevision, other.documentRevision)) {
             // If values were emitted, compare them. Otherwise we have nothing to go on so check
             // if _anything_ about the doc has changed (i.e. the sequences are different.)
+            Object value = getValue();
             if (value != null || other.getValue() != null) {
-                return value.equals(other.getValue());
+                return Utils.isEqual(value, other.getValue());
             } else {
                 return sequence == other.sequence;
             }
@@ -284,6 +367,8 @@ public class QueryRow {
     @InterfaceAudience.Private
     public Map<String, Object> asJSONDictionary() {
         Map<String, Object> result = new HashMap<String, Object>();
+        Object key = getKey();
+        Object value = getValue();
         if (value != null || sourceDocID != null) {
             result.put("key", key);
             result.put("value", value);
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.store.QueryRowIterator;
+import com.couchbase.lite.util.RefCounter;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterates over the rows of a query as they're read from the database, without keeping the rows
+ * already returned in memory. Returned by Query.runStreaming().
+ * <p/>
+ * A QueryRowStream holds an open database cursor until its last row has been read or it's
+ * closed. It must be closed (e.g. in a finally block) if the iteration may stop early; if it's
+ * still open when the database is closed, Database.close() closes it, and it then has no more
+ * rows. It can only be used on the thread that created it.
+ */
+public class QueryRowStream implements Iterator<QueryRow>, Iterable<QueryRow>, Closeable {
+
+    private Database database;
+    private QueryRowIterator rowIterator;
+    private RefCounter storeRef;
+    private Thread owner;
+    private long sequenceNumber;
+    private QueryRow lastRow;
+
+    /**
+     * Constructor. storeRef must have been retained; it's released when the stream is closed.
+     */
+    @InterfaceAudience.Private
+    /* package */ QueryRowStream(Database database, QueryRowIterator rowIterator,
+                                 RefCounter storeRef, long sequenceNumber) {
+        this.database = database;
+        this.rowIterator = rowIterator;
+        this.storeRef = storeRef;
+        this.owner = Thread.currentThread();
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Gets the Database's current sequence number at the time the View was generated for the results.
+     */
+    @InterfaceAudience.Public
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public synchronized boolean hasNext() {
+        checkThread();
+        if (rowIterator == null)
+            return false;
+        boolean hasNext = false;
+        try {
+            hasNext = rowIterator.hasNext();
+        } finally {
+            if (!hasNext)
+                close();
+        }
+        return hasNext;
+    }
+
+    /**
+     * Gets the next QueryRow from the results, or null if there are no more results.
+     */
+    @Override
+    @InterfaceAudience.Public
+    public synchronized QueryRow next() {
+        if (!hasNext())
+            return null;
+        QueryRow row = rowIterator.next();
+        row.setDatabase(database);
+        lastRow = row;
+        return row;
+    }
+
+    @Override
+    @InterfaceAudience.Public
+    public void remove() {
+        throw new UnsupportedOperationException("QueryRowStream does not allow remove() to be called");
+    }
+
+    /**
+     * Returns a token identifying the last row returned by next(), to pass to
+     * Query.setContinuationToken() to get the rows after it. Returns null if no row has been
+     * returned yet.
+     */
+    @InterfaceAudience.Public
+    public String getContinuationToken() {
+        return QueryEnumerator.continuationToken(lastRow);
+    }
+
+    /**
+     * Releases the database cursor. Rows that haven't been read are no longer available
+     * afterwards. Safe to call more than once.
+     */
+    @Override
+    @InterfaceAudience.Public
+    public void close() {
+        checkThread();
+        forceClose();
+    }
+
+    /**
+     * Closes the stream from any thread; called by Database.close() if the stream was left open.
+     * (The stream's methods are synchronized so this can't close the cursor while it's being read.)
+     */
+    /* package */ synchronized void forceClose() {
+        if (rowIterator != null) {
+            try {
+                rowIterator.close();
+            } finally {
+                rowIterator = null;
+                database.streamClosed(this);
+                storeRef.release();
+            }
+        }
+    }
+
+    @Override
+    public Iterator<QueryRow> iterator() {
+        return this;
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != owner)
+            throw new IllegalStateException(
+                    "A QueryRowStream can only be used on the thread that created it");
+    }
+}
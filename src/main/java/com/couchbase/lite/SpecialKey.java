@@ -17,14 +17,24 @@ package com.couchbase.lite;
  * CBLSpecialKey.h/CBLSpecialKey.m
  *
  * Created by hideki on 8/19/15.
+ *
+ * Emitting a SpecialKey with text as a view key adds the text to the view's full-text index,
+ * which is searched with Query.setFullTextQuery. Emitting one with a GeoRect adds the rectangle
+ * to the view's geo index, which is searched with Query.setBoundingBox or Query.setGeoRadius.
+ * The row's key is then null.
  */
 public class SpecialKey {
     private String text;
+    private GeoRect rect;
 
     public SpecialKey(String text) {
         this.text = text;
     }
 
+    public SpecialKey(GeoRect rect) {
+        this.rect = rect;
+    }
+
     public String getText() {
         return text;
     }
@@ -33,12 +43,20 @@ public class SpecialKey {
         this.text = text;
     }
 
+    public GeoRect getRect() {
+        return rect;
+    }
+
     @Override
     public String toString() {
         if (text != null)
             return "SpecialKey{" +
                     "text='" + text + '\'' +
                     '}';
+        else if (rect != null)
+            return "SpecialKey{" +
+                    "rect=" + rect +
+                    '}';
         else
             return "SpecialKey{}";
     }
@@ -18,15 +18,19 @@
 package com.couchbase.lite;
 
 import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.store.QueryRowIterator;
 import com.couchbase.lite.store.ViewStore;
 import com.couchbase.lite.store.ViewStoreDelegate;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a view available in a database.
@@ -45,6 +49,8 @@ public final class View implements ViewStoreDelegate {
     private static ViewCompiler compiler;
     private ViewStore viewStore;
     private boolean isDesignDoc = false;
+    private boolean incrementalReduce = false;
+    private QueryCache queryCache;
 
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -106,6 +112,26 @@ public final class View implements ViewStoreDelegate {
         database.setViewDocumentType(docType, name);
     }
 
+    /**
+     * Get whether reduced queries use the view's persistent reduce index.
+     */
+    @Override
+    @InterfaceAudience.Public
+    public boolean isIncrementalReduce() {
+        return incrementalReduce;
+    }
+
+    /**
+     * Set whether reduced queries use a persistent index of partial reductions, which is updated
+     * incrementally as the view's index changes, instead of reducing every matching row on each
+     * query. The reduce function is then also called with rereduce=true, to combine partial
+     * reductions, so it must support that. This property is not persistent.
+     */
+    @InterfaceAudience.Public
+    public void setIncrementalReduce(boolean incrementalReduce) {
+        this.incrementalReduce = incrementalReduce;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // API (CBLView.h/CBLView.m)
     ///////////////////////////////////////////////////////////////////////////
@@ -146,6 +172,9 @@ public final class View implements ViewStoreDelegate {
      * might do it inadvertently!  The callback may be called on any thread, or on
      * multiple threads simultaneously. This won't be a problem if the code is "pure" as
      * described above, since it will as a consequence also be thread-safe.
+     * <p/>
+     * The reduce block may be one of the built-in reducers (see BuiltInReducer), which are
+     * evaluated by the database instead of being called for every row.
      */
     @InterfaceAudience.Public
     public boolean setMapReduce(Mapper mapBlock, Reducer reduceBlock, String version) {
@@ -156,6 +185,7 @@ public final class View implements ViewStoreDelegate {
         this.reduceBlock = reduceBlock;
         this.version = version;
         viewStore.setVersion(version); // for SQLite
+        clearQueryCache();
         return changed;
     }
 
@@ -204,6 +234,7 @@ public final class View implements ViewStoreDelegate {
     @InterfaceAudience.Public
     public void deleteIndex() {
         viewStore.deleteIndex();
+        clearQueryCache();
     }
 
     /**
@@ -280,6 +311,7 @@ public final class View implements ViewStoreDelegate {
     @InterfaceAudience.Private
     public void setCollation(TDViewCollation collation) {
         viewStore.setCollation(collation);
+        clearQueryCache();
     }
 
     /**
@@ -353,12 +385,151 @@ public final class View implements ViewStoreDelegate {
     public List<QueryRow> query(QueryOptions options) throws CouchbaseLiteException {
         if (options == null)
             options = new QueryOptions();
+        String cacheKey = queryCacheKey(options);
+        if (cacheKey != null)
+            return cachedQuery(cacheKey, options);
         if (groupOrReduce(options))
             return viewStore.reducedQuery(options);
         else
             return viewStore.regularQuery(options);
     }
 
+    /**
+     * Queries the view, reading the result rows as they're iterated. Does NOT first update the
+     * index.
+     *
+     * @param options The options to use.
+     * @return An iterator over the QueryRow objects, which must be read to the end or closed.
+     */
+    @InterfaceAudience.Private
+    public QueryRowIterator queryIterator(QueryOptions options) throws CouchbaseLiteException {
+        if (options == null)
+            options = new QueryOptions();
+        String cacheKey = queryCacheKey(options);
+        if (cacheKey != null)
+            return QueryRowIterator.fromList(cachedQuery(cacheKey, options));
+        if (groupOrReduce(options))
+            return QueryRowIterator.fromList(viewStore.reducedQuery(options));
+        else
+            return viewStore.regularQueryIterator(options);
+    }
+
+    /**
+     * Brings the result of a query up to date after the given documents changed, given its
+     * previous result rows. Does NOT first update the index.
+     *
+     * @return The updated rows, or null if the query has to be rerun instead (e.g. because it's
+     * reduced or grouped).
+     */
+    @InterfaceAudience.Private
+    public List<QueryRow> updateQuery(QueryOptions options,
+                                      List<QueryRow> previousRows,
+                                      Set<String> changedDocIDs)
+            throws CouchbaseLiteException {
+        if (groupOrReduce(options))
+            return null;
+        return viewStore.updateRegularQuery(options, previousRows, changedDocIDs);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Query result cache
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Caches the results of queries: while the view's index is unchanged, repeating a query with
+     * the same options returns the same rows without reading the index. Their keys, values and
+     * document properties are then immutable (unmodifiable Maps and Lists). The cache
+     * holds at most maxRows result rows in total; 0 disables it, which is the default.
+     * Queries with a postFilter aren't cached. This property is not persistent.
+     */
+    @InterfaceAudience.Public
+    public void setQueryCacheSize(int maxRows) {
+        synchronized (this) {
+            if (maxRows <= 0)
+                queryCache = null;
+            else if (queryCache == null)
+                queryCache = new QueryCache(maxRows);
+            else
+                queryCache.resize(maxRows);
+        }
+    }
+
+    /**
+     * The number of queries answered from the query result cache.
+     */
+    @InterfaceAudience.Public
+    public int getQueryCacheHitCount() {
+        QueryCache cache = getQueryCache();
+        return cache != null ? cache.hitCount() : 0;
+    }
+
+    /**
+     * The number of cacheable queries that had to read the index.
+     */
+    @InterfaceAudience.Public
+    public int getQueryCacheMissCount() {
+        QueryCache cache = getQueryCache();
+        return cache != null ? cache.missCount() : 0;
+    }
+
+    /**
+     * Empties the query result cache. Called when the index changes without its last sequence
+     * changing, e.g. when documents are purged.
+     */
+    @InterfaceAudience.Private
+    protected void clearQueryCache() {
+        QueryCache cache = getQueryCache();
+        if (cache != null)
+            cache.evictAll();
+    }
+
+    private synchronized QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    private String queryCacheKey(QueryOptions options) {
+        if (getQueryCache() == null)
+            return null;
+        String optionsKey = options.getCacheKey();
+        if (optionsKey == null)
+            return null;
+        return viewStore.getLastSequenceIndexed() + ":" + optionsKey;
+    }
+
+    private List<QueryRow> cachedQuery(String cacheKey, QueryOptions options)
+            throws CouchbaseLiteException {
+        QueryCache cache = getQueryCache();
+        List<QueryRow> rows = cache != null ? cache.get(cacheKey) : null;
+        if (rows != null)
+            return rows;
+        if (groupOrReduce(options))
+            rows = viewStore.reducedQuery(options);
+        else
+            rows = viewStore.regularQuery(options);
+        // Every caller gets the same rows, so nothing reachable from them may be changed:
+        for (QueryRow row : rows)
+            row.freeze();
+        rows = Collections.unmodifiableList(rows);
+        if (cache != null)
+            cache.put(cacheKey, rows);
+        return rows;
+    }
+
+    /**
+     * LRU cache of query results, keyed by last sequence indexed and QueryOptions.getCacheKey(),
+     * whose size is the total number of rows.
+     */
+    private static class QueryCache extends LruCache<String, List<QueryRow>> {
+        QueryCache(int maxRows) {
+            super(maxRows);
+        }
+
+        @Override
+        protected int sizeOf(String key, List<QueryRow> rows) {
+            return Math.max(rows.size(), 1);
+        }
+    }
+
     /**
      * Gets whether the view is a design doc view.
      * @return Whether the view is a design doc view.
@@ -406,7 +577,9 @@ public final class View implements ViewStoreDelegate {
     }
 
     private boolean groupOrReduce(QueryOptions options) {
-        if (options.isGroup() || options.getGroupLevel() > 0)
+        if (options.getFullTextQuery() != null || options.getBoundingBox() != null)
+            return false; // full-text and geo queries aren't reduced
+        else if (options.isGroup() || options.getGroupLevel() > 0)
             return true;
         else if (options.isReduceSpecified())
             return options.isReduce();
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps the indexes of a Database's registered views up to date in the background, so that
+ * queries rarely have to wait for indexing.
+ * <p/>
+ * The scheduler listens for database changes. A burst of changes is coalesced: the views are
+ * updated once, coalesceDelay after the first change of the burst. Views are updated in order
+ * of descending priority, each together with the other views in its group (see
+ * View.updateIndex). If an update pass runs longer than the latency budget, it stops after the
+ * current view group and the rest are updated in a new pass, which lets other tasks on the
+ * executor run in between.
+ * <p/>
+ * Obtained from Database.getViewIndexScheduler(); it does nothing until it's started.
+ */
+public final class ViewIndexScheduler implements Database.ChangeListener {
+    private static final String TAG = Log.TAG_VIEW;
+
+    public static final long DEFAULT_COALESCE_DELAY = 250;  // ms
+    public static final long DEFAULT_LATENCY_BUDGET = 500;  // ms
+    private static final long STOP_TIMEOUT = 10 * 1000;     // ms
+
+    private final Database database;
+    private final Map<String, Integer> priorities = new HashMap<String, Integer>();
+    private ScheduledExecutorService executor;
+    private boolean ownsExecutor;
+    private long coalesceDelay = DEFAULT_COALESCE_DELAY;
+    private long latencyBudget = DEFAULT_LATENCY_BUDGET;
+    private boolean started;
+    private boolean scheduled;    // an update pass is scheduled and hasn't started yet
+    private Future<?> scheduledPass;  // the pass that's scheduled and hasn't started yet
+    private Future<?> runningPass;    // the last pass that started
+
+    ViewIndexScheduler(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Registers a view whose index should be kept up to date. Views with a higher priority
+     * are updated first.
+     */
+    @InterfaceAudience.Public
+    public synchronized void registerView(View view, int priority) {
+        priorities.put(view.getName(), priority);
+        if (started)
+            schedule(0);
+    }
+
+    /**
+     * Stops keeping a view's index up to date.
+     */
+    @InterfaceAudience.Public
+    public synchronized void unregisterView(View view) {
+        priorities.remove(view.getName());
+    }
+
+    /**
+     * Sets the executor the indexes are updated on. By default the scheduler uses its own
+     * thread. Must be called before start().
+     */
+    @InterfaceAudience.Public
+    public synchronized void setExecutor(ScheduledExecutorService executor) {
+        if (started)
+            throw new IllegalStateException("ViewIndexScheduler has already been started");
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    /**
+     * Sets how long (in milliseconds) to wait after a change for further changes, before
+     * updating the indexes.
+     */
+    @InterfaceAudience.Public
+    public synchronized void setCoalesceDelay(long coalesceDelay) {
+        this.coalesceDelay = coalesceDelay;
+    }
+
+    /**
+     * Sets how long (in milliseconds) one update pass may run before it yields the executor.
+     */
+    @InterfaceAudience.Public
+    public synchronized void setLatencyBudget(long latencyBudget) {
+        this.latencyBudget = latencyBudget;
+    }
+
+    /**
+     * Starts keeping the registered views' indexes up to date, beginning with bringing them up
+     * to date now.
+     */
+    @InterfaceAudience.Public
+    public synchronized void start() {
+        if (started)
+            return;
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLViewIndexScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownsExecutor = true;
+        }
+        started = true;
+        database.addChangeListener(this);
+        schedule(0);
+    }
+
+    /**
+     * Stops updating the indexes. An update pass that's running finishes its current view group,
+     * and stop() waits (for up to STOP_TIMEOUT) until it has, so the database can be closed.
+     */
+    @InterfaceAudience.Public
+    public void stop() {
+        Future<?> pendingPass;
+        Future<?> lastPass;
+        ScheduledExecutorService ownedExecutor = null;
+        synchronized (this) {
+            if (!started)
+                return;
+            started = false;
+            scheduled = false;
+            database.removeChangeListener(this);
+            pendingPass = scheduledPass;
+            lastPass = runningPass;
+            scheduledPass = null;
+            runningPass = null;
+            if (ownsExecutor) {
+                ownedExecutor = executor;
+                executor = null;
+                ownsExecutor = false;
+            }
+        }
+
+        if (pendingPass != null)
+            pendingPass.cancel(false);
+        // Not while synchronized, as the pass synchronizes between view groups:
+        if (lastPass != null) {
+            try {
+                lastPass.get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (CancellationException e) {
+                // It was cancelled before it started
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error in the background update of the view indexes of %s", e,
+                        database.getName());
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Timed out waiting for the background update of the view indexes " +
+                        "of %s to finish", database.getName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ownedExecutor != null)
+            ownedExecutor.shutdown();
+    }
+
+    @InterfaceAudience.Public
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    @Override
+    public void changed(Database.ChangeEvent event) {
+        synchronized (this) {
+            if (started)
+                schedule(coalesceDelay);
+        }
+    }
+
+    // Must be called while synchronized:
+    private void schedule(long delay) {
+        if (scheduled)
+            return; // the scheduled pass will see this change too
+        scheduled = true;
+        scheduledPass = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                updateIndexes();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * An update pass: updates the stale registered views, in order of priority, until the
+     * latency budget runs out.
+     */
+    private void updateIndexes() {
+        List<String> viewNames;
+        long budget;
+        synchronized (this) {
+            scheduled = false;
+            runningPass = scheduledPass;
+            scheduledPass = null;
+            if (!started)
+                return;
+            viewNames = new ArrayList<String>(priorities.keySet());
+            final Map<String, Integer> viewPriorities = new HashMap<String, Integer>(priorities);
+            Collections.sort(viewNames, new Comparator<String>() {
+                @Override
+                public int compare(String name1, String name2) {
+                    return viewPriorities.get(name2).compareTo(viewPriorities.get(name1));
+                }
+            });
+            budget = latencyBudget;
+        }
+
+        long start = System.currentTimeMillis();
+        for (String viewName : viewNames) {
+            synchronized (this) {
+                if (!started)
+                    return;
+            }
+            if (!database.isOpen())
+                return;
+            if (System.currentTimeMillis() - start > budget) {
+                // Yield, and carry on in a new pass:
+                synchronized (this) {
+                    if (started)
+                        schedule(0);
+                }
+                return;
+            }
+            try {
+                View view = database.getExistingView(viewName);
+                if (view != null && view.isStale())
+                    view.updateIndex();
+            } catch (CouchbaseLiteException e) {
+                Log.e(TAG, "Error updating the index of view %s in the background", e, viewName);
+            } catch (RuntimeException e) {
+                // The database was closed during the update (which may surface as an
+                // IllegalStateException from SQLite, not only a CouchbaseLiteRuntimeException)
+                Log.w(TAG, "Couldn't update the index of view %s in the background", e, viewName);
+                return;
+            }
+        }
+        Log.v(TAG, "Updated view indexes of %s in the background in %d ms",
+                database.getName(), System.currentTimeMillis() - start);
+    }
+}
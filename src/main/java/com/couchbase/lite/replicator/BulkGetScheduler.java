@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.util.Log;
+
+/**
+ * Decides how many revisions a puller asks for in each _bulk_get request, and how many of those
+ * requests it keeps in flight, from the response sizes and times it observes (AIMD):
+ * <ul>
+ * <li>The batch size grows by a step while responses arrive within the target response time,
+ * and halves when they take longer or fail. It's also limited so a response shouldn't exceed
+ * MAX_RESPONSE_BYTES, given the average size of a revision so far.</li>
+ * <li>The window (requests in flight) grows by about one per round of responses, and halves
+ * when a request fails or takes far longer than the target.</li>
+ * <li>No request is started while the revisions already downloaded and waiting to be inserted,
+ * plus those expected from the requests in flight, exceed MAX_BUFFERED_BYTES.</li>
+ * </ul>
+ * A request can always be started when none is in flight, so pulling never stalls.
+ *
+ * @exclude
+ */
+@InterfaceAudience.Private
+public class BulkGetScheduler {
+    private static final String TAG = Log.TAG_SYNC;
+
+    public static final int MIN_BATCH_SIZE = 10;
+    public static final int INITIAL_BATCH_SIZE = 50;
+    public static final int MAX_BATCH_SIZE = 500;
+    private static final int BATCH_SIZE_STEP = 10;
+
+    private static final int INITIAL_WINDOW = 2;
+    private static final long TARGET_RESPONSE_TIME = 2000;           // ms
+    private static final long MAX_RESPONSE_BYTES = 2 * 1024 * 1024;  // 2MB
+    private static final long MAX_BUFFERED_BYTES = 8 * 1024 * 1024;  // 8MB
+
+    private final int maxWindow;
+    private int batchSize = INITIAL_BATCH_SIZE;
+    private double window = INITIAL_WINDOW;
+    private int inFlight;
+    private double bytesPerRevision;  // moving average; 0 until the first response
+
+    public BulkGetScheduler(int maxWindow) {
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * The number of revisions to ask for in the next request.
+     */
+    public synchronized int getBatchSize() {
+        int size = batchSize;
+        if (bytesPerRevision > 0)
+            size = Math.min(size, (int) (MAX_RESPONSE_BYTES / bytesPerRevision));
+        return Math.max(size, MIN_BATCH_SIZE);
+    }
+
+    /**
+     * Can another request be started now?
+     *
+     * @param bufferedBytes The size of the downloaded revisions not yet inserted.
+     */
+    public synchronized boolean canStartRequest(long bufferedBytes) {
+        if (inFlight == 0)
+            return true;
+        if (inFlight >= (int) window)
+            return false;
+        long expectedBytes = (long) (inFlight * batchSize * bytesPerRevision);
+        return bufferedBytes + expectedBytes < MAX_BUFFERED_BYTES;
+    }
+
+    public synchronized int getRequestsInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Records that a request has been queued.
+     */
+    public synchronized void requestQueued() {
+        inFlight++;
+    }
+
+    /**
+     * Records that a request has finished.
+     *
+     * @param revisions    The number of revisions received.
+     * @param bytes        Their total size.
+     * @param responseTime How long the request took since it started running, in ms.
+     * @param failed       Whether the request failed.
+     */
+    public synchronized void requestFinished(int revisions, long bytes, long responseTime,
+                                             boolean failed) {
+        inFlight--;
+        if (revisions > 0) {
+            double average = (double) bytes / revisions;
+            bytesPerRevision = bytesPerRevision > 0 ?
+                    0.8 * bytesPerRevision + 0.2 * average : average;
+        }
+
+        if (failed || responseTime > TARGET_RESPONSE_TIME) {
+            batchSize = Math.max(batchSize / 2, MIN_BATCH_SIZE);
+        } else if (revisions >= batchSize / 2) {
+            // (Only a response to a full-sized request shows the batch size could grow)
+            batchSize = Math.min(batchSize + BATCH_SIZE_STEP, MAX_BATCH_SIZE);
+        }
+
+        if (failed || responseTime > 4 * TARGET_RESPONSE_TIME)
+            window = Math.max(window / 2, 1);
+        else
+            window = Math.min(window + 1 / window, maxWindow);
+
+        Log.v(TAG, "BulkGetScheduler: %d revs, %d bytes in %d ms%s -> batch size %d, window %.1f",
+                revisions, bytes, responseTime, failed ? " (failed)" : "", batchSize, window);
+    }
+}
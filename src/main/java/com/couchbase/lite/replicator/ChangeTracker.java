@@ -36,6 +36,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import okhttp3.Call;
@@ -45,10 +47,14 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
 
 /**
- * Reads the continuous-mode _changes feed of a database, and sends the
- * individual change entries to its client's changeTrackerReceivedChange()
+ * Reads the _changes feed of a database, and sends the individual change entries to its
+ * client's changeTrackerReceivedChange(). It starts with a OneShot feed; for a continuous
+ * replication it then switches to a Continuous (or LongPoll) feed.
  *
  * @exclude
  */
@@ -70,6 +76,7 @@ public class ChangeTracker implements Runnable {
     private boolean activeOnly = false;
 
     private ChangeTrackerMode mode;
+    private ChangeTrackerMode caughtUpMode = ChangeTrackerMode.Continuous; // see setCaughtUpMode
     private String filterName;
     private Map<String, Object> filterParams;
     private int limit;
@@ -84,6 +91,7 @@ public class ChangeTracker implements Runnable {
     private boolean running = false;
     private Request request;
     private Call call;
+    private WebSocket webSocket;
     private InputStream inputStream = null;
     protected ChangeTrackerBackoff backoff;
     private long startTime = 0;
@@ -93,7 +101,8 @@ public class ChangeTracker implements Runnable {
     public enum ChangeTrackerMode {
         OneShot,
         LongPoll,
-        Continuous  // does not work, do not use it.
+        Continuous,
+        WebSocket   // Sync Gateway only
     }
 
     public ChangeTracker(URL databaseURL, ChangeTrackerMode mode, boolean includeConflicts,
@@ -117,6 +126,16 @@ public class ChangeTracker implements Runnable {
         this.continuous = continuous;
     }
 
+    /**
+     * Sets the mode a continuous replication's tracker switches to once the OneShot feed has
+     * caught up: Continuous (the default), LongPoll or WebSocket. Continuous falls back to
+     * LongPoll if the connection is closed before anything arrives, e.g. by a proxy that buffers
+     * responses, and WebSocket falls back to Continuous if the server rejects the WebSocket.
+     */
+    public void setCaughtUpMode(ChangeTrackerMode caughtUpMode) {
+        this.caughtUpMode = caughtUpMode;
+    }
+
     public void setFilterName(String filterName) {
         this.filterName = filterName;
     }
@@ -145,6 +164,8 @@ public class ChangeTracker implements Runnable {
                 return "longpoll";
             case Continuous:
                 return "continuous";
+            case WebSocket:
+                return "websocket";
         }
         return "normal";
     }
@@ -258,7 +279,7 @@ public class ChangeTracker implements Runnable {
         // If the error may be transient (flaky network, server glitch), retry:
         // condition: non-permanent error && (continuous or transient)
         if (!Utils.isPermanentError(resp) &&
-                (mode == ChangeTrackerMode.LongPoll || Utils.isTransientError(resp))) {
+                (mode != ChangeTrackerMode.OneShot || Utils.isTransientError(resp))) {
             return false;
         } else {
             Log.w(Log.TAG_CHANGE_TRACKER, "%s: Change tracker got error %d", this, resp.code());
@@ -300,13 +321,6 @@ public class ChangeTracker implements Runnable {
             return;
         }
 
-        if (mode == ChangeTrackerMode.Continuous) {
-            // there is a failing unit test for this, and from looking at the code the Replication
-            // object will never use Continuous mode anyway.  Explicitly prevent its use until
-            // it is demonstrated to actually work.
-            throw new RuntimeException("ChangeTracker does not correctly support continuous mode");
-        }
-
         OkHttpClient httpClient = client.getOkHttpClient();
 
         backoff = new ChangeTrackerBackoff();
@@ -314,6 +328,12 @@ public class ChangeTracker implements Runnable {
         while (running) {
             startTime = System.currentTimeMillis();
 
+            if (mode == ChangeTrackerMode.WebSocket) {
+                if (!runWebSocket(httpClient))
+                    break;
+                continue;
+            }
+
             Request.Builder builder = new Request.Builder();
             URL url = getChangesFeedURL();
             builder.url(url);
@@ -406,6 +426,24 @@ public class ChangeTracker implements Runnable {
                                         break;
                                     }
                                 }
+                            } else if (mode == ChangeTrackerMode.Continuous) {
+                                int count = readContinuousFeed(inputStream);
+                                if (count < 0) {
+                                    Log.d(Log.TAG_CHANGE_TRACKER, "%s: Change tracker calling stop (Continuous)", this);
+                                    client.changeTrackerFinished(this);
+                                    break;
+                                }
+                                long elapsed = (System.currentTimeMillis() - startTime) / 1000;
+                                if (count == 0 && elapsed < getHeartbeatMilliseconds() / 1000) {
+                                    // Closed before even a heartbeat was due, so something in
+                                    // between (e.g. a proxy) may not pass the feed through as it
+                                    // streams. Fall back to long polling:
+                                    Log.w(Log.TAG_CHANGE_TRACKER, "%s: Continuous feed closed after %d sec; switching to longpoll", this, elapsed);
+                                    mode = ChangeTrackerMode.LongPoll;
+                                }
+                                Log.v(Log.TAG_CHANGE_TRACKER, "%s: Reconnecting %s feed", this, getFeed());
+                                backoff.resetBackoff();
+                                continue;
                             } else {  // one-shot replications
                                 Log.v(Log.TAG_CHANGE_TRACKER, "%s: readValue (oneshot)", this);
                                 JsonFactory factory = new JsonFactory();
@@ -431,7 +469,7 @@ public class ChangeTracker implements Runnable {
                                 Log.v(Log.TAG_CHANGE_TRACKER, "%s: /readValue (oneshot)", this);
                                 client.changeTrackerCaughtUp();
                                 if (isContinuous()) {  // if enclosing replication is continuous
-                                    mode = ChangeTrackerMode.LongPoll;
+                                    mode = caughtUpMode;
                                 } else {
                                     Log.d(Log.TAG_CHANGE_TRACKER, "%s: Change tracker calling stop (OneShot)", this);
                                     client.changeTrackerFinished(this);
@@ -467,6 +505,174 @@ public class ChangeTracker implements Runnable {
         Log.v(Log.TAG_CHANGE_TRACKER, "%s: Change tracker run loop exiting", this);
     }
 
+    /**
+     * Receives changes over a WebSocket (feed=websocket) until it's closed. The feed options are
+     * sent as the first message; the server then sends each batch of changes as a JSON array,
+     * an empty one meaning it has caught up. okhttp pings the server every heartbeat interval.
+     * While the tracker is paused, the socket's reader thread waits in receivedChange, so the
+     * server is held back by TCP flow control.
+     *
+     * @return false if the tracker should stop
+     */
+    private boolean runWebSocket(OkHttpClient httpClient) {
+        OkHttpClient webSocketClient = httpClient.newBuilder()
+                .pingInterval(getHeartbeatMilliseconds(), TimeUnit.MILLISECONDS)
+                .build();
+        URL url = getChangesFeedURL();
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", Manager.getUserAgent());
+        addRequestHeaders(builder);
+        builder = RequestUtils.preemptivelySetAuthCredentials(builder, url, authenticator);
+        request = builder.build();
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        final boolean[] opened = {false};
+        final boolean[] serverError = {false};
+        final Throwable[] failure = {null};
+        final Response[] failureResponse = {null};
+        Log.v(Log.TAG_CHANGE_TRACKER, "%s: Opening WebSocket to %s", this, URLUtils.sanitizeURL(url));
+        webSocket = webSocketClient.newWebSocket(request, new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket socket, Response response) {
+                opened[0] = true;
+                socket.send(changesFeedPOSTBody());
+            }
+
+            @Override
+            public void onMessage(WebSocket socket, String text) {
+                if (!receivedWebSocketMessage(text)) {
+                    serverError[0] = true;
+                    socket.close(1000, null);
+                }
+            }
+
+            @Override
+            public void onMessage(WebSocket socket, ByteString bytes) {
+                onMessage(socket, bytes.utf8());
+            }
+
+            @Override
+            public void onClosing(WebSocket socket, int code, String reason) {
+                socket.close(1000, null);
+            }
+
+            @Override
+            public void onClosed(WebSocket socket, int code, String reason) {
+                closed.countDown();
+            }
+
+            @Override
+            public void onFailure(WebSocket socket, Throwable t, Response response) {
+                failure[0] = t;
+                failureResponse[0] = response;
+                closed.countDown();
+            }
+        });
+
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            webSocket.cancel();
+            return false;
+        } finally {
+            webSocket = null;
+        }
+
+        if (!running)
+            return false;
+        if (serverError[0]) {
+            Log.d(Log.TAG_CHANGE_TRACKER, "%s: Change tracker calling stop (WebSocket)", this);
+            client.changeTrackerFinished(this);
+            return false;
+        }
+        if (failure[0] != null) {
+            if (!opened[0] && failureResponse[0] != null) {
+                // The server didn't accept the WebSocket handshake, so it doesn't support it:
+                Log.w(Log.TAG_CHANGE_TRACKER, "%s: WebSocket rejected with status %d; switching to continuous feed",
+                        this, failureResponse[0].code());
+                RequestUtils.closeResponseBody(failureResponse[0]);
+                mode = ChangeTrackerMode.Continuous;
+                return true;
+            }
+            Log.w(Log.TAG_CHANGE_TRACKER, this + ": WebSocket failed", failure[0]);
+            this.error = failure[0];
+            backoff.sleepAppropriateAmountOfTime();
+            return true;
+        }
+        Log.v(Log.TAG_CHANGE_TRACKER, "%s: WebSocket closed; reconnecting", this);
+        backoff.resetBackoff();
+        return true;
+    }
+
+    /**
+     * Handles a message from a WebSocket feed: a JSON array of changes, or an error object.
+     *
+     * @return false if the server sent an error
+     */
+    private boolean receivedWebSocketMessage(String message) {
+        Object parsed;
+        try {
+            parsed = Manager.getObjectMapper().readValue(message, Object.class);
+        } catch (IOException e) {
+            Log.w(Log.TAG_CHANGE_TRACKER, "%s: Received unparseable message from server: %s", this, message);
+            return true;
+        }
+        if (parsed instanceof Map) {
+            Map<?, ?> error = (Map<?, ?>) parsed;
+            setUpstreamError(String.format(Locale.ENGLISH, "%s: %s",
+                    error.get("error"), error.get("reason")));
+            return false;
+        }
+        if (!(parsed instanceof List))
+            return true;
+        List<Map<String, Object>> changes = (List<Map<String, Object>>) parsed;
+        if (changes.isEmpty()) {
+            if (!caughtUp && running) {
+                caughtUp = true;
+                client.changeTrackerCaughtUp();
+            }
+            return true;
+        }
+        for (Map<String, Object> change : changes) {
+            if (!running)
+                break;
+            if (!receivedChange(change))
+                Log.w(Log.TAG_CHANGE_TRACKER, "Received unparseable change line from server: %s", change);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a continuous _changes feed, which is a JSON object per line, passing each change to
+     * the client as soon as it has been parsed. Heartbeats are blank lines, which the parser
+     * skips as whitespace between the objects.
+     *
+     * @return the number of changes read until the feed ended, or -1 if the server sent an error
+     */
+    private int readContinuousFeed(InputStream in) throws IOException {
+        int count = 0;
+        JsonParser jp = Manager.getObjectMapper().getFactory().createParser(in);
+        try {
+            while (running && jp.nextToken() == JsonToken.START_OBJECT) {
+                Map<String, Object> change = Manager.getObjectMapper().readValue(jp, Map.class);
+                if (change.containsKey("last_seq"))
+                    break; // the server ended the feed, e.g. because its timeout expired
+                if (change.containsKey("error")) {
+                    setUpstreamError(String.format(Locale.ENGLISH, "%s: %s",
+                            change.get("error"), change.get("reason")));
+                    return -1;
+                }
+                if (!receivedChange(change))
+                    Log.w(Log.TAG_CHANGE_TRACKER, "Received unparseable change line from server: %s", change);
+                count++;
+            }
+        } finally {
+            jp.close();
+        }
+        return count;
+    }
+
     public boolean receivedChange(final Map<String, Object> change) {
         // wait if paused flag is on.
         waitIfPaused();
@@ -527,6 +733,10 @@ public class ChangeTracker implements Runnable {
         // Awake thread if it is wait for pause
         setPaused(false);
 
+        WebSocket socket = webSocket;
+        if (socket != null)
+            socket.cancel();
+
         if (call != null) {
             String sanitizedUrl = URLUtils.sanitizeURL(request.url().url());
             Log.d(Log.TAG_CHANGE_TRACKER, "%s: Changed tracker aborting request: %s", this, request);
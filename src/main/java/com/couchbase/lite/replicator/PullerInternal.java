@@ -65,7 +65,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
     private static final int MAX_OPEN_HTTP_CONNECTIONS = 16;
 
-    // Maximum number of revs to fetch in a single bulk request
+    // Maximum number of revs to fetch in a single _all_docs request. (The size of _bulk_get
+    // requests is adapted by the BulkGetScheduler.)
     public static final int MAX_REVS_TO_GET_IN_BULK = 50;
 
     // Maximum number of revision IDs to pass in an "?atts_since=" query param
@@ -91,6 +92,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     protected List<RevisionInternal> deletedRevsToPull = Collections.synchronizedList(
             new ArrayList<RevisionInternal>(100));
     protected int httpConnectionCount;
+    protected BulkGetScheduler bulkGetScheduler = new BulkGetScheduler(MAX_OPEN_HTTP_CONNECTIONS);
     protected Batcher<RevisionInternal> downloadsToInsert;
     protected AtomicLong queuedMemorySize = new AtomicLong(0);
 
@@ -129,10 +131,18 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                     INSERTION_BATCHER_CAPACITY, INSERTION_BATCHER_DELAY, new BatchProcessor<RevisionInternal>() {
                 @Override
                 public void process(List<RevisionInternal> inbox) {
+                    long size = 0;
+                    for (RevisionInternal rev : inbox) {
+                        if (rev.getBody() != null)
+                            size += rev.getBody().getSize();
+                    }
                     insertDownloads(inbox);
-                    if (downloadsToInsert.count() == 0) {
+                    // Release exactly what this batch held, so revisions queued meanwhile by
+                    // other downloaders stay counted against MAX_QUEUE_MEMORY_SIZE:
+                    if (downloadsToInsert.count() == 0)
                         queuedMemorySize.set(0);
-                    }
+                    else
+                        queuedMemorySize.addAndGet(-size);
                 }
             });
         }
@@ -166,7 +176,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         ChangeTracker.ChangeTrackerMode changeTrackerMode;
 
         // it always starts out as OneShot, but if its a continuous replication
-        // it will switch to longpoll later.
+        // it will switch to the caught-up mode later.
         changeTrackerMode = ChangeTracker.ChangeTrackerMode.OneShot;
 
         Log.d(TAG, "%s: starting ChangeTracker with since=%s mode=%s",
@@ -184,6 +194,10 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         changeTracker.setDocIDs(documentIDs);
         changeTracker.setRequestHeaders(requestHeaders);
         changeTracker.setContinuous(lifecycle == Replication.Lifecycle.CONTINUOUS);
+        // Once caught up, a continuous replication keeps receiving changes over a WebSocket if the
+        // server is a Sync Gateway (the tracker falls back if it's rejected), else a continuous feed:
+        changeTracker.setCaughtUpMode(serverIsSyncGatewayVersion("1.1") ?
+                ChangeTracker.ChangeTrackerMode.WebSocket : ChangeTracker.ChangeTrackerMode.Continuous);
         changeTracker.setActiveOnly(lastSequence == null && db.getDocumentCount() == 0);
         changeTracker.start();
     }
@@ -271,12 +285,18 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
     public void pullRemoteRevisions() {
         //find the work to be done in a synchronized block
         List<RevisionInternal> workToStartNow = new ArrayList<RevisionInternal>();
-        List<RevisionInternal> bulkWorkToStartNow = new ArrayList<RevisionInternal>();
+        List<List<RevisionInternal>> bulkWorkToStartNow = new ArrayList<List<RevisionInternal>>();
 
         synchronized (bulkRevsToPull) {
-            while (httpConnectionCount + workToStartNow.size() < MAX_OPEN_HTTP_CONNECTIONS) {
-                int nBulk = (bulkRevsToPull.size() < MAX_REVS_TO_GET_IN_BULK) ?
-                        bulkRevsToPull.size() : MAX_REVS_TO_GET_IN_BULK;
+            while (httpConnectionCount + workToStartNow.size() + bulkWorkToStartNow.size()
+                    < MAX_OPEN_HTTP_CONNECTIONS) {
+                int nBulk = 0;
+                if (!Boolean.TRUE.equals(canBulkGet)) {
+                    nBulk = Math.min(bulkRevsToPull.size(), MAX_REVS_TO_GET_IN_BULK);
+                } else if (bulkRevsToPull.size() > 0 &&
+                        bulkGetScheduler.canStartRequest(queuedMemorySize.get())) {
+                    nBulk = Math.min(bulkRevsToPull.size(), bulkGetScheduler.getBatchSize());
+                }
 
                 if (nBulk == 1) {
                     // Rather than pulling a single revision in 'bulk', just pull it normally:
@@ -285,8 +305,11 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                 }
 
                 if (nBulk > 0) {
-                    bulkWorkToStartNow.addAll(bulkRevsToPull.subList(0, nBulk));
+                    bulkWorkToStartNow.add(
+                            new ArrayList<RevisionInternal>(bulkRevsToPull.subList(0, nBulk)));
                     bulkRevsToPull.subList(0, nBulk).clear();
+                    if (Boolean.TRUE.equals(canBulkGet))
+                        bulkGetScheduler.requestQueued();
                 } else {
                     // Prefer to pull an existing revision over a deleted one:
                     if (revsToPull.size() == 0 && deletedRevsToPull.size() == 0) {
@@ -301,8 +324,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
         }
 
         //actually run it outside the synchronized block
-        if (bulkWorkToStartNow.size() > 0) {
-            pullBulkRevisions(bulkWorkToStartNow);
+        for (List<RevisionInternal> bulkWork : bulkWorkToStartNow) {
+            pullBulkRevisions(bulkWork);
         }
 
         for (RevisionInternal work : workToStartNow) {
@@ -327,6 +350,8 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         Log.v(TAG, "%s: POST _bulk_get", this);
         final List<RevisionInternal> remainingRevs = new ArrayList<RevisionInternal>(bulkRevs);
+        final AtomicLong receivedBytes = new AtomicLong(0);
+        final long[] startTime = {0};
 
         ++httpConnectionCount;
 
@@ -341,6 +366,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                     this.requestHeaders,
                     new RemoteBulkDownloaderRequest.BulkDownloaderDocument() {
                         public void onDocument(Map<String, Object> props, long size) {
+                            receivedBytes.addAndGet(size);
                             // Got a revision!
                             // Find the matching revision in 'remainingRevs' and get its sequence:
                             RevisionInternal rev;
@@ -376,6 +402,11 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                                 setError(e);
                                 completedChangesCount.addAndGet(remainingRevs.size());
                             }
+                            long responseTime = startTime[0] > 0 ?
+                                    System.currentTimeMillis() - startTime[0] : 0;
+                            bulkGetScheduler.requestFinished(
+                                    bulkRevs.size() - remainingRevs.size(),
+                                    receivedBytes.get(), responseTime, e != null);
                             --httpConnectionCount;
                             // Start another task if there are still revisions waiting to be pulled:
                             pullRemoteRevisions();
@@ -387,6 +418,7 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             );
         } catch (Exception e) {
             Log.e(TAG, "%s: pullBulkRevisions Exception: %s", this, e);
+            bulkGetScheduler.requestFinished(0, 0, 0, true);
             return;
         }
 
@@ -396,9 +428,19 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
 
         synchronized (remoteRequestExecutor) {
             if (!remoteRequestExecutor.isShutdown()) {
-                Future future = remoteRequestExecutor.submit(downloader);
+                // The response time is measured from when the request starts running, not from
+                // when it's queued behind others:
+                Future future = remoteRequestExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        startTime[0] = System.currentTimeMillis();
+                        downloader.run();
+                    }
+                });
                 pendingFutures.add(future);
                 cancellables.put(future, downloader);
+            } else {
+                bulkGetScheduler.requestFinished(0, 0, 0, true);
             }
         }
     }
@@ -582,8 +624,9 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
             public boolean run() {
                 boolean success = false;
                 try {
+                    List<RevisionInternal> revs = new ArrayList<RevisionInternal>(downloads.size());
+                    List<List<String>> histories = new ArrayList<List<String>>(downloads.size());
                     for (RevisionInternal rev : downloads) {
-                        long fakeSequence = rev.getSequence();
                         List<String> history = db.parseCouchDBRevisionHistory(rev.getProperties());
                         if (history.isEmpty() && rev.getGeneration() > 1) {
                             Log.w(TAG, "%s: Missing revision history in response for: %s", this, rev);
@@ -592,36 +635,40 @@ public class PullerInternal extends ReplicationInternal implements ChangeTracker
                         }
 
                         Log.v(TAG, "%s: inserting %s %s", this, rev.getDocID(), history);
+                        revs.add(rev);
+                        histories.add(history);
+                    }
 
-                        // Insert the revision
-                        try {
-                            db.forceInsert(rev, history, remote);
-                        } catch (CouchbaseLiteException e) {
-                            if (e.getCBLStatus().getCode() == Status.FORBIDDEN) {
-                                Log.i(TAG, "%s: Remote rev failed validation: %s", this, rev);
-                            } else if (e.getCBLStatus().getCode() == Status.BAD_ATTACHMENT) {
-                                // Revision with broken _attachments metadata (i.e. bogus revpos)
-                                // should not stop replication. Warn and skip it. (iOS #1001)
-                                Log.w(TAG, "%s: Revision %s has invalid attachment metadata: %s", this, rev, rev.getAttachments());
-                            } else {
-                                Log.w(TAG, "%s: failed to write %s: status=%s",
-                                        this, rev, e.getCBLStatus().getCode());
-                                setError(new RemoteRequestResponseException(e.getCBLStatus().getCode(), null));
-                                continue;
-                            }
+                    // Insert the revisions
+                    List<Status> statuses = db.forceInsertBatch(revs, histories, remote);
+                    for (int i = 0; i < revs.size(); i++) {
+                        RevisionInternal rev = revs.get(i);
+                        int code = statuses.get(i).getCode();
+                        if (code == Status.FORBIDDEN) {
+                            Log.i(TAG, "%s: Remote rev failed validation: %s", this, rev);
+                        } else if (code == Status.BAD_ATTACHMENT) {
+                            // Revision with broken _attachments metadata (i.e. bogus revpos)
+                            // should not stop replication. Warn and skip it. (iOS #1001)
+                            Log.w(TAG, "%s: Revision %s has invalid attachment metadata: %s", this, rev, rev.getAttachments());
+                        } else if (statuses.get(i).isError()) {
+                            Log.w(TAG, "%s: failed to write %s: status=%s", this, rev, code);
+                            setError(new RemoteRequestResponseException(code, null));
+                            continue;
                         }
 
                         // NOTE: calling Body.compact() here cause another JSON serialization by Jackson.
                         //       At this point Body.json is null, and Body.object has values.
 
                         // Mark this revision's fake sequence as processed:
-                        pendingSequences.removeSequence(fakeSequence);
+                        pendingSequences.removeSequence(rev.getSequence());
                     }
 
                     Log.v(TAG, "%s: finished inserting %d revisions", this, downloads.size());
                     success = true;
                 } catch (SQLException e) {
                     Log.e(TAG, this + ": Exception inserting revisions", e);
+                } catch (CouchbaseLiteException e) {
+                    Log.e(TAG, this + ": Exception inserting revisions", e);
                 } finally {
                     if (success) {
                         // Checkpoint:
@@ -536,7 +536,7 @@ public class PusherInternal extends ReplicationInternal implements Database.Chan
         bulkDocsBody.put("docs", docsToSend);
         bulkDocsBody.put("new_edits", false);
 
-        CustomFuture future = sendAsyncRequest("POST", "_bulk_docs", bulkDocsBody, new RemoteRequestCompletion() {
+        CustomFuture future = sendAsyncBulkDocsRequest(bulkDocsBody, new RemoteRequestCompletion() {
 
             @Override
             public void onCompletion(RemoteRequest remoteRequest, Response httpResponse, Object result, Throwable e) {
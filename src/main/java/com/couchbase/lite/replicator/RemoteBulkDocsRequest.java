@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.replicator;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.support.HttpClientFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * A RemoteRequest that POSTs to _bulk_docs, serializing (and gzipping) the JSON body directly
+ * onto the connection while it's sent, instead of building the whole body in memory first.
+ * <p/>
+ * The streamed body has no known length, so OkHttp sends it chunked. Sync Gateway accepts that;
+ * for other servers the body is buffered as before (see BlobRequestBody.)
+ */
+@InterfaceAudience.Private
+public class RemoteBulkDocsRequest extends RemoteRequest {
+    ////////////////////////////////////////////////////////////
+    // Member variables
+    ////////////////////////////////////////////////////////////
+    private boolean syncGateway;
+
+    ////////////////////////////////////////////////////////////
+    // Constructors
+    ////////////////////////////////////////////////////////////
+
+    public RemoteBulkDocsRequest(
+            HttpClientFactory clientFactory,
+            URL url,
+            boolean syncGateway,
+            boolean cancelable,
+            Map<String, ?> body,
+            Map<String, Object> requestHeaders,
+            RemoteRequestCompletion onCompletion) {
+        super(clientFactory, "POST", url, cancelable, body, requestHeaders, onCompletion);
+        this.syncGateway = syncGateway;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Override methods
+    ////////////////////////////////////////////////////////////
+
+    /**
+     * set request body
+     */
+    @Override
+    protected Request.Builder setBody(Request.Builder builder) {
+        if (body == null || !syncGateway)
+            return super.setBody(builder);
+        if (isCompressedRequest())
+            builder.addHeader("Content-Encoding", "gzip");
+        builder.post(createStreamingBody(body, isCompressedRequest()));
+        return builder;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // Protected or Private Methods
+    ////////////////////////////////////////////////////////////
+
+    /**
+     * Returns a RequestBody that writes 'body' as JSON each time it's sent, so a retried request
+     * can send it again.
+     */
+    private static RequestBody createStreamingBody(final Map<String, ?> body,
+                                                   final boolean gzip) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                // Closing the gzip stream releases its Deflater, but mustn't close the sink;
+                // OkHttp owns it.
+                OutputStream out = new FilterOutputStream(sink.outputStream()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        this.out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+                if (gzip)
+                    out = new GZIPOutputStream(out);
+                try {
+                    ObjectMapper mapper = Manager.getObjectMapper();
+                    JsonGenerator gen = mapper.getFactory().createGenerator(out);
+                    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                    try {
+                        mapper.writeValue(gen, body);
+                    } finally {
+                        gen.close();
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        };
+    }
+}
@@ -53,7 +53,8 @@ public class RemoteRequestRetry<T> implements CustomFuture<T> {
     public enum RemoteRequestType {
         REMOTE_REQUEST,
         REMOTE_MULTIPART_REQUEST,
-        REMOTE_MULTIPART_DOWNLOADER_REQUEST
+        REMOTE_MULTIPART_DOWNLOADER_REQUEST,
+        REMOTE_BULK_DOCS_REQUEST
     }
 
     ////////////////////////////////////////////////////////////
@@ -269,6 +270,16 @@ public class RemoteRequestRetry<T> implements CustomFuture<T> {
                         requestHeaders,
                         onCompletionInner);
                 break;
+            case REMOTE_BULK_DOCS_REQUEST:
+                request = new RemoteBulkDocsRequest(
+                        clientFactory,
+                        url,
+                        syncGateway,
+                        cancelable,
+                        body,
+                        requestHeaders,
+                        onCompletionInner);
+                break;
             default:
                 request = new RemoteRequest(
                         clientFactory,
@@ -738,6 +738,39 @@ abstract class ReplicationInternal implements BlockingQueueListener {
         return request.submit();
     }
 
+    /**
+     * POSTs to _bulk_docs, streaming the body onto the connection as it's sent.
+     *
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public CustomFuture sendAsyncBulkDocsRequest(Map<String, Object> body,
+                                                 RemoteRequestCompletion onCompletion) {
+        URL url;
+        try {
+            url = new URL(buildRelativeURLString("_bulk_docs"));
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Log.d(Log.TAG_SYNC, "Send POST " + URLUtils.sanitizeURL(url));
+        RemoteRequestRetry request = new RemoteRequestRetry(
+                RemoteRequestRetry.RemoteRequestType.REMOTE_BULK_DOCS_REQUEST,
+                remoteRequestExecutor,
+                executor,
+                clientFactory,
+                "POST",
+                url,
+                serverIsSyncGateway(),
+                true,
+                body,
+                null,
+                getLocalDatabase(),
+                getHeaders(),
+                onCompletion);
+        request.setAuthenticator(getAuthenticator());
+        return request.submit(canSendCompressedRequests());
+    }
+
     /**
      * @exclude
      */
@@ -15,6 +15,7 @@ package com.couchbase.lite.router;
 
 import com.couchbase.lite.AsyncTask;
 import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.BuiltInReducer;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
@@ -1355,36 +1356,48 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             public boolean run() {
                 boolean ok = false;
                 try {
-                    for (Map<String, Object> doc : docs) {
-                        String docID = (String) doc.get("_id");
-                        RevisionInternal rev = null;
-
-                        Body docBody = new Body(doc);
-                        if (noNewEdits) {
-                            rev = new RevisionInternal(docBody);
+                    if (noNewEdits) {
+                        // Replicated revisions are inserted as one batch. No results are
+                        // returned for successful revisions.
+                        List<RevisionInternal> revs = new ArrayList<RevisionInternal>(docs.size());
+                        List<List<String>> histories = new ArrayList<List<String>>(docs.size());
+                        for (Map<String, Object> doc : docs) {
+                            String docID = (String) doc.get("_id");
+                            RevisionInternal rev = new RevisionInternal(new Body(doc));
                             if (rev.getRevID() == null || rev.getDocID() == null ||
                                     !rev.getDocID().equals(docID)) {
                                 status.setCode(Status.BAD_REQUEST);
-                            } else {
-                                List<String> history = Database.parseCouchDBRevisionHistory(doc);
-                                db.forceInsert(rev, history, source);
+                                return false;
+                            }
+                            revs.add(rev);
+                            histories.add(Database.parseCouchDBRevisionHistory(doc));
+                        }
+                        for (Status insertStatus : db.forceInsertBatch(revs, histories, source)) {
+                            if (insertStatus.isError()) {
+                                status.setCode(insertStatus.getCode());
+                                return false;
                             }
-                        } else {
-                            Status outStatus = new Status();
-                            rev = update(db, docID, docBody, false, allOrNothing, outStatus);
-                            status.setCode(outStatus.getCode());
                         }
+                        Log.v(TAG, "%s finished inserting %d revisions in bulk", this, docs.size());
+                        ok = true;
+                        return ok;
+                    }
+
+                    for (Map<String, Object> doc : docs) {
+                        String docID = (String) doc.get("_id");
+                        RevisionInternal rev = null;
+
+                        Body docBody = new Body(doc);
+                        Status outStatus = new Status();
+                        rev = update(db, docID, docBody, false, allOrNothing, outStatus);
+                        status.setCode(outStatus.getCode());
 
                         Map<String, Object> result = null;
                         if (status.isSuccessful()) {
-                            // Note: if new_edits=false, will not include the entries for
-                            // any of the successful revisions.
-                            if (!noNewEdits) {
-                                result = new HashMap<String, Object>();
-                                result.put("ok", true);
-                                result.put("id", rev.getDocID());
-                                result.put("rev", rev.getRevID());
-                            }
+                            result = new HashMap<String, Object>();
+                            result.put("ok", true);
+                            result.put("id", rev.getDocID());
+                            result.put("rev", rev.getRevID());
                         } else if (allOrNothing) {
                             return false;
                         } else if (status.getCode() == Status.FORBIDDEN) {
@@ -2514,7 +2527,9 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         String reduceSource = (String) viewProps.get("reduce");
         Reducer reduceBlock = null;
         if (reduceSource != null) {
-            reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
+            reduceBlock = BuiltInReducer.named(reduceSource);
+            if (reduceBlock == null)
+                reduceBlock = View.getCompiler().compileReduce(reduceSource, language);
             if (reduceBlock == null) {
                 Log.w(TAG, "View %s has unknown reduce function: %s", viewName, reduceBlock);
                 return null;
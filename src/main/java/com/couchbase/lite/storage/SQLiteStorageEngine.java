@@ -34,6 +34,13 @@ public interface SQLiteStorageEngine {
 
     void beginTransaction();
 
+    /**
+     * Begins a read-only transaction whose queries all see the same snapshot of the database.
+     * In WAL mode it runs on a read connection, so it doesn't block writers. It's ended by
+     * endTransaction().
+     */
+    void beginReadTransaction();
+
     void endTransaction();
 
     void setTransactionSuccessful();
@@ -44,6 +51,13 @@ public interface SQLiteStorageEngine {
 
     Cursor rawQuery(String sql, String[] selectionArgs);
 
+    /**
+     * Returns the calling thread's compiled statement for the SQL, compiling it the first time
+     * it's requested. The statement is kept until the engine is closed, so this should only be
+     * used for SQL that is run often and doesn't embed argument values.
+     */
+    Statement getStatement(String sql) throws SQLException;
+
     long insert(String table, String nullColumnHack, ContentValues values);
 
     long insertOrThrow(String table, String nullColumnHack, ContentValues values) throws SQLException;
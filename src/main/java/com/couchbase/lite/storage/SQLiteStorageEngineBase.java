@@ -22,11 +22,17 @@ import com.couchbase.lite.internal.database.security.Key;
 import com.couchbase.lite.internal.database.sqlite.SQLiteConnection;
 import com.couchbase.lite.internal.database.sqlite.SQLiteConnectionListener;
 import com.couchbase.lite.internal.database.sqlite.SQLiteDatabase;
+import com.couchbase.lite.internal.database.sqlite.SQLiteStatement;
 import com.couchbase.lite.internal.database.sqlite.exception.SQLiteConstraintException;
 import com.couchbase.lite.internal.database.sqlite.exception.SQLiteDatabaseCorruptException;
+import com.couchbase.lite.internal.database.sqlite.exception.SQLiteDoneException;
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
@@ -39,6 +45,9 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
     private SQLiteDatabase database;
     private AtomicBoolean isSupportEncryption = null;
     private SymmetricKey encryptionKey;
+    private volatile StatementCache statements = new StatementCache();
+    // Every thread's compiled statements, so that close() can release them:
+    private final List<SQLiteStatement> compiledStatements = new ArrayList<SQLiteStatement>();
 
     abstract protected DatabasePlatformSupport getDatabasePlatformSupport();
 
@@ -71,6 +80,9 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
                     SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING,
                     getWALConnectionPoolSize(),
                     null, new ConnectionListener());
+            // Each connection keeps an LRU cache of prepared statements; the default of 25
+            // is too small to hold the statements of the store plus those of several views:
+            database.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
             Log.v(Log.TAG_DATABASE, "%s: Opened Android sqlite db", this);
         } catch(SQLiteDatabaseCorruptException e) {
             hasError = true;
@@ -150,6 +162,11 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
         database.beginTransaction();
     }
 
+    @Override
+    public void beginReadTransaction() {
+        database.beginTransactionReadOnly();
+    }
+
     @Override
     public void endTransaction() {
         database.endTransaction();
@@ -183,6 +200,26 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
         return new SQLiteCursor(database.rawQuery(sql, selectionArgs));
     }
 
+    @Override
+    public Statement getStatement(String sql) throws SQLException {
+        Map<String, CompiledStatement> cache = statements.get();
+        CompiledStatement statement = cache.get(sql);
+        if (statement == null) {
+            SQLiteStatement compiled;
+            try {
+                compiled = database.compileStatement(sql);
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw new SQLException(e);
+            }
+            synchronized (compiledStatements) {
+                compiledStatements.add(compiled);
+            }
+            statement = new CompiledStatement(compiled);
+            cache.put(sql, statement);
+        }
+        return statement;
+    }
+
     @Override
     public long insert(String table, String nullColumnHack, ContentValues values) {
         return database.insert(table, nullColumnHack, values);
@@ -219,6 +256,13 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
 
     @Override
     public void close() {
+        // Drop every thread's compiled statements; they belong to this database connection:
+        statements = new StatementCache();
+        synchronized (compiledStatements) {
+            for (SQLiteStatement statement : compiledStatements)
+                statement.close();
+            compiledStatements.clear();
+        }
         database.close();
     }
 
@@ -292,4 +336,119 @@ public abstract class SQLiteStorageEngineBase implements SQLiteStorageEngine {
             return cursor.isNull(columnIndex);
         }
     }
+
+    private static class StatementCache extends ThreadLocal<Map<String, CompiledStatement>> {
+        @Override
+        protected Map<String, CompiledStatement> initialValue() {
+            return new HashMap<String, CompiledStatement>();
+        }
+    }
+
+    /**
+     * A thread's compiled statement. Its bindings are cleared after each execution, so that a
+     * cached statement doesn't keep the last values bound to it alive.
+     */
+    private static class CompiledStatement implements Statement {
+        private final SQLiteStatement statement;
+
+        CompiledStatement(SQLiteStatement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public void bindNull(int index) {
+            statement.bindNull(index);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            statement.bindLong(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            if (value == null)
+                statement.bindNull(index);
+            else
+                statement.bindString(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            if (value == null)
+                statement.bindNull(index);
+            else
+                statement.bindBlob(index, value);
+        }
+
+        @Override
+        public void execute() throws SQLException {
+            try {
+                statement.execute();
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw convert(e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        @Override
+        public long executeInsert() throws SQLException {
+            try {
+                return statement.executeInsert();
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw convert(e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        @Override
+        public int executeUpdateDelete() throws SQLException {
+            try {
+                return statement.executeUpdateDelete();
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw convert(e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        @Override
+        public long simpleQueryForLong(long defaultValue) throws SQLException {
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return defaultValue;
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw convert(e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        @Override
+        public String simpleQueryForString() throws SQLException {
+            try {
+                return statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            } catch (com.couchbase.lite.internal.database.SQLException e) {
+                throw convert(e);
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return statement.toString();
+        }
+
+        private static SQLException convert(com.couchbase.lite.internal.database.SQLException e) {
+            if (e instanceof SQLiteConstraintException)
+                return new SQLException(SQLException.SQLITE_CONSTRAINT, e);
+            return new SQLException(e);
+        }
+    }
 }
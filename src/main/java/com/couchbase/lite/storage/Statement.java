@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.storage;
+
+/**
+ * A compiled SQL statement, obtained from {@link SQLiteStorageEngine#getStatement(String)}.
+ * It stays compiled until the storage engine is closed, and can be executed any number of times
+ * with new bindings. The bindings are cleared after each execution, so every parameter has to be
+ * bound again before the next one. Parameter indexes start at 1.
+ * <p>
+ * Each thread gets its own instance, so a statement needs no locking between binding and
+ * executing it, but it must not be handed to another thread.
+ */
+public interface Statement {
+    void bindNull(int index);
+
+    void bindLong(int index, long value);
+
+    /** Binds a string, or NULL if value is null. */
+    void bindString(int index, String value);
+
+    /** Binds a blob, or NULL if value is null. */
+    void bindBlob(int index, byte[] value);
+
+    void execute() throws SQLException;
+
+    /** @return the row ID of the inserted row, or -1 if nothing was inserted. */
+    long executeInsert() throws SQLException;
+
+    /** @return the number of rows changed. */
+    int executeUpdateDelete() throws SQLException;
+
+    /** @return the first column of the first result row, or defaultValue if there are no rows. */
+    long simpleQueryForLong(long defaultValue) throws SQLException;
+
+    /** @return the first column of the first result row, or null if there are no rows. */
+    String simpleQueryForString() throws SQLException;
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.View;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes view keys into byte strings whose byte-wise (memcmp) order is the collation order of
+ * the keys, so that an index of them can be searched and sorted with SQLite's BINARY collation.
+ * <p>
+ * Each value starts with a type tag, ordered as CouchDB orders the types (null, false, true,
+ * numbers, strings, arrays, objects); the raw collation uses the order of the JSON_RAW collator
+ * instead (numbers, null, false, true, arrays, objects, strings). Numbers are IEEE doubles with
+ * their bits rearranged to sort as unsigned integers. Strings are escaped so they never contain
+ * a 0x00 byte, and end with one. Arrays and objects end with a 0x00 byte, which sorts before any
+ * tag, so a prefix sorts before the longer value; each object key is written with the string
+ * tag, so that an empty key doesn't read as the end of the object.
+ * <p>
+ * With the Unicode collation strings are encoded as java.text.Collator keys; with the ASCII and
+ * raw collations they are encoded as UTF-8, which sorts by code point. Encoded keys can't be
+ * decoded, so the key's JSON is stored alongside them.
+ * <p>
+ * The sort keys are stored in the indexes, so the Unicode collator must not depend on the
+ * device's locale: it's the root locale's, at tertiary strength. Its rules may still differ
+ * between platform versions, so COLLATOR_ID identifies them, and an index built with another
+ * collator is rebuilt.
+ * <p>
+ * Note that this is not the ICU collator the JSON collator (SQLiteJsonCollator) used, so the
+ * Unicode order of some strings differs from earlier releases: mostly those with punctuation,
+ * symbols or ignorable characters, which java.text.Collator weighs differently from ICU.
+ * Every index is tagged with formatID(), and one made by another version of this encoding or
+ * with another collator is rebuilt, so an index is never read in an order it wasn't built in.
+ */
+final class CollatableKey {
+    private static final byte END = 0x00;
+    private static final byte ESCAPE = 0x01;
+
+    // Type tags, indexed by TYPE_*, for the Unicode and ASCII collations and for the raw one:
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_FALSE = 1;
+    private static final int TYPE_TRUE = 2;
+    private static final int TYPE_NUMBER = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_ARRAY = 5;
+    private static final int TYPE_OBJECT = 6;
+    private static final byte[] TAGS = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07};
+    private static final byte[] RAW_TAGS = {0x02, 0x03, 0x04, 0x01, 0x07, 0x05, 0x06};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Collator instances aren't thread-safe, and keys are encoded on the indexing threads.
+    private static final ThreadLocal<Collator> collators = new ThreadLocal<Collator>() {
+        @Override
+        protected Collator initialValue() {
+            return newCollator();
+        }
+    };
+
+    /**
+     * Identifies the collator used for Unicode sort keys; stored with each index built with it.
+     */
+    static final String COLLATOR_ID = collatorID(newCollator());
+
+    // Incremented whenever the encoding changes, so that indexes made with an older one are rebuilt.
+    private static final int FORMAT_VERSION = 2;
+
+    private CollatableKey() {
+    }
+
+    private static Collator newCollator() {
+        Collator collator = Collator.getInstance(Locale.ROOT);
+        collator.setStrength(Collator.TERTIARY);
+        return collator;
+    }
+
+    private static String collatorID(Collator collator) {
+        String rules = collator instanceof RuleBasedCollator ?
+                ((RuleBasedCollator) collator).getRules() : collator.getClass().getName();
+        return "root/tertiary/" + Integer.toHexString(rules.hashCode());
+    }
+
+    /**
+     * Identifies the encoding of the sort keys in the given collation; stored with each index.
+     */
+    static String formatID(View.TDViewCollation collation) {
+        return FORMAT_VERSION + "/" + (collation == View.TDViewCollation.TDViewCollationUnicode ?
+                COLLATOR_ID : collation.name());
+    }
+
+    /**
+     * Encodes a key, which may be any value that can be converted to JSON.
+     */
+    static byte[] encode(Object key, View.TDViewCollation collation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        encode(out, key, collation == View.TDViewCollation.TDViewCollationRaw ? RAW_TAGS : TAGS,
+                collation == View.TDViewCollation.TDViewCollationUnicode);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the encoded key as an SQL blob literal, e.g. X'0541'.
+     */
+    static String toSQLLiteral(byte[] encodedKey) {
+        StringBuilder sb = new StringBuilder(3 + encodedKey.length * 2);
+        sb.append("X'");
+        for (byte b : encodedKey) {
+            sb.append(Character.forDigit((b >> 4) & 0x0F, 16));
+            sb.append(Character.forDigit(b & 0x0F, 16));
+        }
+        sb.append('\'');
+        return sb.toString();
+    }
+
+    /**
+     * Returns the smallest byte string greater than every byte string starting with prefix,
+     * or null if there's none (the prefix is all 0xFF bytes).
+     */
+    static byte[] successor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] result = Arrays.copyOf(prefix, i + 1);
+                result[i]++;
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares two byte strings the way SQLite compares blobs (memcmp, then length).
+     */
+    static int compare(byte[] bytes1, byte[] bytes2) {
+        int length = Math.min(bytes1.length, bytes2.length);
+        for (int i = 0; i < length; i++) {
+            int result = (bytes1[i] & 0xFF) - (bytes2[i] & 0xFF);
+            if (result != 0)
+                return result;
+        }
+        return bytes1.length - bytes2.length;
+    }
+
+    private static void encode(ByteArrayOutputStream out, Object value, byte[] tags,
+                               boolean unicode) {
+        if (value == null) {
+            out.write(tags[TYPE_NULL]);
+        } else if (value instanceof Boolean) {
+            out.write(((Boolean) value) ? tags[TYPE_TRUE] : tags[TYPE_FALSE]);
+        } else if (value instanceof Number) {
+            out.write(tags[TYPE_NUMBER]);
+            encodeNumber(out, ((Number) value).doubleValue());
+        } else if (value instanceof String || value instanceof Character) {
+            out.write(tags[TYPE_STRING]);
+            encodeString(out, value.toString(), unicode);
+        } else if (value instanceof List) {
+            out.write(tags[TYPE_ARRAY]);
+            for (Object item : (List<?>) value)
+                encode(out, item, tags, unicode);
+            out.write(END);
+        } else if (value instanceof Object[]) {
+            out.write(tags[TYPE_ARRAY]);
+            for (Object item : (Object[]) value)
+                encode(out, item, tags, unicode);
+            out.write(END);
+        } else if (value instanceof Map) {
+            out.write(tags[TYPE_OBJECT]);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.write(tags[TYPE_STRING]);
+                encodeString(out, String.valueOf(entry.getKey()), unicode);
+                encode(out, entry.getValue(), tags, unicode);
+            }
+            out.write(END);
+        } else {
+            // Anything else is collated as the JSON it would be stored as:
+            encode(out, Manager.getObjectMapper().convertValue(value, Object.class), tags, unicode);
+        }
+    }
+
+    private static void encodeNumber(ByteArrayOutputStream out, double number) {
+        if (number == 0.0)
+            number = 0.0; // -0.0 == 0.0
+        long bits = Double.doubleToLongBits(number);
+        // Negative numbers sort in reverse order of their bits; positive ones after all of them:
+        bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (bits >>> shift));
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, String string, boolean unicode) {
+        byte[] bytes = unicode ?
+                collators.get().getCollationKey(string).toByteArray() :
+                string.getBytes(UTF8);
+        for (byte b : bytes) {
+            if (b == END || b == ESCAPE) {
+                out.write(ESCAPE);
+                out.write(b + 1);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(END);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.internal.Body;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The body of a document revision read by a query, whose JSON is only parsed into properties
+ * (by SQLiteStore.documentPropertiesFromJSON) when they are first accessed.
+ */
+final class LazyDocumentBody extends Body {
+    private final SQLiteStore store;
+    private final String docID;
+    private final String revID;
+    private final long sequence;
+    private byte[] documentJSON;
+    private Map<String, Object> properties;
+
+    private LazyDocumentBody(SQLiteStore store, byte[] json,
+                             String docID, String revID, long sequence) {
+        super((Map<String, Object>) null);
+        this.store = store;
+        this.documentJSON = json;
+        this.docID = docID;
+        this.revID = revID;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns a (non-deleted) revision whose properties are parsed from json on demand.
+     */
+    static RevisionInternal revision(SQLiteStore store, String docID, String revID,
+                                     long sequence, byte[] json) {
+        RevisionInternal rev = new RevisionInternal(docID, revID, false);
+        rev.setSequence(sequence);
+        rev.setBody(new LazyDocumentBody(store, json, docID, revID, sequence));
+        return rev;
+    }
+
+    @Override
+    public synchronized Object getObject() {
+        if (properties == null) {
+            properties = store.documentPropertiesFromJSON(documentJSON, docID, revID, false,
+                    sequence);
+            documentJSON = null;
+        }
+        return properties;
+    }
+
+    @Override
+    public byte[] getJson() {
+        try {
+            return Manager.getObjectMapper().writeValueAsBytes(getObject());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean isValidJSON() {
+        return getObject() != null;
+    }
+}
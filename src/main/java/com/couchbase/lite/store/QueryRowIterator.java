@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.CouchbaseLiteRuntimeException;
+import com.couchbase.lite.QueryRow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the result rows of a query as they are read from the database, so that a large
+ * result set never has to be held in memory at once. Only one row is read ahead of the caller;
+ * the storage cursor reads its rows a window at a time.
+ * <p/>
+ * The underlying cursor is closed once the last row has been read, or by close().
+ */
+public abstract class QueryRowIterator implements Iterator<QueryRow> {
+    private QueryRow nextRow;
+    private boolean done;
+
+    /**
+     * Reads the next row, or returns null if there are no more.
+     */
+    protected abstract QueryRow fetchNext() throws CouchbaseLiteException;
+
+    /**
+     * Releases the underlying cursor. Called once, at the end of the rows or from close().
+     */
+    protected void closeCursor() {
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return peek() != null;
+        } catch (CouchbaseLiteException e) {
+            throw new CouchbaseLiteRuntimeException("Error reading query results", e);
+        }
+    }
+
+    @Override
+    public QueryRow next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        QueryRow row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("QueryRowIterator does not allow remove() to be called");
+    }
+
+    /**
+     * Stops the iteration and releases the underlying cursor. Safe to call more than once.
+     */
+    public void close() {
+        nextRow = null;
+        if (!done) {
+            done = true;
+            closeCursor();
+        }
+    }
+
+    /**
+     * Reads all the remaining rows into a list, and closes the iterator.
+     */
+    public List<QueryRow> toList() throws CouchbaseLiteException {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        try {
+            QueryRow row;
+            while ((row = peek()) != null) {
+                rows.add(row);
+                nextRow = null;
+            }
+        } finally {
+            close();
+        }
+        return rows;
+    }
+
+    private QueryRow peek() throws CouchbaseLiteException {
+        if (nextRow == null && !done) {
+            boolean success = false;
+            try {
+                nextRow = fetchNext();
+                success = true;
+            } finally {
+                if (!success || nextRow == null)
+                    close();
+            }
+        }
+        return nextRow;
+    }
+
+    /**
+     * Returns an iterator over rows that have already been read.
+     */
+    public static QueryRowIterator fromList(final List<QueryRow> rows) {
+        final Iterator<QueryRow> iterator = rows.iterator();
+        return new QueryRowIterator() {
+            @Override
+            protected QueryRow fetchNext() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+        };
+    }
+}
@@ -36,12 +36,14 @@ import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.storage.Statement;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.action.Action;
 import com.couchbase.lite.support.action.ActionBlock;
 import com.couchbase.lite.support.action.ActionException;
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
 import com.couchbase.lite.util.SQLiteUtils;
 import com.couchbase.lite.util.TextUtils;
 
@@ -57,8 +59,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SQLiteStore implements Store, EncryptableStore {
     public String TAG = Log.TAG_DATABASE;
@@ -71,6 +77,9 @@ public class SQLiteStore implements Store, EncryptableStore {
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
 
+    // Maximum number of docID -> doc_id mappings kept in memory
+    private static final int kDocIDCacheSize = 1000;
+
     // Empty JSON string: "{}"
     private static final byte[] EMPTY_JSON_OBJECT_CHARS = new byte[]{(byte) 0x007B, (byte) 0x007D};
 
@@ -119,6 +128,47 @@ public class SQLiteStore implements Store, EncryptableStore {
     // which only has SQLite 3.7 :(
     // On the revs_parent _index we could add "WHERE parent not null".
 
+    // Recomputes the winning revision cached in the 'docs' row(s) with doc_id=%1$s from the
+    // document's current (leaf) revisions: the first live one by descending revID, or failing
+    // that the first deleted one.
+    private static final String REFRESH_WINNER_SQL = "" +
+            "UPDATE docs SET winning_sequence=(SELECT sequence FROM revs " +
+            "    WHERE revs.doc_id=docs.doc_id AND current=1 " +
+            "    ORDER BY deleted ASC, revid DESC LIMIT 1) " +
+            "  WHERE doc_id=%1$s; " +
+            "UPDATE docs SET " +
+            "    winning_revid=(SELECT revid FROM revs WHERE sequence=docs.winning_sequence), " +
+            "    winning_deleted=ifnull((SELECT deleted FROM revs " +
+            "        WHERE sequence=docs.winning_sequence), 0), " +
+            "    conflicted=(SELECT COUNT(*) FROM revs " +
+            "        WHERE revs.doc_id=docs.doc_id AND current=1 AND deleted=0) > 1 " +
+            "  WHERE doc_id=%1$s";
+
+    // Keep the winning revisions in 'docs', and the number of live documents in 'info', up to
+    // date whenever a leaf revision is added, changed or removed, by this or any other release:
+    private static final String[] WINNER_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS revs_winner_insert AFTER INSERT ON revs " +
+                    "WHEN NEW.current BEGIN " +
+                    String.format(Locale.ENGLISH, REFRESH_WINNER_SQL, "NEW.doc_id") + "; END",
+            "CREATE TRIGGER IF NOT EXISTS revs_winner_update AFTER UPDATE OF current, deleted ON revs " +
+                    "WHEN OLD.current IS NOT NEW.current OR OLD.deleted IS NOT NEW.deleted BEGIN " +
+                    String.format(Locale.ENGLISH, REFRESH_WINNER_SQL, "NEW.doc_id") + "; END",
+            "CREATE TRIGGER IF NOT EXISTS revs_winner_delete AFTER DELETE ON revs " +
+                    "WHEN OLD.current BEGIN " +
+                    String.format(Locale.ENGLISH, REFRESH_WINNER_SQL, "OLD.doc_id") + "; END",
+            "CREATE TRIGGER IF NOT EXISTS docs_live_update " +
+                    "AFTER UPDATE OF winning_revid, winning_deleted ON docs " +
+                    "WHEN (OLD.winning_revid NOT NULL AND NOT OLD.winning_deleted) != " +
+                    "    (NEW.winning_revid NOT NULL AND NOT NEW.winning_deleted) BEGIN " +
+                    "UPDATE info SET value=CAST(value AS INTEGER) + " +
+                    "    (CASE WHEN NEW.winning_revid NOT NULL AND NOT NEW.winning_deleted " +
+                    "     THEN 1 ELSE -1 END) " +
+                    "  WHERE key='doc_count'; END",
+            "CREATE TRIGGER IF NOT EXISTS docs_live_delete AFTER DELETE ON docs " +
+                    "WHEN OLD.winning_revid NOT NULL AND NOT OLD.winning_deleted BEGIN " +
+                    "UPDATE info SET value=CAST(value AS INTEGER) - 1 WHERE key='doc_count'; END"
+    };
+
     // transactionLevel is per thread
     static class TransactionLevel extends ThreadLocal<Integer> {
         @Override
@@ -127,6 +177,42 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
     }
 
+    // doc_ids looked up, created or purged inside the current transaction are tracked per thread;
+    // they are not applied to the shared cache until the outermost transaction commits.
+    static class PendingDocIDs {
+        // docID -> doc_id, or 0 if the docID was purged in this transaction
+        final Map<String, Long> docIDs = new HashMap<String, Long>();
+        boolean purgedAll = false;
+
+        void clear() {
+            docIDs.clear();
+            purgedAll = false;
+        }
+    }
+
+    static class PendingDocIDsHolder extends ThreadLocal<PendingDocIDs> {
+        @Override
+        protected PendingDocIDs initialValue() {
+            return new PendingDocIDs();
+        }
+    }
+
+    // Changes to the last sequence and the document count made inside the current transaction,
+    // per thread. Each transaction level saves the values it started with, so that a rollback
+    // can restore them; the outermost commit publishes them.
+    static class PendingCounters {
+        long lastSequence;
+        int documentCountDelta;
+        final List<long[]> savepoints = new ArrayList<long[]>();
+    }
+
+    static class PendingCountersHolder extends ThreadLocal<PendingCounters> {
+        @Override
+        protected PendingCounters initialValue() {
+            return new PendingCounters();
+        }
+    }
+
     private String directory;
     private String path;
     private Manager manager;
@@ -137,6 +223,15 @@ public class SQLiteStore implements Store, EncryptableStore {
     private boolean autoCompact;
     private SymmetricKey encryptionKey;
     private final Object compactLock = new Object(); // lock for compact() method
+    private LruCache<String, Long> docIDs;  // docID -> doc_id of committed documents
+    private PendingDocIDsHolder pendingDocIDs;
+    // Incremented whenever purges are applied to docIDs, so a doc_id looked up before then isn't
+    // cached afterwards (the row may be gone, and its doc_id reused by another document):
+    private final AtomicLong docIDsPurgeCount = new AtomicLong(0);
+    private final AtomicLong lastSequence = new AtomicLong(0);      // committed
+    private final AtomicInteger documentCount = new AtomicInteger(0); // committed
+    private PendingCountersHolder pendingCounters;
+    private ExecutorService indexingExecutor; // runs view map functions; see getIndexingExecutor()
 
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -156,6 +251,9 @@ public class SQLiteStore implements Store, EncryptableStore {
         this.transactionLevel = new TransactionLevel();
         this.delegate = delegate;
         this.maxRevTreeDepth = DEFAULT_MAX_REVS;
+        this.docIDs = new LruCache<String, Long>(kDocIDCacheSize);
+        this.pendingDocIDs = new PendingDocIDsHolder();
+        this.pendingCounters = new PendingCountersHolder();
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -298,9 +396,86 @@ public class SQLiteStore implements Store, EncryptableStore {
                 dbVersion = 102;
             }
 
+            if (dbVersion < 103) {
+                // Version 103: cache the winning revision and the conflict flag in the 'docs' row.
+                // They're kept up to date by triggers, as is the document count, so they stay
+                // correct when an older release that doesn't know about them writes to the
+                // database; hence this is a compatible change.
+                try {
+                    initialize("ALTER TABLE docs ADD COLUMN winning_revid TEXT; "
+                            + "ALTER TABLE docs ADD COLUMN winning_sequence INTEGER; "
+                            + "ALTER TABLE docs ADD COLUMN winning_deleted BOOLEAN DEFAULT 0; "
+                            + "ALTER TABLE docs ADD COLUMN conflicted BOOLEAN DEFAULT 0; "
+                            + String.format(Locale.ENGLISH, REFRESH_WINNER_SQL, "docs.doc_id"));
+                    for (String trigger : WINNER_TRIGGERS)
+                        storageEngine.execSQL(trigger);
+                    initialize("PRAGMA user_version = 103");
+                } catch (SQLException e) {
+                    String message = "Cannot update user_version to " + dbVersion;
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 103;
+            }
+
+            boolean sortKeysBackfilled = false;
+            if (dbVersion < 104) {
+                // Version 104: view indexes sort on binary collatable keys ('sort_key') instead
+                // of the JSON text collated by the JSON collators. Sort keys can't be computed
+                // in SQL, so they're computed here from the keys' JSON, in the default (Unicode)
+                // collation; a view using another one is reindexed when it's next updated. Older
+                // releases leave the sort keys of the rows they add empty, which makes the index
+                // get rebuilt (see SQLiteViewStore.checkIndexCollation), so this is compatible.
+                try {
+                    initialize("ALTER TABLE views ADD COLUMN collation INTEGER DEFAULT 0");
+                    List<Integer> viewIDs = new ArrayList<Integer>();
+                    Cursor cursor = null;
+                    try {
+                        cursor = storageEngine.rawQuery("SELECT view_id FROM views", null);
+                        while (cursor.moveToNext())
+                            viewIDs.add(cursor.getInt(0));
+                    } finally {
+                        if (cursor != null)
+                            cursor.close();
+                    }
+                    for (int viewID : viewIDs)
+                        addSortKeys(viewID);
+                    initialize("PRAGMA user_version = 104");
+                } catch (SQLException e) {
+                    String message = "Cannot update user_version to " + dbVersion;
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                sortKeysBackfilled = true;
+                dbVersion = 104;
+            }
+
+            if (dbVersion < 105) {
+                // Version 105: views record the format of their sort keys (including the collator
+                // the Unicode ones were made with; see CollatableKey.formatID). Indexes whose
+                // sort keys were just computed use the current one; all others are rebuilt.
+                String upgradeSql = "ALTER TABLE views ADD COLUMN collator TEXT; ";
+                if (sortKeysBackfilled)
+                    upgradeSql += String.format(Locale.ENGLISH,
+                            "UPDATE views SET collator='%s' WHERE collation=%d; ",
+                            CollatableKey.formatID(View.TDViewCollation.TDViewCollationUnicode),
+                            View.TDViewCollation.TDViewCollationUnicode.ordinal());
+                upgradeSql += "PRAGMA user_version = 105";
+                try {
+                    initialize(upgradeSql);
+                } catch (SQLException e) {
+                    String message = "Cannot update user_version to " + dbVersion;
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 105;
+            }
+
             if (isNew)
                 setInfo("pruned", "true"); // See -compact: for explanation
 
+            loadCounters();
+
             if (!isNew)
                 optimizeSQLIndexes(); // runs ANALYZE query
 
@@ -320,11 +495,57 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
     }
 
+    /**
+     * Adds the sort_key column to a view's pre-104 map table, filled in from the keys' JSON in
+     * the Unicode collation, and indexes it in place of the JSON-collated key.
+     */
+    private void addSortKeys(int viewID) throws SQLException {
+        String table = "maps_" + viewID;
+        String[] args = {table};
+        if (SQLiteUtils.intForQuery(storageEngine,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) == 0)
+            return;
+        storageEngine.execSQL(String.format(Locale.ENGLISH,
+                "ALTER TABLE '%s' ADD COLUMN sort_key BLOB NOT NULL DEFAULT X''", table));
+        Statement update = storageEngine.getStatement(String.format(Locale.ENGLISH,
+                "UPDATE '%s' SET sort_key=? WHERE rowid=?", table));
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(String.format(Locale.ENGLISH,
+                    "SELECT rowid, key FROM '%s'", table), null);
+            while (cursor.moveToNext()) {
+                Object key;
+                try {
+                    key = Manager.getObjectMapper().readValue(cursor.getString(1), Object.class);
+                } catch (IOException e) {
+                    throw new SQLException(e);
+                }
+                update.bindBlob(1, CollatableKey.encode(key,
+                        View.TDViewCollation.TDViewCollationUnicode));
+                update.bindLong(2, cursor.getLong(0));
+                update.execute();
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        runStatements(String.format(Locale.ENGLISH,
+                "DROP INDEX IF EXISTS '%1$s_keys'; " +
+                        "CREATE INDEX IF NOT EXISTS '%1$s_keys' ON '%1$s'(sort_key)", table));
+    }
+
     @Override
     public void close() {
         if (storageEngine != null && storageEngine.isOpen())
             storageEngine.close();
         storageEngine = null;
+        invalidateDocNumericIDs();
+        synchronized (this) {
+            if (indexingExecutor != null) {
+                indexingExecutor.shutdown();
+                indexingExecutor = null;
+            }
+        }
     }
 
     private SQLiteStorageEngine createStorageEngine() throws CouchbaseLiteException {
@@ -605,24 +826,15 @@ public class SQLiteStore implements Store, EncryptableStore {
         return result;
     }
 
+    /**
+     * The number of (undeleted) documents. Maintained in memory as documents are created, deleted
+     * and purged; the value persisted in the 'info' table is loaded when the database opens.
+     */
     @Override
     public int getDocumentCount() {
-        String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
-        Cursor cursor = null;
-        int result = 0;
-        try {
-            cursor = storageEngine.rawQuery(sql, null);
-            if (cursor.moveToNext()) {
-                result = cursor.getInt(0);
-            }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting document count", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return result;
+        if (inTransaction())
+            return documentCount.get() + pendingCounters.get().documentCountDelta;
+        return documentCount.get();
     }
 
     /**
@@ -631,22 +843,9 @@ public class SQLiteStore implements Store, EncryptableStore {
      * used to check whether the storageEngine has changed between two points in time.
      */
     public long getLastSequence() {
-        String sql = "SELECT MAX(sequence) FROM revs";
-        Cursor cursor = null;
-        long result = 0;
-        try {
-            cursor = storageEngine.rawQuery(sql, null);
-            if (cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting last sequence", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return result;
+        if (inTransaction())
+            return pendingCounters.get().lastSequence;
+        return lastSequence.get();
     }
 
     /**
@@ -767,8 +966,9 @@ public class SQLiteStore implements Store, EncryptableStore {
         if (revID != null)
             sql.append(" FROM revs WHERE revs.doc_id=? AND revid=? LIMIT 1");
         else {
-            sql.append(" FROM revs WHERE revs.doc_id=? and current=1 ");
-            sql.append("ORDER BY deleted ASC, revid DESC LIMIT 1");
+            // The winning revision is cached in the 'docs' row:
+            sql.append(" FROM revs WHERE sequence=");
+            sql.append("(SELECT winning_sequence FROM docs WHERE doc_id=?)");
         }
 
         RevisionInternal result = null;
@@ -1169,17 +1369,42 @@ public class SQLiteStore implements Store, EncryptableStore {
     public Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException {
 
         Map<String, Object> result = new HashMap<String, Object>();
-        List<QueryRow> rows = new ArrayList<QueryRow>();
         if (options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
+        }
 
         long updateSeq = 0;
         if (options.isUpdateSeq()) {
             updateSeq = getLastSequence();  // TODO: needs to be atomic with the following SELECT
         }
 
+        List<QueryRow> rows = getAllDocsIterator(options).toList();
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", options.getSkip());
+        if (updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+
+        return result;
+    }
+
+    /**
+     * Iterates over all documents in the database, reading the rows from the database as
+     * they're iterated. Documents are parsed on demand.
+     */
+    @Override
+    public QueryRowIterator getAllDocsIterator(QueryOptions options) throws CouchbaseLiteException {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        final QueryOptions queryOptions = options;
+        final boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+
         // Generate the SELECT statement, based on the options:
         StringBuilder sql = new StringBuilder("SELECT revs.doc_id, docid, revid, sequence");
         if (options.isIncludeDocs()) {
@@ -1191,7 +1416,7 @@ public class SQLiteStore implements Store, EncryptableStore {
         sql.append(" FROM revs, docs WHERE");
         if (options.getKeys() != null) {
             if (options.getKeys().size() == 0) {
-                return result;
+                return QueryRowIterator.fromList(new ArrayList<QueryRow>());
             }
             String commaSeperatedIds = TextUtils.joinQuotedObjects(options.getKeys());
             sql.append(String.format(Locale.ENGLISH, " revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND",
@@ -1205,13 +1430,13 @@ public class SQLiteStore implements Store, EncryptableStore {
         List<String> args = new ArrayList<String>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
-        boolean inclusiveMin = true;
+        boolean inclusiveMin = options.isInclusiveStart();
         boolean inclusiveMax = options.isInclusiveEnd();
         if (options.isDescending()) {
             minKey = maxKey;
             maxKey = options.getStartKey();
             inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
+            inclusiveMax = options.isInclusiveStart();
         }
         if (minKey != null) {
             assert (minKey instanceof String);
@@ -1237,40 +1462,67 @@ public class SQLiteStore implements Store, EncryptableStore {
         args.add(Integer.toString(options.getSkip()));
 
         // Now run the database query:
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+        final Cursor cursor;
         try {
-            // Get row values now, before the code below advances 'cursor':
             cursor = storageEngine.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, Status.INTERNAL_SERVER_ERROR);
+        }
 
-            boolean keepGoing = cursor.moveToNext(); // Go to first result row
-            while (keepGoing) {
+        QueryRowIterator rows = new QueryRowIterator() {
+            private boolean started = false;
+            private boolean keepGoing = false;
+
+            @Override
+            protected QueryRow fetchNext() throws CouchbaseLiteException {
+                try {
+                    if (!started) {
+                        keepGoing = cursor.moveToNext(); // Go to first result row
+                        started = true;
+                    }
+                    while (keepGoing) {
+                        QueryRow change = allDocsRow();
+                        if (change == null)
+                            continue;
+                        // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
+                        if (queryOptions.getKeys() != null ||
+                                queryOptions.getPostFilter() == null ||
+                                queryOptions.getPostFilter().apply(change))
+                            return change;
+                    }
+                    return null;
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error getting all docs", e);
+                    throw new CouchbaseLiteException("Error getting all docs", e,
+                            Status.INTERNAL_SERVER_ERROR);
+                }
+            }
+
+            /**
+             * Reads the current document's rows, leaving the cursor on the next document's.
+             * Returns null if the document is to be skipped.
+             */
+            private QueryRow allDocsRow() {
                 long docNumericID = cursor.getLong(0);
                 String docID = cursor.getString(1);
                 String revID = cursor.getString(2);
                 long sequence = cursor.getLong(3);
-                boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options)) > 0;
+                boolean deleted = includeDeletedDocs &&
+                        cursor.getInt(getDeletedColumnIndex(queryOptions)) > 0;
                 RevisionInternal docRevision = null;
-                if (options.isIncludeDocs()) {
-                    //docRevision = revision(docID, revID, deleted, sequence, cursor.getBlob(4));
+                if (queryOptions.isIncludeDocs()) {
                     byte[] json = cursor.getBlob(4);
-                    Map<String, Object> properties = documentPropertiesFromJSON(json, docID, revID,
-                            false, sequence);
-                    docRevision = revision(
-                            docID,    // docID
-                            revID,    // revID
-                            false,    // deleted
-                            sequence, // sequence
-                            properties// properties
-                    );
+                    docRevision = LazyDocumentBody.revision(SQLiteStore.this, docID, revID,
+                            sequence, json);
                 }
 
                 // Iterate over following rows with the same doc_id -- these are conflicts.
                 // Skip them, but collect their revIDs if the 'conflicts' option is set:
                 List<String> conflicts = new ArrayList<String>();
                 while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
-                    if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
-                            options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
+                    if (queryOptions.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
+                            queryOptions.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
                         if (conflicts.isEmpty()) {
                             conflicts.add(revID);
                         }
@@ -1278,8 +1530,8 @@ public class SQLiteStore implements Store, EncryptableStore {
                     }
                 }
 
-                if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty())
-                    continue;
+                if (queryOptions.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty())
+                    return null;
 
                 Map<String, Object> value = new HashMap<String, Object>();
                 value.put("rev", revID);
@@ -1287,20 +1539,27 @@ public class SQLiteStore implements Store, EncryptableStore {
                 if (includeDeletedDocs) {
                     value.put("deleted", (deleted ? true : null));
                 }
-                QueryRow change = new QueryRow(docID,
+                return new QueryRow(docID,
                         sequence,
                         docID,
                         value,
                         docRevision);
-                if (options.getKeys() != null)
-                    docs.put(docID, change);
-                    // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
-                else if (options.getPostFilter() == null || options.getPostFilter().apply(change))
-                    rows.add(change);
             }
 
-            // If given doc IDs, sort the output into that order, and add entries for missing docs:
-            if (options.getKeys() != null) {
+            @Override
+            protected void closeCursor() {
+                cursor.close();
+            }
+        };
+
+        // If given doc IDs, sort the output into that order, and add entries for missing docs:
+        if (options.getKeys() != null) {
+            Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+            for (QueryRow change : rows.toList())
+                docs.put(change.getSourceDocumentId(), change);
+
+            List<QueryRow> sortedRows = new ArrayList<QueryRow>();
+            try {
                 for (Object docIdObject : options.getKeys()) {
                     if (docIdObject instanceof String) {
                         String docID = (String) docIdObject;
@@ -1320,27 +1579,17 @@ public class SQLiteStore implements Store, EncryptableStore {
                             change = new QueryRow((value != null ? docID : null), 0, docID, value, null);
                         }
                         // TODO add options.filter
-                        rows.add(change);
+                        sortedRows.add(change);
                     }
                 }
+            } catch (SQLException e) {
+                Log.e(TAG, "Error getting all docs", e);
+                throw new CouchbaseLiteException("Error getting all docs", e, Status.INTERNAL_SERVER_ERROR);
             }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting all docs", e);
-            throw new CouchbaseLiteException("Error getting all docs", e, Status.INTERNAL_SERVER_ERROR);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            return QueryRowIterator.fromList(sortedRows);
         }
 
-        result.put("rows", rows);
-        result.put("total_rows", rows.size());
-        result.put("offset", options.getSkip());
-        if (updateSeq != 0) {
-            result.put("update_seq", updateSeq);
-        }
-
-        return result;
+        return rows;
     }
 
     @Override
@@ -1640,10 +1889,10 @@ public class SQLiteStore implements Store, EncryptableStore {
             // Make replaced rev non-current:
             if (parentSequence > 0) {
                 try {
-                    ContentValues args = new ContentValues();
-                    args.put("current", 0);
-                    args.put("doc_type", (String) null);
-                    storageEngine.update("revs", args, "sequence=?", new String[]{String.valueOf(parentSequence)});
+                    Statement statement = storageEngine.getStatement(
+                            "UPDATE revs SET current=0, doc_type=NULL WHERE sequence=?");
+                    statement.bindLong(1, parentSequence);
+                    statement.executeUpdateDelete();
                 } catch (SQLException e) {
                     Log.e(TAG, "Error setting parent rev non-current", e);
                     storageEngine.delete("revs", "sequence=?", new String[]{String.valueOf(sequence)});
@@ -1653,6 +1902,10 @@ public class SQLiteStore implements Store, EncryptableStore {
 
             if (sequence <= 0) {
                 // duplicate rev; see above
+                AtomicBoolean isDeleted = new AtomicBoolean(false);
+                String refreshedRevID = winningRevIDOfDocNumericID(docNumericID, isDeleted, null);
+                updateDocumentCount(oldWinningRevID != null && !oldWinnerWasDeletion.get(),
+                        refreshedRevID != null && !isDeleted.get());
                 outStatus.setCode(Status.OK);
                 if (newRev.getSequence() != 0)
                     delegate.databaseStorageChanged(new DocumentChange(newRev, winningRevID, inConflict, null));
@@ -1668,11 +1921,13 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
 
             // Figure out what the new winning rev ID is:
-            winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(), newRev, deleting ? wasConflicted : null);
+            AtomicBoolean isConflict = new AtomicBoolean(false);
+            winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(),
+                    isConflict);
             // Note: In case of deleting and previously conflicting, there is possiblity
             // no longer conflicted. Need to re-check if it is still conflicted.
             if (deleting)
-                inConflict = inConflict && wasConflicted.get();
+                inConflict = inConflict && isConflict.get();
 
             // Success!
             if (deleting)
@@ -1708,6 +1963,114 @@ public class SQLiteStore implements Store, EncryptableStore {
                             StorageValidation validationBlock,
                             URL source)
             throws CouchbaseLiteException {
+        forceInsert(inRev, history, validationBlock, source, null);
+    }
+
+    /**
+     * Inserts a batch of already-existing revisions, as forceInsert does, in a single transaction.
+     * The documents' row IDs and their local revisions are looked up with one query each for the
+     * whole batch, instead of once per revision. The delegate is told about each inserted revision
+     * as usual; it posts them together when the transaction commits.
+     */
+    @Override
+    @InterfaceAudience.Private
+    public List<Status> forceInsertBatch(List<RevisionInternal> inRevs,
+                                         List<List<String>> histories,
+                                         StorageValidation validationBlock,
+                                         URL source)
+            throws CouchbaseLiteException {
+        List<Status> statuses = new ArrayList<Status>(inRevs.size());
+        boolean success = false;
+        if (!beginTransaction())
+            throw new CouchbaseLiteException("Error in beginTransaction()", Status.DB_ERROR);
+        try {
+            Map<String, Map<String, RevisionInternal>> localRevsByDocID = loadLocalRevisions(inRevs);
+            for (int i = 0; i < inRevs.size(); i++) {
+                RevisionInternal inRev = inRevs.get(i);
+                // Preloaded revisions are only valid until the doc's first insertion in this batch:
+                Map<String, RevisionInternal> localRevs = localRevsByDocID.remove(inRev.getDocID());
+                Status status;
+                try {
+                    status = forceInsert(inRev, histories.get(i), validationBlock, source, localRevs);
+                } catch (CouchbaseLiteException e) {
+                    status = e.getCBLStatus();
+                }
+                statuses.add(status);
+            }
+            success = true;
+        } finally {
+            if (!endTransaction(success))
+                throw new CouchbaseLiteException("Error in endTransaction()", Status.DB_ERROR);
+        }
+        return statuses;
+    }
+
+    /**
+     * Looks up the row IDs of the given revisions' documents, and all their local revisions,
+     * in two queries. Documents that don't exist yet are not included in the result.
+     */
+    private Map<String, Map<String, RevisionInternal>> loadLocalRevisions(List<RevisionInternal> revs)
+            throws CouchbaseLiteException {
+        Map<String, Map<String, RevisionInternal>> result =
+                new HashMap<String, Map<String, RevisionInternal>>();
+        Set<String> docIDSet = new HashSet<String>();
+        for (RevisionInternal rev : revs)
+            docIDSet.add(rev.getDocID());
+        if (docIDSet.size() == 0)
+            return result;
+
+        Map<Long, String> docIDsByNumericID = new HashMap<Long, String>();
+        long purgeCount = docIDsPurgeCount.get();
+        String sql = String.format(Locale.ENGLISH,
+                "SELECT doc_id, docid FROM docs WHERE docid IN (%s)",
+                TextUtils.joinQuoted(new ArrayList<String>(docIDSet)));
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                long docNumericID = cursor.getLong(0);
+                String docID = cursor.getString(1);
+                cacheDocNumericID(docID, docNumericID, purgeCount);
+                docIDsByNumericID.put(docNumericID, docID);
+                result.put(docID, new HashMap<String, RevisionInternal>());
+            }
+            if (docIDsByNumericID.size() == 0)
+                return result;
+            cursor.close();
+
+            sql = String.format(Locale.ENGLISH,
+                    "SELECT doc_id, sequence, revid, deleted FROM revs WHERE doc_id IN (%s)",
+                    TextUtils.join(",", docIDsByNumericID.keySet()));
+            cursor = storageEngine.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                String docID = docIDsByNumericID.get(cursor.getLong(0));
+                RevisionInternal rev = new RevisionInternal(docID,
+                        cursor.getString(2),
+                        (cursor.getInt(3) > 0));
+                rev.setSequence(cursor.getLong(1));
+                result.get(docID).put(rev.getRevID(), rev);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error loading local revisions", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * @param preloadedLocalRevs all the local revisions of the document keyed by revID, or null
+     *                           to look them up. Ignored if the document doesn't exist yet.
+     * @return Status.CREATED, or Status.OK if no new revisions were inserted.
+     */
+    private Status forceInsert(RevisionInternal inRev,
+                               List<String> history,
+                               StorageValidation validationBlock,
+                               URL source,
+                               Map<String, RevisionInternal> preloadedLocalRevs)
+            throws CouchbaseLiteException {
 
         Status status = new Status(Status.UNKNOWN);
 
@@ -1732,12 +2095,16 @@ public class SQLiteStore implements Store, EncryptableStore {
             if (docNumericID <= 0)
                 throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
             if (!isNewDoc.get()) {
-                RevisionList localRevsList = getAllRevisions(docID, docNumericID, false);
-                if (localRevsList == null)
-                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-                localRevs = new HashMap<String, RevisionInternal>();
-                for (RevisionInternal r : localRevsList)
-                    localRevs.put(r.getRevID(), r);
+                if (preloadedLocalRevs != null) {
+                    localRevs = preloadedLocalRevs;
+                } else {
+                    RevisionList localRevsList = getAllRevisions(docID, docNumericID, false);
+                    if (localRevsList == null)
+                        throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                    localRevs = new HashMap<String, RevisionInternal>();
+                    for (RevisionInternal r : localRevsList)
+                        localRevs.put(r.getRevID(), r);
+                }
 
                 // Look up which rev is the winner, before this insertion
                 oldWinningRevID = winningRevIDOfDocNumericID(
@@ -1817,13 +2184,12 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
             // Mark the latest local rev as no longer current:
             else if (localParentSequence > 0) {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                args.put("doc_type", (String) null);
-                String[] whereArgs = {Long.toString(localParentSequence)};
                 int numRowsChanged = 0;
                 try {
-                    numRowsChanged = storageEngine.update("revs", args, "sequence=? AND current>0", whereArgs);
+                    Statement statement = storageEngine.getStatement(
+                            "UPDATE revs SET current=0, doc_type=NULL WHERE sequence=? AND current>0");
+                    statement.bindLong(1, localParentSequence);
+                    numRowsChanged = statement.executeUpdateDelete();
                     if (numRowsChanged == 0)
                         inConflict.set(true);  // local parent wasn't a leaf, ergo we just created a branch
                 } catch (SQLException e) {
@@ -1858,7 +2224,8 @@ public class SQLiteStore implements Store, EncryptableStore {
 
             if (!success) {
                 // Figure out what the new winning rev ID is:
-                winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(), rev, null);
+                winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(),
+                        null);
                 success = true;
                 status.setCode(Status.CREATED);
             }
@@ -1874,6 +2241,7 @@ public class SQLiteStore implements Store, EncryptableStore {
             delegate.databaseStorageChanged(new DocumentChange(rev, winningRevID, inConflict.get(), source));
         else if (status.isError())
             throw new CouchbaseLiteException(status);
+        return status;
     }
 
     /**
@@ -1905,11 +2273,17 @@ public class SQLiteStore implements Store, EncryptableStore {
                         // row will delete all 'revs' rows due to cascading.
                         Log.v(TAG, "Purging doc '%s'", docID);
                         try {
+                            boolean wasLive = isLiveDocument(docNumericID);
                             String[] args = {Long.toString(docNumericID)};
                             storageEngine.execSQL("DELETE FROM docs WHERE doc_id=?", args);
+                            updateDocumentCount(wasLive, false);
+                            refreshLastSequence();
                         } catch (SQLException e) {
                             Log.e(TAG, "Error deleting revisions", e);
                             return false;
+                        } catch (CouchbaseLiteException e) {
+                            Log.e(TAG, "Error getting winning revision", e);
+                            return false;
                         }
                         invalidateDocNumericID(docID);
                         notifyPurgedDocument(docID);
@@ -1957,13 +2331,23 @@ public class SQLiteStore implements Store, EncryptableStore {
 
                             Log.i(TAG, "Purging doc '%s' revs (%s)", docID, revIDs);
                             // Now delete the sequences to be purged.
+                            boolean wasLive = isLiveDocument(docNumericID);
                             if (!purgeSequences(seqsToPurge))
                                 return false;
+                            if (seqsToPurge.size() > 0) {
+                                AtomicBoolean isDeleted = new AtomicBoolean(false);
+                                String winningRevID = winningRevIDOfDocNumericID(docNumericID, isDeleted, null);
+                                updateDocumentCount(wasLive, winningRevID != null && !isDeleted.get());
+                                refreshLastSequence();
+                            }
 
                             revsPurged.addAll(revsToPurge);
                         } catch (SQLException e) {
                             Log.e(TAG, "Error getting revisions", e);
                             return false;
+                        } catch (CouchbaseLiteException e) {
+                            Log.e(TAG, "Error getting winning revision", e);
+                            return false;
                         } finally {
                             if (cursor != null) {
                                 cursor.close();
@@ -2065,8 +2449,14 @@ public class SQLiteStore implements Store, EncryptableStore {
 
                 // Now delete the docs:
                 try {
+                    int nLive = SQLiteUtils.intForQuery(storageEngine,
+                            "SELECT COUNT(*) FROM docs WHERE expiry_timestamp <= ? and expiry_timestamp != 0" +
+                                    " AND winning_revid NOT NULL AND winning_deleted=0", args);
                     int count = storageEngine.delete("docs", "expiry_timestamp <= ? and expiry_timestamp != 0", args);
                     Log.v(TAG, "purged doc count: %d/%d", count, purgedIDs.size());
+                    pendingCounters.get().documentCountDelta -= nLive;
+                    if (count > 0)
+                        refreshLastSequence();
                 } catch (SQLException e) {
                     Log.w(TAG, "Failed to delete from docs expiry_timestamp <= %d", e, nowUnixTime);
                     return false;
@@ -2091,6 +2481,33 @@ public class SQLiteStore implements Store, EncryptableStore {
     // VIEWS:
     ///////////////////////////////////////////////////////////////////////////
 
+    protected int getIndexingThreadCount() {
+        return manager.getIndexingThreadCount();
+    }
+
+    /**
+     * Returns the thread pool that runs view map functions during indexing, or null if they
+     * should run on the indexing thread. See ManagerOptions.setIndexingThreadCount().
+     */
+    protected synchronized ExecutorService getIndexingExecutor() {
+        final int nThreads = getIndexingThreadCount();
+        if (nThreads <= 1)
+            return null;
+        if (indexingExecutor == null) {
+            indexingExecutor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLIndexer-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return indexingExecutor;
+    }
+
     /**
      * Instantiates storage for a view.
      *
@@ -2297,6 +2714,7 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     /**
      * Returns the rev ID of the 'winning' revision of this document, and whether it's deleted.
+     * The winner is cached in the document's 'docs' row, so this is a primary-key lookup.
      * <p/>
      * in CBLDatabase+Internal.m
      * - (NSString*) winningRevIDOfDocNumericID: (SInt64)docNumericID
@@ -2310,21 +2728,16 @@ public class SQLiteStore implements Store, EncryptableStore {
             throws CouchbaseLiteException {
         assert (docNumericId > 0);
         Cursor cursor = null;
-        String sql = "SELECT revid, deleted FROM revs" +
-                " WHERE doc_id=? and current=1" +
-                " ORDER BY deleted asc, revid desc LIMIT ?";
-
-        long limit = outIsConflict != null ? 2 : 1;
-        String[] args = {Long.toString(docNumericId), Long.toString(limit)};
+        String sql = "SELECT winning_revid, winning_deleted, conflicted FROM docs WHERE doc_id=?";
+        String[] args = {Long.toString(docNumericId)};
         String revID = null;
         try {
             cursor = storageEngine.rawQuery(sql, args);
-            if (cursor.moveToNext()) {
+            if (cursor.moveToNext() && !cursor.isNull(0)) {
                 revID = cursor.getString(0);
                 outIsDeleted.set(cursor.getInt(1) > 0);
-                // The document is in conflict if there are two+ result rows that are not deletions.
                 if (outIsConflict != null)
-                    outIsConflict.set(!outIsDeleted.get() && cursor.moveToNext() && !(cursor.getInt(1) > 0));
+                    outIsConflict.set(cursor.getInt(2) > 0);
             } else {
                 outIsDeleted.set(false);
                 if (outIsConflict != null)
@@ -2341,6 +2754,12 @@ public class SQLiteStore implements Store, EncryptableStore {
         return revID;
     }
 
+    private boolean isLiveDocument(long docNumericID) throws CouchbaseLiteException {
+        AtomicBoolean isDeleted = new AtomicBoolean(false);
+        String revID = winningRevIDOfDocNumericID(docNumericID, isDeleted, new AtomicBoolean(false));
+        return revID != null && !isDeleted.get();
+    }
+
     /**
      * https://github.com/couchbase/couchbase-lite-ios/issues/615
      */
@@ -2365,6 +2784,24 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
     }
 
+    /**
+     * Begins a read-only transaction, whose queries all see the same snapshot of the database.
+     * It runs on one of the connection pool's read connections, so it doesn't block writers.
+     * If a transaction is already open on this thread, its queries already see a consistent
+     * state, so nothing is done and false is returned; otherwise the caller must call
+     * endReadTransaction() when done.
+     */
+    protected boolean beginReadTransaction() {
+        if (inTransaction())
+            return false;
+        storageEngine.beginReadTransaction();
+        return true;
+    }
+
+    protected void endReadTransaction() {
+        storageEngine.endTransaction();
+    }
+
     /**
      * Begins a storageEngine transaction. Transactions can nest.
      * Every beginTransaction() must be balanced by a later endTransaction()
@@ -2413,6 +2850,13 @@ public class SQLiteStore implements Store, EncryptableStore {
                 storageEngine.execSQL("SAVEPOINT cbl_" + Integer.toString(tLevel));
             }
             Log.v(Log.TAG_DATABASE, "%s Begin transaction (level %d)", Thread.currentThread().getName(), tLevel);
+            PendingCounters pending = pendingCounters.get();
+            if (tLevel == 0) {
+                pending.savepoints.clear();
+                pending.lastSequence = lastSequence.get();
+                pending.documentCountDelta = 0;
+            }
+            pending.savepoints.add(new long[]{pending.lastSequence, pending.documentCountDelta});
             transactionLevel.set(++tLevel);
         } catch (SQLException e) {
             Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling beginTransaction()", e);
@@ -2436,12 +2880,23 @@ public class SQLiteStore implements Store, EncryptableStore {
 
         transactionLevel.set(--tLevel);
 
+        // Restore the counters saved when this level began if it is rolled back:
+        PendingCounters pending = pendingCounters.get();
+        long[] savepoint = pending.savepoints.remove(pending.savepoints.size() - 1);
+        if (!commit) {
+            pending.lastSequence = savepoint[0];
+            pending.documentCountDelta = (int) savepoint[1];
+        }
+
         // Outer (level 0) transaction. Use SQLiteDatabase.setTransactionSuccessful() and SQLiteDatabase.endTransaction()
         if (tLevel == 0) {
             if (commit) {
                 Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                int newDocumentCount = documentCount.get() + pending.documentCountDelta;
                 storageEngine.setTransactionSuccessful();
                 storageEngine.endTransaction();
+                lastSequence.set(pending.lastSequence);
+                documentCount.set(newDocumentCount);
             } else {
                 Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
                 try {
@@ -2473,6 +2928,11 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
         }
 
+        if (!commit)
+            discardPendingDocNumericIDs(tLevel == 0);
+        else if (tLevel == 0)
+            publishPendingDocNumericIDs();
+
         if (delegate != null)
             delegate.storageExitedTransaction(commit);
 
@@ -2659,6 +3119,91 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
     }
 
+    // Loads the last sequence and the document count when the database opens. The document count
+    // is kept in the 'info' table by triggers on 'docs' (see WINNER_TRIGGERS); if it is missing
+    // or invalid it is counted once from the 'docs' table.
+    private void loadCounters() {
+        long lastSeq = queryLastSequence();
+        int docCount = -1;
+        String info = getInfo("doc_count");
+        if (info != null) {
+            try {
+                docCount = Integer.parseInt(info);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid doc_count in info table: %s", info);
+            }
+        }
+        if (docCount < 0 || (docCount > 0 && lastSeq == 0)) {
+            docCount = SQLiteUtils.intForQuery(storageEngine,
+                    "SELECT COUNT(*) FROM docs WHERE winning_revid NOT NULL AND winning_deleted=0",
+                    null);
+            Log.v(TAG, "Counted %d documents", docCount);
+            setInfo("doc_count", String.valueOf(docCount));
+        }
+        lastSequence.set(lastSeq);
+        documentCount.set(docCount);
+        if (inTransaction()) {
+            PendingCounters pending = pendingCounters.get();
+            pending.lastSequence = lastSeq;
+            pending.documentCountDelta = 0;
+            for (long[] savepoint : pending.savepoints) {
+                savepoint[0] = lastSeq;
+                savepoint[1] = 0;
+            }
+        }
+    }
+
+    private long queryLastSequence() {
+        String sql = "SELECT MAX(sequence) FROM revs";
+        Cursor cursor = null;
+        long result = 0;
+        try {
+            cursor = storageEngine.rawQuery(sql, null);
+            if (cursor.moveToNext()) {
+                result = cursor.getLong(0);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting last sequence", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    // Records a newly allocated sequence. Inside a transaction it is only published on commit.
+    private void noteSequence(long sequence) {
+        if (inTransaction()) {
+            PendingCounters pending = pendingCounters.get();
+            if (sequence > pending.lastSequence)
+                pending.lastSequence = sequence;
+        } else if (sequence > lastSequence.get()) {
+            lastSequence.set(sequence);
+        }
+    }
+
+    // Re-reads the last sequence after revisions may have been deleted.
+    private void refreshLastSequence() {
+        if (inTransaction())
+            pendingCounters.get().lastSequence = queryLastSequence();
+        else
+            lastSequence.set(queryLastSequence());
+    }
+
+    // Records a document becoming live or being deleted/purged. (The persistent count is updated
+    // by the 'docs_live_*' triggers.)
+    private void updateDocumentCount(boolean wasLive, boolean isLive) {
+        if (wasLive == isLive)
+            return;
+        int delta = isLive ? 1 : -1;
+        if (inTransaction()) {
+            pendingCounters.get().documentCountDelta += delta;
+        } else {
+            documentCount.addAndGet(delta);
+        }
+    }
+
     private long getLastOptimized() {
         String info = getInfo("last_optimized");
         if (info != null) {
@@ -2673,9 +3218,16 @@ public class SQLiteStore implements Store, EncryptableStore {
     }
 
     protected long getDocNumericID(String docID) {
-        return SQLiteUtils.longForQuery(storageEngine,
-                "SELECT doc_id FROM docs WHERE docid=?",
-                new String[]{docID});
+        Long cached = cachedDocNumericID(docID);
+        if (cached != null)
+            return cached;
+        long purgeCount = docIDsPurgeCount.get();
+        Statement statement = storageEngine.getStatement("SELECT doc_id FROM docs WHERE docid=?");
+        statement.bindString(1, docID);
+        long docNumericID = statement.simpleQueryForLong(0);
+        if (docNumericID > 0)
+            cacheDocNumericID(docID, docNumericID, purgeCount);
+        return docNumericID;
     }
 
     // Registers a docID and returns its numeric row ID in the 'docs' table.
@@ -2683,8 +3235,13 @@ public class SQLiteStore implements Store, EncryptableStore {
     // On return, *ioIsNew will be YES iff the docID is newly-created (was not known before.)
     // Return value is the positive row ID of this doc, or <= 0 on error.
     private long createOrGetDocNumericID(String docID, AtomicBoolean isNew) {
-        // TODO: cache
+        Long cached = cachedDocNumericID(docID);
+        if (cached != null) {
+            isNew.set(false);
+            return cached;
+        }
 
+        long purgeCount = docIDsPurgeCount.get();
         long row = isNew.get() ? createDocNumericID(docID, isNew) : getDocNumericID(docID);
         if (row < 0)
             return row;
@@ -2693,17 +3250,93 @@ public class SQLiteStore implements Store, EncryptableStore {
             row = isNew.get() ? createDocNumericID(docID, isNew) : getDocNumericID(docID);
         }
 
-        // TODO: cache: https://github.com/couchbase/couchbase-lite-java-core/issues/1265
+        if (row > 0)
+            cacheDocNumericID(docID, row, purgeCount);
 
         return row;
     }
 
+    private Long cachedDocNumericID(String docID) {
+        if (inTransaction()) {
+            PendingDocIDs pending = pendingDocIDs.get();
+            Long docNumericID = pending.docIDs.get(docID);
+            if (docNumericID != null)
+                return docNumericID > 0 ? docNumericID : null;
+            if (pending.purgedAll)
+                return null;
+        }
+        return docIDs.get(docID);
+    }
+
+    // purgeCount is the value of docIDsPurgeCount before docNumericID was looked up.
+    private void cacheDocNumericID(String docID, long docNumericID, long purgeCount) {
+        // Inside a transaction the row may not be committed yet, so keep it private to this
+        // thread until the outermost transaction commits (or drop it if it is rolled back):
+        if (inTransaction()) {
+            pendingDocIDs.get().docIDs.put(docID, docNumericID);
+            return;
+        }
+        // Outside one, a purge may have committed since the lookup:
+        synchronized (docIDs) {
+            if (docIDsPurgeCount.get() == purgeCount)
+                docIDs.put(docID, docNumericID);
+        }
+    }
+
+    private void publishPendingDocNumericIDs() {
+        PendingDocIDs pending = pendingDocIDs.get();
+        // Readers on other threads may have re-cached a purged doc_id before the purge
+        // committed, so purges are applied to the shared cache again here:
+        synchronized (docIDs) {
+            if (pending.purgedAll) {
+                docIDsPurgeCount.incrementAndGet();
+                docIDs.evictAll();
+            }
+            for (Map.Entry<String, Long> entry : pending.docIDs.entrySet()) {
+                if (entry.getValue() > 0) {
+                    docIDs.put(entry.getKey(), entry.getValue());
+                } else {
+                    docIDsPurgeCount.incrementAndGet();
+                    docIDs.remove(entry.getKey());
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    // Any doc_id looked up or created since the transaction began may be gone after a rollback.
+    // Purges are kept pending until the outermost transaction ends, as it may still commit them.
+    private void discardPendingDocNumericIDs(boolean outermost) {
+        PendingDocIDs pending = pendingDocIDs.get();
+        if (outermost) {
+            pending.clear();
+            return;
+        }
+        Iterator<Long> it = pending.docIDs.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() > 0)
+                it.remove();
+        }
+    }
+
     private void invalidateDocNumericID(String docID) {
-        // TODO: cache: https://github.com/couchbase/couchbase-lite-java-core/issues/1265
+        synchronized (docIDs) {
+            docIDsPurgeCount.incrementAndGet();
+            docIDs.remove(docID);
+        }
+        if (inTransaction())
+            pendingDocIDs.get().docIDs.put(docID, 0L);
     }
 
     private void invalidateDocNumericIDs() {
-        // TODO: cache: https://github.com/couchbase/couchbase-lite-java-core/issues/1265
+        synchronized (docIDs) {
+            docIDsPurgeCount.incrementAndGet();
+            docIDs.evictAll();
+        }
+        PendingDocIDs pending = pendingDocIDs.get();
+        pending.clear();
+        if (inTransaction())
+            pending.purgedAll = true;
     }
 
     //private long getOrInsertDocNumericID(String docID) {
@@ -2721,9 +3354,9 @@ public class SQLiteStore implements Store, EncryptableStore {
     private long insertDocumentID(String docID) {
         long rowId = -1;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docID);
-            rowId = storageEngine.insert("docs", null, args);
+            Statement statement = storageEngine.getStatement("INSERT INTO docs (docid) VALUES (?)");
+            statement.bindString(1, docID);
+            rowId = statement.executeInsert();
         } catch (Exception e) {
             Log.e(TAG, "Error inserting document id", e);
         }
@@ -2739,18 +3372,23 @@ public class SQLiteStore implements Store, EncryptableStore {
                                 byte[] json,
                                 String docType)
             throws SQLException {
-        ContentValues args = new ContentValues();
-        args.put("doc_id", docNumericID);
-        args.put("revid", rev.getRevID());
+        Statement statement = storageEngine.getStatement(
+                "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json, doc_type)" +
+                        " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        statement.bindLong(1, docNumericID);
+        statement.bindString(2, rev.getRevID());
         if (parentSequence != 0)
-            args.put("parent", parentSequence);
-        args.put("current", current);
-        args.put("deleted", rev.isDeleted());
-        args.put("no_attachments", !hasAttachments);
-        args.put("json", json);
-        args.put("doc_type", docType);
-        long rowId = storageEngine.insertOrThrow("revs", null, args);
+            statement.bindLong(3, parentSequence);
+        else
+            statement.bindNull(3);
+        statement.bindLong(4, current ? 1 : 0);
+        statement.bindLong(5, rev.isDeleted() ? 1 : 0);
+        statement.bindLong(6, hasAttachments ? 0 : 1);
+        statement.bindBlob(7, json);
+        statement.bindString(8, docType);
+        long rowId = statement.executeInsert();
         rev.setSequence(rowId);
+        noteSequence(rowId);
         return rowId;
     }
 
@@ -2819,30 +3457,23 @@ public class SQLiteStore implements Store, EncryptableStore {
         return rev;
     }
 
+    /**
+     * Returns the winning revision after a revision has been inserted, as the triggers on 'revs'
+     * have stored it in the 'docs' row, or null if it didn't change.
+     *
+     * Also keeps the document count up to date.
+     */
     private String winner(long docNumericID,
                           String oldWinningRevID,
                           boolean oldWinnerWasDeletion,
-                          RevisionInternal newRev,
                           AtomicBoolean outIsConflict) // optional
             throws CouchbaseLiteException {
-
-        String newRevID = newRev.getRevID();
-        if (oldWinningRevID == null) {
-            return newRevID;
-        }
-        if (!newRev.isDeleted()) {
-            if (oldWinnerWasDeletion || RevisionInternal.CBLCompareRevIDs(newRevID, oldWinningRevID) > 0)
-                return newRevID; // this is now the winning live revision
-        } else if (oldWinnerWasDeletion) {
-            if (RevisionInternal.CBLCompareRevIDs(newRevID, oldWinningRevID) > 0)
-                return newRevID; // doc still deleted, but this beats previous deletion rev
-        } else {
-            // Doc was alive. How does this deletion affect the winning rev ID?
-            AtomicBoolean outIsDeleted = new AtomicBoolean(false);
-            String winningRevID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, outIsConflict);
-            if (!winningRevID.equals(oldWinningRevID))
-                return winningRevID;
-        }
-        return null; // no change
+        AtomicBoolean outIsDeleted = new AtomicBoolean(false);
+        String winningRevID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, outIsConflict);
+        updateDocumentCount(oldWinningRevID != null && !oldWinnerWasDeletion,
+                winningRevID != null && !outIsDeleted.get());
+        if (winningRevID == null || winningRevID.equals(oldWinningRevID))
+            return null; // no change
+        return winningRevID;
     }
 }
\ No newline at end of file
@@ -13,14 +13,19 @@
  */
 package com.couchbase.lite.store;
 
+import com.couchbase.lite.BuiltInReducer;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Emitter;
+import com.couchbase.lite.FullTextQueryRow;
+import com.couchbase.lite.GeoQueryRow;
+import com.couchbase.lite.GeoRect;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Mapper;
 import com.couchbase.lite.Predicate;
 import com.couchbase.lite.QueryOptions;
 import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.Reducer;
+import com.couchbase.lite.SpecialKey;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.View;
@@ -30,32 +35,64 @@ import com.couchbase.lite.internal.database.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.Statement;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.CountDown;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.SQLiteUtils;
+import com.couchbase.lite.util.TextUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class SQLiteViewStore implements ViewStore, QueryRowStore {
     public static String TAG = Log.TAG_VIEW;
 
-    private abstract class AbstractMapEmitBlock implements Emitter {
-        protected long sequence = 0;
+    private static final int REDUCE_BATCH_SIZE = 100;
 
-        void setSequence(long sequence) {
-            this.sequence = sequence;
-        }
-    }
+    // Max number of sequences read and indexed in one pair of read and write transactions
+    private static final int INDEX_CHUNK_SIZE = 1000;
 
-    private static final int REDUCE_BATCH_SIZE = 100;
+    // Parallel indexing: number of documents per map task, and max tasks in flight per thread
+    private static final int MAP_BATCH_SIZE = 50;
+    private static final int MAX_PENDING_MAP_BATCHES_PER_THREAD = 4;
+
+    // Number of map rows inserted by one INSERT statement (4 parameters each; SQLite allows 999)
+    private static final int MAP_INSERT_BATCH_SIZE = 100;
+
+    // Max number of changed documents whose rows updateRegularQuery patches into a result
+    private static final int MAX_UPDATED_QUERY_DOCS = 500;
+
+    // Buffers that emitted keys and values are serialized into, one per indexing thread
+    private static final int MAX_JSON_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteArrayOutputStream> jsonBuffers =
+            new ThreadLocal<ByteArrayOutputStream>() {
+                @Override
+                protected ByteArrayOutputStream initialValue() {
+                    return new ByteArrayOutputStream(256);
+                }
+            };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     // public
     private String name;
@@ -66,7 +103,10 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     private int viewID;
     private View.TDViewCollation collation;
     private String _mapTableName;
-    private SQLiteViewStore curView; // Current view used when update index
+    private String _insertMapSQL;
+    private String _insertMapBatchSQL;
+    private boolean fullTextIndexCreated;
+    private boolean geoIndexCreated;
 
     ///////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -116,7 +156,12 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         if (getViewID() <= 0) {
             return;
         }
+        fullTextIndexCreated = false;
+        geoIndexCreated = false;
         String sql = "DROP TABLE IF EXISTS 'maps_#'; " +
+                "DROP TABLE IF EXISTS 'reduce_#'; " +
+                "DROP TABLE IF EXISTS fulltext_#; " +
+                "DROP TABLE IF EXISTS bboxes_#; " +
                 "UPDATE views SET lastSequence=0, total_docs=0 WHERE view_id=#";
         if (!runStatements(sql))
             Log.w(TAG, "Couldn't delete view _index `%s`", name);
@@ -198,6 +243,67 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         return totalRows;
     }
 
+    /**
+     * Deletes the index if it was built with a different collation or sort key format (see
+     * CollatableKey.formatID) than the current one, or written to by an older release, and
+     * records the current one.
+     */
+    private void checkIndexCollation() {
+        if (getViewID() <= 0)
+            return;
+        final String[] args = {Integer.toString(getViewID())};
+        final String collator = CollatableKey.formatID(collation);
+        int indexCollation = -1;
+        String indexCollator = null;
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(
+                    "SELECT collation, collator FROM views WHERE view_id=?", args);
+            if (cursor.moveToNext()) {
+                indexCollation = cursor.getInt(0);
+                indexCollator = cursor.isNull(1) ? null : cursor.getString(1);
+            }
+        } catch (SQLException e) {
+            Log.e(Log.TAG_VIEW, "Error getting the collation of view %s", e, name);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (indexCollation == collation.ordinal() && collator.equals(indexCollator) &&
+                !hasRowsWithoutSortKeys())
+            return;
+        Log.i(Log.TAG_VIEW, "Index of view %s was built with collation %s (%s) or by an older " +
+                "release; rebuilding it with %s (%s)",
+                name, indexCollation, indexCollator, collation, collator);
+        store.runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                deleteIndex();
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("collation", collation.ordinal());
+                updateValues.put("collator", collator);
+                return store.getStorageEngine().update("views", updateValues, "view_id=?", args) > 0;
+            }
+        });
+    }
+
+    /**
+     * Returns true if an older release, which doesn't know about sort keys, has added rows to the
+     * index (leaving their sort keys empty, which no encoded key is) or has recreated it without
+     * them.
+     */
+    private boolean hasRowsWithoutSortKeys() {
+        String[] args = {queryString("maps_#")};
+        String schema = SQLiteUtils.stringForQuery(store.getStorageEngine(),
+                "SELECT sql FROM sqlite_master WHERE type='table' AND name=?", args);
+        if (schema == null)
+            return false;
+        if (!schema.contains("sort_key"))
+            return true;
+        return SQLiteUtils.intForQuery(store.getStorageEngine(), queryString(
+                "SELECT EXISTS (SELECT 1 FROM 'maps_#' WHERE sort_key=X'')"), null) > 0;
+    }
+
     private int countTotalRows() {
         SQLiteStorageEngine storageEngine = store.getStorageEngine();
         String sql = queryString("SELECT COUNT(*) FROM 'maps_#'");
@@ -236,6 +342,11 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
     /**
      * Updates the indexes of one or more views in parallel.
+     * <p/>
+     * Indexing proceeds in chunks of at most INDEX_CHUNK_SIZE sequences. Each chunk is read and
+     * mapped in a read-only transaction, which sees a snapshot of the database without blocking
+     * writers, and the emitted rows are then written in a short write transaction. If the views
+     * were updated or the mapped revisions purged in between, the chunk is read again.
      *
      * @param inputViews An array of ViewStore instances, always including the receiver.
      * @return Status OK if updated or NOT_MODIFIED if already up-to-date.
@@ -250,75 +361,88 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             throw new CouchbaseLiteException(msg, Status.NOT_FOUND);
         }
 
-        if (!store.beginTransaction())
-            throw new CouchbaseLiteException("Error in beginTransaction()", Status.DB_ERROR);
+        // Sort keys depend on the collation, so make sure no index was built with another one:
+        for (ViewStore v : inputViews)
+            ((SQLiteViewStore) v).checkIndexCollation();
+
+        // If the view the update is for doesn't need any update, don't do anything:
+        final long dbMaxSequence = store.getLastSequence();
+        if (getLastSequenceIndexed() >= dbMaxSequence)
+            return new Status(Status.NOT_MODIFIED);
+
+        final List<SQLiteViewStore> views = new ArrayList<SQLiteViewStore>();
+        final List<Mapper> mapBlocks = new ArrayList<Mapper>();
+        for (ViewStore v : inputViews) {
+            assert (v != null);
+            SQLiteViewStore view = (SQLiteViewStore) v;
+            ViewStoreDelegate delegate = view.getDelegate();
+            Mapper map = delegate != null ? delegate.getMap() : null;
+            if (map == null) {
+                if (view == this) {
+                    String msg = String.format(Locale.ENGLISH, "Cannot index view %s: " +
+                            "no map block registered", view.getName());
+                    Log.e(Log.TAG_VIEW, msg);
+                    throw new CouchbaseLiteException(msg, Status.BAD_REQUEST);
+                }
+                Log.v(Log.TAG_VIEW, "    %s has no map block; skipping it", view.getName());
+                continue;
+            }
 
-        boolean success = false;
-        Cursor cursor = null;
-        try {
-            // If the view the update is for doesn't need any update, don't do anything:
-            final long dbMaxSequence = store.getLastSequence();
-            final long forViewLastSequence = getLastSequenceIndexed();
-            if (forViewLastSequence >= dbMaxSequence) {
-                success = true;
-                return new Status(Status.NOT_MODIFIED);
+            if (view.getViewID() <= 0) {
+                String message = String.format(Locale.ENGLISH, "View '%s' not found in database",
+                        view.getName());
+                Log.e(Log.TAG_VIEW, message);
+                throw new CouchbaseLiteException(message, Status.NOT_FOUND);
             }
 
-            // Check whether we need to update at all,
-            // and remove obsolete emitted results from the 'maps' table:
+            views.add(view);
+            mapBlocks.add(map);
+        }
+
+        boolean updated = false;
+        while (true) {
+            IndexChunk chunk = readIndexChunk(views, mapBlocks, dbMaxSequence);
+            if (chunk == null)
+                break; // every view is up to date
+            if (writeIndexChunk(chunk))
+                updated = true;
+            else
+                Log.v(Log.TAG_VIEW, "Index of (%s) changed while reading #%d to #%d; re-reading",
+                        viewNames(views), chunk.fromSequence, chunk.toSequence);
+        }
+        return new Status(updated ? Status.OK : Status.NOT_MODIFIED);
+    }
+
+    /**
+     * Reads the next chunk of revisions to index and runs the map functions on them, in a read
+     * transaction. Returns null if all the views are indexed up to dbMaxSequence.
+     */
+    private IndexChunk readIndexChunk(List<SQLiteViewStore> views,
+                                      List<Mapper> mapBlocks,
+                                      long dbMaxSequence)
+            throws CouchbaseLiteException {
+        boolean inReadTransaction = store.beginReadTransaction();
+        Cursor cursor = null;
+        ParallelMapper parallelMapper = null;
+        try {
+            // Check whether we need to update at all:
             long minLastSequence = dbMaxSequence;
-            final long[] viewLastSequence = new long[inputViews.size()];
-            int deletedCount = 0;
-            int i = 0;
+            final long[] viewLastSequence = new long[views.size()];
             final HashSet<String> docTypes = new HashSet<String>();
             HashMap<String, String> viewDocTypes = null;
             boolean allDocTypes = false;
-            final HashMap<Integer, Integer> viewTotalRows = new HashMap<Integer, Integer>();
-            final ArrayList<SQLiteViewStore> views = new ArrayList<SQLiteViewStore>();
-            final ArrayList<Mapper> mapBlocks = new ArrayList<Mapper>();
-
-            for (ViewStore v : inputViews) {
-                assert (v != null);
-                SQLiteViewStore view = (SQLiteViewStore) v;
-                ViewStoreDelegate delegate = view.getDelegate();
-                Mapper map = delegate != null ? delegate.getMap() : null;
-                if (map == null) {
-                    if (view == this) {
-                        String msg = String.format(Locale.ENGLISH, "Cannot index view %s: " +
-                                "no map block registered", view.getName());
-                        Log.e(Log.TAG_VIEW, msg);
-                        throw new CouchbaseLiteException(msg, Status.BAD_REQUEST);
-                    }
-                    Log.v(Log.TAG_VIEW, "    %s has no map block; skipping it", view.getName());
-                    continue;
-                }
-
-                views.add(view);
-                mapBlocks.add(map);
-
-                int viewID = view.getViewID();
-                if (viewID <= 0) {
-                    String message = String.format(Locale.ENGLISH, "View '%s' not found in database",
-                            view.getName());
-                    Log.e(Log.TAG_VIEW, message);
-                    throw new CouchbaseLiteException(message, Status.NOT_FOUND);
-                }
-
-                int totalRows = view.getTotalRows();
-                viewTotalRows.put(viewID, totalRows);
-
-                long last = view == this ? forViewLastSequence : view.getLastSequenceIndexed();
-                viewLastSequence[i++] = last;
+            for (int i = 0; i < views.size(); i++) {
+                SQLiteViewStore view = views.get(i);
+                long last = view.getLastSequenceIndexed();
+                viewLastSequence[i] = last;
                 if (last < 0) {
                     String msg = String.format(Locale.ENGLISH, "last < 0 (%d)", last);
                     throw new CouchbaseLiteException(msg, Status.INTERNAL_SERVER_ERROR);
                 } else if (last < dbMaxSequence) {
-                    if (last == 0)
-                        view.createIndex();
                     minLastSequence = Math.min(minLastSequence, last);
                     Log.v(Log.TAG_VIEW, "    %s last indexed at #%d", view.getName(), last);
 
-                    String docType = delegate.getDocumentType();
+                    String docType = view.getDelegate().getDocumentType();
                     if (docType != null) {
                         docTypes.add(docType);
                         if (viewDocTypes == null)
@@ -327,78 +451,51 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                     } else {
                         allDocTypes = true;
                     }
-
-                    int changes = 0;
-                    if (last == 0) {
-                        changes = store.getStorageEngine().delete(view.queryString("maps_#"), null, null);
-                    } else {
-                        store.optimizeSQLIndexes();
-                        String[] args = {Long.toString(last), Long.toString(last)};
-                        changes = store.getStorageEngine().delete(view.queryString("maps_#"),
-                                "sequence IN (SELECT parent FROM revs " +
-                                        "WHERE sequence>? AND +parent>0 AND +parent<=?)", args);
-                    }
-
-                    // Update #deleted rows:
-                    deletedCount += changes;
-
-                    // Only count these deletes as changes if this isn't a view reset to 0
-                    if (last != 0) {
-                        int newTotalRows = viewTotalRows.get(viewID) - changes;
-                        viewTotalRows.put(viewID, newTotalRows);
-                    }
                 }
             }
 
-            if (minLastSequence == dbMaxSequence) {
-                Log.v(Log.TAG_VIEW, "minLastSequence (%d) == dbMaxSequence (%d), nothing to do",
+            if (minLastSequence >= dbMaxSequence) {
+                Log.v(Log.TAG_VIEW, "minLastSequence (%d) >= dbMaxSequence (%d), nothing to do",
                         minLastSequence, dbMaxSequence);
-                success = true;
-                return new Status(Status.NOT_MODIFIED);
+                return null;
             }
 
+            long toSequence = Math.min(minLastSequence + INDEX_CHUNK_SIZE, dbMaxSequence);
+            IndexChunk chunk = new IndexChunk(views, viewLastSequence, minLastSequence,
+                    toSequence, toSequence == dbMaxSequence);
             Log.v(Log.TAG_VIEW, "Updating indexes of (%s) from #%d to #%d ...",
-                    viewNames(views), minLastSequence, dbMaxSequence);
+                    viewNames(views), minLastSequence, toSequence);
 
-            // This is the emit() block, which gets called from within the user-defined map() block
-            // that's called down below.
-            final AtomicInteger insertedCount = new AtomicInteger(0);
-            AbstractMapEmitBlock emitBlock = new AbstractMapEmitBlock() {
-                @Override
-                public void emit(Object key, Object value) {
-                    if (key == null) {
-                        Log.w(Log.TAG_VIEW, "emit() called with nil key; ignoring");
-                        return;
-                    }
-                    try {
-                        curView.emit(key, value, this.sequence); // emit block's sequence
-                        int curViewID = curView.getViewID();
-                        viewTotalRows.put(curViewID, viewTotalRows.get(curViewID) + 1);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        throw new RuntimeException(e);
-                    }
-                }
-            };
+            boolean checkDocTypes = docTypes.size() > 1 || (allDocTypes && docTypes.size() > 0);
+            DocumentMapper mapper = new DocumentMapper(views, mapBlocks, viewLastSequence,
+                    checkDocTypes ? viewDocTypes : null);
 
-            // Now scan every revision added since the last time the view was indexed:
+            // If parallel indexing is enabled, the map functions are called on the store's
+            // indexing threads while the revisions are being read:
+            ExecutorService indexingExecutor = store.getIndexingExecutor();
+            if (indexingExecutor != null && toSequence - minLastSequence > MAP_BATCH_SIZE)
+                parallelMapper = new ParallelMapper(indexingExecutor, mapper);
 
-            // NOTE: Below is original Query. In case query result uses a lot of memory,
-            //       Android SQLiteDatabase causes null value column. Then it causes the missing
-            //       _index data because following logic skip result if column is null.
-            //       To avoid the issue, retrieving json field is isolated from original query.
-            //       Because json field could be large, maximum size is 2MB.
-            // StringBuffer sql = new StringBuffer( "SELECT revs.doc_id, sequence, docid, revid,
-            // json, no_attachments, deleted FROM revs, docs WHERE sequence>? AND current!=0 ");
+            // The current revisions of the documents that were already indexed, which may still
+            // win over the new ones (and whose rows have to be removed if they don't):
+            Map<Long, List<PreviousRevision>> previousRevisions = null;
+            if (minLastSequence > 0)
+                previousRevisions = readPreviousRevisions(minLastSequence, toSequence);
 
-            boolean checkDocTypes = docTypes.size() > 1 || (allDocTypes && docTypes.size() > 0);
+            // Now scan every revision added since the last time the view was indexed:
+
+            // NOTE: In case a query result uses a lot of memory, Android SQLiteDatabase returns
+            //       null for a large json column (a row can be at most 2MB). Such a revision's
+            //       json is read again on its own, below.
             StringBuilder sql = new StringBuilder(
                     "SELECT revs.doc_id, sequence, docid, revid, no_attachments, deleted ");
             if (checkDocTypes)
                 sql.append(", doc_type ");
+            sql.append(", json ");
+            int jsonColumn = checkDocTypes ? 7 : 6;
             sql.append("FROM revs ");
             sql.append("JOIN docs ON docs.doc_id = revs.doc_id ");
-            sql.append("WHERE sequence>? AND +current>0 ");
+            sql.append("WHERE sequence>? AND sequence<=? AND +current>0 ");
             if (minLastSequence == 0) {
                 sql.append("AND +deleted=0 ");
             }
@@ -411,7 +508,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             // NOTE: Views broken with concurrent update and delete
             // https://github.com/couchbase/couchbase-lite-java-core/issues/952
             sql.append("ORDER BY +revs.doc_id, +deleted, +revid DESC");
-            String[] selectArgs = {Long.toString(minLastSequence)};
+            String[] selectArgs = {Long.toString(minLastSequence), Long.toString(toSequence)};
             cursor = store.getStorageEngine().rawQuery(sql.toString(), selectArgs);
 
             boolean keepGoing = cursor.moveToNext(); // Go to first result row
@@ -435,6 +532,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 String revID = cursor.getString(3);
                 boolean deleted = cursor.getInt(5) > 0;
                 String docType = checkDocTypes ? cursor.getString(6) : null;
+                byte[] json = deleted ? null : cursor.getBlob(jsonColumn);
 
                 // Skip rows with the same doc_id -- these are losing conflicts.
                 // NOTE: Or Skip rows if 1st column is null
@@ -453,151 +551,585 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 }
 
                 long realSequence = sequence; // because sequence may be changed, below
-                if (minLastSequence > 0) {
+                long obsoleteSequence = 0;
+                List<PreviousRevision> previous = previousRevisions != null ?
+                        previousRevisions.get(docID) : null;
+                if (previous != null) {
                     // Find conflicts with documents from previous indexings.
-                    Cursor cursor2 = null;
-                    try {
-                        String[] selectArgs2 = {Long.toString(docID), Long.toString(minLastSequence)};
-                        cursor2 = store.getStorageEngine().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current>0 AND deleted=0 "
-                                        + "ORDER BY revID DESC ", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevID = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {Long.toString(oldSequence)};
-                            for (SQLiteViewStore view : views) {
-                                int changes = view.store.getStorageEngine().
-                                        delete(view.queryString("maps_#"), "sequence=?", args);
-                                deletedCount += changes;
-                                int thisViewID = view.getViewID();
-                                int newTotalRows = viewTotalRows.get(thisViewID) - changes;
-                                viewTotalRows.put(thisViewID, newTotalRows);
-                            }
-
-                            String conflictRevID = oldRevID;
-                            if (deleted || RevisionInternal.CBLCompareRevIDs(oldRevID, revID) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                conflictRevID = revID;
-                                revID = oldRevID;
-                                deleted = false;
-                                sequence = oldSequence;
-                            }
+                    PreviousRevision old = previous.get(0);
+                    // This is the revision that used to be the 'winner'.
+                    // Its emitted rows will be removed:
+                    obsoleteSequence = old.sequence;
+
+                    String conflictRevID = old.revID;
+                    if (deleted || RevisionInternal.CBLCompareRevIDs(old.revID, revID) > 0) {
+                        // It still 'wins' the conflict, so it's the one that
+                        // should be mapped [again], not the current revision!
+                        conflictRevID = revID;
+                        revID = old.revID;
+                        deleted = false;
+                        sequence = old.sequence;
+                        json = old.json;
+                    }
 
-                            if (!deleted) {
-                                // Conflict revisions:
-                                if (conflicts == null)
-                                    conflicts = new ArrayList<String>();
-                                conflicts.add(conflictRevID);
-                                while (cursor2.moveToNext()) {
-                                    conflicts.add(cursor2.getString(0));
-                                }
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
+                    if (!deleted) {
+                        // Conflict revisions:
+                        if (conflicts == null)
+                            conflicts = new ArrayList<String>();
+                        conflicts.add(conflictRevID);
+                        for (int i = 1; i < previous.size(); i++)
+                            conflicts.add(previous.get(i).revID);
                     }
                 }
 
-                if (deleted)
+                if (deleted) {
+                    if (obsoleteSequence > 0)
+                        chunk.docs.add(new MapDocument(docId, revID, sequence, realSequence,
+                                obsoleteSequence, docType, null, null));
                     continue;
+                }
 
-                // Get json blob:
-                String[] selectArgs3 = {Long.toString(sequence)};
-                byte[] json = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
-                        "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                // Get the document properties, to pass to the map function:
-                Map<String, Object> curDoc = store.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revID,
-                        false,
-                        sequence
-                );
-
-                if (curDoc == null) {
-                    Log.w(Log.TAG_VIEW, "Failed to parse JSON of doc %s rev %s", docID, revID);
-                    continue;
+                if (json == null) {
+                    // Get json blob on its own (see the note above):
+                    String[] selectArgs3 = {Long.toString(sequence)};
+                    json = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
+                            "SELECT json FROM revs WHERE sequence=?", selectArgs3);
                 }
-                curDoc.put("_local_seq", sequence);
 
-                if (conflicts != null)
-                    curDoc.put("_conflicts", conflicts);
+                MapDocument doc = new MapDocument(docId, revID, sequence, realSequence,
+                        obsoleteSequence, docType, conflicts, json);
+                chunk.docs.add(doc);
+                chunk.mappedSequences.add(sequence);
 
                 // Call the user-defined map() to emit new key/value pairs from this revision:
-                i = -1;
-                for (SQLiteViewStore view : views) {
-                    curView = view;
-                    ++i;
-                    if (viewLastSequence[i] < realSequence) {
-                        if (checkDocTypes) {
-                            String viewDocType = viewDocTypes.get(view.getName());
-                            if (viewDocType != null && !viewDocType.equals(docType))
-                                continue; // skip; view's documentType doesn't match this doc
-                        }
-                        Log.v(Log.TAG_VIEW, "#%d: map '%s' for view %s...",
-                                sequence, docID, view.getName());
-                        try {
-                            emitBlock.setSequence(sequence);
-                            mapBlocks.get(i).map(curDoc, emitBlock);
-                        } catch (Throwable e) {
-                            String msg = String.format(Locale.ENGLISH, "Error when calling map block of view '%s'",
-                                    view.getName());
-                            Log.e(Log.TAG_VIEW, msg, e);
-                            throw new CouchbaseLiteException(msg, e, Status.CALLBACK_ERROR);
-                        }
+                if (parallelMapper != null)
+                    parallelMapper.add(doc);
+                else
+                    mapper.map(doc);
+            }
+
+            // Wait for the map functions that are still running:
+            if (parallelMapper != null)
+                parallelMapper.finish();
+
+            return chunk;
+        } catch (SQLException ex) {
+            throw new CouchbaseLiteException(ex, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            if (parallelMapper != null)
+                parallelMapper.cancel();
+            if (inReadTransaction)
+                store.endReadTransaction();
+        }
+    }
+
+    /**
+     * Reads the current, non-deleted revisions up to sequence lastSequence of the documents
+     * changed from lastSequence to toSequence, keyed by doc_id, in descending revID order.
+     */
+    private Map<Long, List<PreviousRevision>> readPreviousRevisions(long lastSequence,
+                                                                    long toSequence) {
+        Map<Long, List<PreviousRevision>> previousRevisions =
+                new HashMap<Long, List<PreviousRevision>>();
+        String[] args = {Long.toString(lastSequence), Long.toString(toSequence),
+                Long.toString(lastSequence)};
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(
+                    "SELECT doc_id, revid, sequence, json FROM revs " +
+                            "WHERE doc_id IN (SELECT doc_id FROM revs " +
+                            "WHERE sequence>? AND sequence<=?) " +
+                            "AND sequence<=? AND current>0 AND deleted=0 " +
+                            "ORDER BY doc_id, revid DESC", args);
+            while (cursor.moveToNext()) {
+                long docID = cursor.getLong(0);
+                List<PreviousRevision> revs = previousRevisions.get(docID);
+                if (revs == null) {
+                    revs = new ArrayList<PreviousRevision>(1);
+                    previousRevisions.put(docID, revs);
+                }
+                revs.add(new PreviousRevision(cursor.getString(1), cursor.getLong(2),
+                        cursor.getBlob(3)));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return previousRevisions;
+    }
+
+    /**
+     * Writes a chunk read by readIndexChunk to the views' map tables, in a write transaction.
+     * Returns false, without writing anything, if the views have been updated since the chunk
+     * was read, or any of the revisions it mapped no longer exists.
+     */
+    private boolean writeIndexChunk(IndexChunk chunk) throws CouchbaseLiteException {
+        if (!store.beginTransaction())
+            throw new CouchbaseLiteException("Error in beginTransaction()", Status.DB_ERROR);
+
+        boolean success = false;
+        try {
+            final List<SQLiteViewStore> views = chunk.views;
+
+            // Sequence fence: check that nothing the chunk was based on has changed:
+            for (int i = 0; i < views.size(); i++) {
+                if (views.get(i).getLastSequenceIndexed() != chunk.viewLastSequence[i])
+                    return false;
+            }
+            if (chunk.mappedSequences.size() > 0) {
+                String sql = String.format(Locale.ENGLISH,
+                        "SELECT COUNT(*) FROM revs WHERE sequence IN (%s)",
+                        TextUtils.join(",", chunk.mappedSequences));
+                if (SQLiteUtils.intForQuery(store.getStorageEngine(), sql, null)
+                        != chunk.mappedSequences.size())
+                    return false;
+            }
+
+            // Remove obsolete emitted results from the 'maps' table:
+            int deletedCount = 0;
+            int insertedCount = 0;
+            final int[] viewTotalRows = new int[views.size()];
+            // Built levels of each view's reduce index, and the keys of the map rows changed:
+            final List<Set<Integer>> reduceLevels = new ArrayList<Set<Integer>>(views.size());
+            final List<Set<String>> changedKeys = new ArrayList<Set<String>>(views.size());
+            for (int i = 0; i < views.size(); i++) {
+                SQLiteViewStore view = views.get(i);
+                viewTotalRows[i] = view.getTotalRows();
+                reduceLevels.add(view.getReduceIndexLevels());
+                changedKeys.add(new HashSet<String>());
+                long last = chunk.viewLastSequence[i];
+                if (last >= chunk.toSequence)
+                    continue;
+
+                int changes;
+                if (last == 0) {
+                    view.createIndex();
+                    changes = store.getStorageEngine().delete(view.queryString("maps_#"), null, null);
+                    if (!reduceLevels.get(i).isEmpty()) {
+                        store.getStorageEngine().delete(view.queryString("reduce_#"), null, null);
+                        reduceLevels.get(i).clear();
+                    }
+                } else {
+                    store.optimizeSQLIndexes();
+                    String[] args = {Long.toString(last), Long.toString(chunk.toSequence),
+                            Long.toString(last)};
+                    String where = "sequence IN (SELECT parent FROM revs " +
+                            "WHERE sequence>? AND sequence<=? AND +parent>0 AND +parent<=?)";
+                    if (!reduceLevels.get(i).isEmpty())
+                        view.addMapKeys(where, args, changedKeys.get(i));
+                    changes = store.getStorageEngine().delete(view.queryString("maps_#"),
+                            where, args);
+                }
+
+                // Update #deleted rows:
+                deletedCount += changes;
+
+                // Only count these deletes as changes if this isn't a view reset to 0
+                if (last != 0)
+                    viewTotalRows[i] -= changes;
+            }
+
+            // Remove the rows of the revisions that used to be the winners:
+            List<Long> obsoleteSequences = new ArrayList<Long>();
+            for (MapDocument doc : chunk.docs) {
+                if (doc.obsoleteSequence > 0)
+                    obsoleteSequences.add(doc.obsoleteSequence);
+            }
+            if (obsoleteSequences.size() > 0) {
+                String where = String.format(Locale.ENGLISH, "sequence IN (%s)",
+                        TextUtils.join(",", obsoleteSequences));
+                for (int i = 0; i < views.size(); i++) {
+                    if (!reduceLevels.get(i).isEmpty())
+                        views.get(i).addMapKeys(where, null, changedKeys.get(i));
+                    int changes = store.getStorageEngine().delete(
+                            views.get(i).queryString("maps_#"), where, null);
+                    deletedCount += changes;
+                    viewTotalRows[i] -= changes;
+                }
+            }
+
+            // And add the new ones:
+            MapRowInserter[] inserters = new MapRowInserter[views.size()];
+            for (int i = 0; i < views.size(); i++)
+                inserters[i] = new MapRowInserter(views.get(i));
+            for (MapDocument doc : chunk.docs) {
+                if (doc.rows != null) {
+                    for (EmittedRow row : doc.rows) {
+                        inserters[row.viewIndex].add(doc.sequence, row);
+                        viewTotalRows[row.viewIndex]++;
+                        insertedCount++;
+                        if (!reduceLevels.get(row.viewIndex).isEmpty())
+                            changedKeys.get(row.viewIndex).add(new String(row.keyJson, UTF8));
                     }
                 }
             }
+            for (MapRowInserter inserter : inserters)
+                inserter.flush();
 
             // Finally, record the last revision sequence number that was indexed and update #rows:
-            for (SQLiteViewStore view : views) {
-                view.finishCreatingIndex();
-                int newTotalRows = viewTotalRows.get(view.getViewID());
+            for (int i = 0; i < views.size(); i++) {
+                SQLiteViewStore view = views.get(i);
+                if (chunk.isLast)
+                    view.finishCreatingIndex();
+                view.updateReducePartials(reduceLevels.get(i), changedKeys.get(i));
                 ContentValues updateValues = new ContentValues();
-                updateValues.put("lastSequence", dbMaxSequence);
-                updateValues.put("total_docs", newTotalRows);
+                updateValues.put("lastSequence",
+                        Math.max(chunk.viewLastSequence[i], chunk.toSequence));
+                updateValues.put("total_docs", viewTotalRows[i]);
                 String[] whereArgs = {Integer.toString(view.getViewID())};
                 store.getStorageEngine().update("views", updateValues, "view_id=?", whereArgs);
             }
             Log.v(Log.TAG_VIEW, "...Finished re-indexing (%s) to #%d (deleted %d, added %d)",
-                    viewNames(views), dbMaxSequence, deletedCount, insertedCount.intValue());
+                    viewNames(views), chunk.toSequence, deletedCount, insertedCount);
 
             success = true;
-            return new Status(Status.OK);
+            return true;
         } catch (SQLException ex) {
             throw new CouchbaseLiteException(ex, Status.DB_ERROR);
         } finally {
-            curView = null;
-            if (cursor != null)
-                cursor.close();
-            if (store != null) {
-                if (!store.endTransaction(success))
-                    throw new CouchbaseLiteException("Error in endTransaction()", Status.DB_ERROR);
+            if (!store.endTransaction(success))
+                throw new CouchbaseLiteException("Error in endTransaction()", Status.DB_ERROR);
+        }
+    }
+
+    /**
+     * Buffers the rows to be inserted into a view's map table, and inserts them
+     * MAP_INSERT_BATCH_SIZE rows per statement.
+     */
+    private static class MapRowInserter {
+        private final SQLiteViewStore view;
+        private final long[] sequences = new long[MAP_INSERT_BATCH_SIZE];
+        private final EmittedRow[] rows = new EmittedRow[MAP_INSERT_BATCH_SIZE];
+        private int count;
+
+        MapRowInserter(SQLiteViewStore view) {
+            this.view = view;
+        }
+
+        void add(long sequence, EmittedRow row) {
+            if (row.fullText != null || row.geoRect != null) {
+                view.insertSpecialKeyRow(sequence, row);
+                return;
+            }
+            sequences[count] = sequence;
+            rows[count] = row;
+            if (++count == MAP_INSERT_BATCH_SIZE)
+                flush();
+        }
+
+        void flush() {
+            SQLiteStorageEngine storageEngine = view.store.getStorageEngine();
+            if (count == MAP_INSERT_BATCH_SIZE) {
+                Statement statement = storageEngine.getStatement(view.insertMapBatchSQL());
+                for (int i = 0; i < count; i++)
+                    bindRow(statement, 4 * i, sequences[i], rows[i]);
+                statement.execute();
+            } else {
+                // A partial batch is inserted a row at a time, so that there are only two
+                // statements to compile and cache:
+                Statement statement = storageEngine.getStatement(view.insertMapSQL());
+                for (int i = 0; i < count; i++) {
+                    bindRow(statement, 0, sequences[i], rows[i]);
+                    statement.execute();
+                }
             }
+            for (int i = 0; i < count; i++)
+                rows[i] = null;
+            count = 0;
+        }
+
+        private static void bindRow(Statement statement, int offset, long sequence,
+                                    EmittedRow row) {
+            statement.bindLong(offset + 1, sequence);
+            statement.bindBlob(offset + 2, row.keyJson);
+            statement.bindBlob(offset + 3, row.sortKey);
+            if (row.valueJson != null)
+                statement.bindBlob(offset + 4, row.valueJson);
+            else
+                statement.bindNull(offset + 4);
         }
     }
 
-    protected void emit(Object key, Object value, long sequence) throws JsonProcessingException {
-        String valueJson;
-        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-        if (value == null) {
-            valueJson = null;
-        } else {
-            valueJson = Manager.getObjectMapper().writeValueAsString(value);
+    /**
+     * Returns the properties of a document revision to pass to map functions, or null if its
+     * JSON can't be parsed.
+     */
+    private Map<String, Object> documentProperties(byte[] json, String docID, String revID,
+                                                   long sequence, List<String> conflicts) {
+        Map<String, Object> properties = store.documentPropertiesFromJSON(
+                json,
+                docID,
+                revID,
+                false,
+                sequence
+        );
+        if (properties == null) {
+            Log.w(Log.TAG_VIEW, "Failed to parse JSON of doc %s rev %s", docID, revID);
+            return null;
         }
+        properties.put("_local_seq", sequence);
+        if (conflicts != null)
+            properties.put("_conflicts", conflicts);
+        return properties;
+    }
 
-        // NOTE: execSQL() is little faster than insert()
-        String[] args = {Long.toString(sequence), keyJson, valueJson};
-        store.getStorageEngine().execSQL(queryString(
-                "INSERT INTO 'maps_#' (sequence, key, value) VALUES(?,?,?)"), args);
+    /**
+     * A range of sequences read for indexing, with the rows emitted for it.
+     */
+    private static class IndexChunk {
+        final List<SQLiteViewStore> views;
+        final long[] viewLastSequence; // each view's last indexed sequence when the chunk was read
+        final long fromSequence;       // exclusive
+        final long toSequence;         // inclusive
+        final boolean isLast;          // true if toSequence is the sequence being indexed up to
+        final List<MapDocument> docs = new ArrayList<MapDocument>();
+        final List<Long> mappedSequences = new ArrayList<Long>();
+
+        IndexChunk(List<SQLiteViewStore> views, long[] viewLastSequence,
+                   long fromSequence, long toSequence, boolean isLast) {
+            this.views = views;
+            this.viewLastSequence = viewLastSequence;
+            this.fromSequence = fromSequence;
+            this.toSequence = toSequence;
+            this.isLast = isLast;
+        }
+    }
+
+    /**
+     * A revision that was current when the views were last indexed.
+     */
+    private static class PreviousRevision {
+        final String revID;
+        final long sequence;
+        final byte[] json;
+
+        PreviousRevision(String revID, long sequence, byte[] json) {
+            this.revID = revID;
+            this.sequence = sequence;
+            this.json = json;
+        }
+    }
+
+    /**
+     * A document revision read by the indexer, and the rows its map functions emitted.
+     */
+    private static class MapDocument {
+        final String docID;
+        final String revID;
+        final long sequence;         // sequence of the revision to map
+        final long realSequence;     // sequence of the current revision, compared to views' last sequence
+        final long obsoleteSequence; // previously indexed revision whose rows are removed, or 0
+        final String docType;
+        final List<String> conflicts;
+        byte[] json;                 // null if the document is deleted, or once it's been mapped
+        List<EmittedRow> rows;
+
+        MapDocument(String docID, String revID, long sequence, long realSequence,
+                    long obsoleteSequence, String docType, List<String> conflicts, byte[] json) {
+            this.docID = docID;
+            this.revID = revID;
+            this.sequence = sequence;
+            this.realSequence = realSequence;
+            this.obsoleteSequence = obsoleteSequence;
+            this.docType = docType;
+            this.conflicts = conflicts;
+            this.json = json;
+        }
+    }
+
+    /**
+     * A row emitted by a map function, with its key and value as JSON and its key's sort key.
+     */
+    private static class EmittedRow {
+        final int viewIndex;
+        final byte[] keyJson;       // UTF-8
+        final byte[] sortKey;
+        final byte[] valueJson;     // UTF-8, or null
+        final String fullText;      // text emitted with a SpecialKey, or null
+        final GeoRect geoRect;      // rectangle emitted with a SpecialKey, or null
+
+        EmittedRow(int viewIndex, byte[] keyJson, byte[] sortKey, byte[] valueJson,
+                   String fullText, GeoRect geoRect) {
+            this.viewIndex = viewIndex;
+            this.keyJson = keyJson;
+            this.sortKey = sortKey;
+            this.valueJson = valueJson;
+            this.fullText = fullText;
+            this.geoRect = geoRect;
+        }
+    }
+
+    /**
+     * Calls the map functions of the views being indexed on a document. Safe to call from
+     * several threads at once, for different documents.
+     */
+    private class DocumentMapper {
+        private final List<SQLiteViewStore> views;
+        private final List<Mapper> mapBlocks;
+        private final long[] viewLastSequence;
+        private final Map<String, String> viewDocTypes; // null if doc types needn't be checked
+
+        DocumentMapper(List<SQLiteViewStore> views,
+                       List<Mapper> mapBlocks,
+                       long[] viewLastSequence,
+                       Map<String, String> viewDocTypes) {
+            this.views = views;
+            this.mapBlocks = mapBlocks;
+            this.viewLastSequence = viewLastSequence;
+            this.viewDocTypes = viewDocTypes;
+        }
+
+        void map(final MapDocument doc) throws CouchbaseLiteException {
+            if (doc.json == null)
+                return;
+            // Get the document properties, to pass to the map function:
+            Map<String, Object> properties = documentProperties(
+                    doc.json, doc.docID, doc.revID, doc.sequence, doc.conflicts);
+            doc.json = null;
+            if (properties == null)
+                return;
+
+            final List<EmittedRow> rows = new ArrayList<EmittedRow>();
+            for (int i = 0; i < views.size(); i++) {
+                final SQLiteViewStore view = views.get(i);
+                if (viewLastSequence[i] >= doc.realSequence)
+                    continue;
+                if (viewDocTypes != null) {
+                    String viewDocType = viewDocTypes.get(view.getName());
+                    if (viewDocType != null && !viewDocType.equals(doc.docType))
+                        continue; // skip; view's documentType doesn't match this doc
+                }
+                Log.v(Log.TAG_VIEW, "#%d: map '%s' for view %s...",
+                        doc.sequence, doc.docID, view.getName());
+                final int viewIndex = i;
+                Emitter emitter = new Emitter() {
+                    @Override
+                    public void emit(Object key, Object value) {
+                        if (key == null) {
+                            Log.w(Log.TAG_VIEW, "emit() called with nil key; ignoring");
+                            return;
+                        }
+                        try {
+                            String fullText = null;
+                            GeoRect geoRect = null;
+                            if (key instanceof SpecialKey) {
+                                // Full-text and geo rows are indexed by their text or rectangle,
+                                // with a null key:
+                                fullText = ((SpecialKey) key).getText();
+                                geoRect = ((SpecialKey) key).getRect();
+                                key = null;
+                            }
+                            byte[] keyJson = toJSONBytes(key);
+                            byte[] valueJson = value == null ? null : toJSONBytes(value);
+                            byte[] sortKey = CollatableKey.encode(key, view.collation);
+                            rows.add(new EmittedRow(viewIndex, keyJson, sortKey, valueJson,
+                                    fullText, geoRect));
+                        } catch (Exception e) {
+                            Log.e(Log.TAG_VIEW, "Error emitting", e);
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                try {
+                    mapBlocks.get(i).map(properties, emitter);
+                } catch (Throwable e) {
+                    String msg = String.format(Locale.ENGLISH,
+                            "Error when calling map block of view '%s'", view.getName());
+                    Log.e(Log.TAG_VIEW, msg, e);
+                    throw new CouchbaseLiteException(msg, e, Status.CALLBACK_ERROR);
+                }
+            }
+            doc.rows = rows;
+        }
+    }
+
+    /**
+     * Serializes an emitted key or value as UTF-8 JSON, through the calling thread's reusable
+     * buffer rather than an intermediate String.
+     */
+    private static byte[] toJSONBytes(Object object) throws IOException {
+        ByteArrayOutputStream buffer = jsonBuffers.get();
+        buffer.reset();
+        Manager.getObjectMapper().writeValue(buffer, object);
+        byte[] json = buffer.toByteArray();
+        if (buffer.size() > MAX_JSON_BUFFER_SIZE)
+            jsonBuffers.remove(); // don't hold on to the memory of an unusually large value
+        return json;
+    }
+
+    /**
+     * Runs a DocumentMapper on the store's indexing threads. Documents are handed out in batches
+     * of MAP_BATCH_SIZE as they're read; the number of batches in flight is bounded, so reading
+     * never gets far ahead of the map functions.
+     */
+    private class ParallelMapper {
+        private final ExecutorService executor;
+        private final DocumentMapper mapper;
+        private final int maxPendingBatches;
+        private final LinkedList<Future<Void>> pending = new LinkedList<Future<Void>>();
+        private List<MapDocument> batch = new ArrayList<MapDocument>(MAP_BATCH_SIZE);
+
+        ParallelMapper(ExecutorService executor, DocumentMapper mapper) {
+            this.executor = executor;
+            this.mapper = mapper;
+            this.maxPendingBatches = store.getIndexingThreadCount() * MAX_PENDING_MAP_BATCHES_PER_THREAD;
+        }
+
+        void add(MapDocument doc) throws CouchbaseLiteException {
+            batch.add(doc);
+            if (batch.size() >= MAP_BATCH_SIZE)
+                submitBatch();
+        }
+
+        /**
+         * Waits until all the documents have been mapped.
+         */
+        void finish() throws CouchbaseLiteException {
+            if (batch.size() > 0)
+                submitBatch();
+            while (!pending.isEmpty())
+                await(pending.removeFirst());
+        }
+
+        /**
+         * Abandons the batches that haven't finished, after an error.
+         */
+        void cancel() {
+            for (Future<Void> future : pending)
+                future.cancel(true);
+            pending.clear();
+        }
+
+        private void submitBatch() throws CouchbaseLiteException {
+            final List<MapDocument> docs = batch;
+            batch = new ArrayList<MapDocument>(MAP_BATCH_SIZE);
+            pending.addLast(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (MapDocument doc : docs)
+                        mapper.map(doc);
+                    return null;
+                }
+            }));
+            if (pending.size() >= maxPendingBatches)
+                await(pending.removeFirst());
+        }
+
+        private void await(Future<Void> future) throws CouchbaseLiteException {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new CouchbaseLiteException("Interrupted while indexing", e,
+                        Status.INTERNAL_SERVER_ERROR);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CouchbaseLiteException)
+                    throw (CouchbaseLiteException) e.getCause();
+                throw new CouchbaseLiteException("Error when calling map block", e.getCause(),
+                        Status.CALLBACK_ERROR);
+            }
+        }
     }
 
     /**
@@ -605,6 +1137,21 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
      */
     @Override
     public List<QueryRow> regularQuery(final QueryOptions options) throws CouchbaseLiteException {
+        return regularQueryIterator(options).toList();
+    }
+
+    /**
+     * Queries the view without performing any reducing or grouping, reading the rows from the
+     * database as they're iterated. Keys, values and documents are parsed on demand.
+     */
+    @Override
+    public QueryRowIterator regularQueryIterator(final QueryOptions options)
+            throws CouchbaseLiteException {
+
+        if (options.getFullTextQuery() != null)
+            return QueryRowIterator.fromList(fullTextQuery(options));
+        if (options.getBoundingBox() != null)
+            return QueryRowIterator.fromList(geoQuery(options));
 
         final Predicate<QueryRow> postFilter = options.getPostFilter();
 
@@ -616,7 +1163,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             tmpLimit = options.getLimit();
             tmpSkip = options.getSkip();
             if (tmpLimit == 0)
-                return new ArrayList<QueryRow>(); // empty result set
+                return QueryRowIterator.fromList(new ArrayList<QueryRow>()); // empty result set
             options.setLimit(QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT);
             options.setSkip(0);
         }
@@ -624,70 +1171,50 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         final CountDown skip = new CountDown(tmpSkip);
         final CountDown limit = new CountDown(tmpLimit);
 
-        final List<QueryRow> rows = new ArrayList<QueryRow>();
+        final Cursor cursor;
+        try {
+            cursor = openQueryCursor(options);
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException("Error querying view " + name, e, Status.DB_ERROR);
+        }
 
-        Status status = runQuery(options, new QueryRowBlock() {
+        QueryRowIterator rows = new QueryRowIterator() {
             @Override
-            public Status onRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor) {
-                JsonDocument keyDoc = new JsonDocument(keyData);
-                JsonDocument valueDoc = new JsonDocument(valueData);
-                long sequence = Long.parseLong(cursor.getString(3));
-                RevisionInternal docRevision = null;
-                if (options.isIncludeDocs()) {
-                    Object valueObject = valueDoc.jsonObject();
-                    String linkedID = null;
-                    if (valueObject instanceof Map)
-                        linkedID = (String) ((Map) valueObject).get("_id");
-                    if (linkedID != null) {
-                        // Linked document: http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
-                        String linkedRev = (String) ((Map) valueObject).get("_rev");
-                        Status linkedStatus = new Status();
-                        docRevision = store.getDocument(linkedID, linkedRev, true, linkedStatus);
-                        sequence = docRevision.getSequence();
-                    } else {
-                        String revID = cursor.getString(4);
-                        byte[] json = cursor.getBlob(5);
-                        Map<String, Object> properties = store.documentPropertiesFromJSON(
-                                json,
-                                docID,
-                                revID,
-                                false,
-                                sequence);
-                        docRevision = SQLiteStore.revision(
-                                docID,    // docID
-                                revID,    // revID
-                                false,    // deleted
-                                sequence, // sequence
-                                properties// properties
-                        );
+            protected QueryRow fetchNext() throws CouchbaseLiteException {
+                if (limit.getCount() <= 0)
+                    return null;
+                try {
+                    while (cursor.moveToNext()) {
+                        QueryRow row = queryRow(cursor, options);
+                        if (postFilter != null) {
+                            if (!postFilter.apply(row))
+                                continue;
+                            if (skip.getCount() > 0) {
+                                skip.countDown();
+                                continue;
+                            }
+                        }
+                        limit.countDown();
+                        return row;
                     }
+                    return null;
+                } catch (SQLException e) {
+                    throw new CouchbaseLiteException("Error querying view " + name, e,
+                            Status.DB_ERROR);
                 }
-                QueryRow row = new QueryRow(docID, sequence,
-                        keyDoc.jsonObject(), valueDoc.jsonObject(),
-                        docRevision);
-                if (postFilter != null) {
-                    if (!postFilter.apply(row)) {
-                        return new Status(Status.OK);
-                    }
-                    if (skip.getCount() > 0) {
-                        skip.countDown();
-                        return new Status(Status.OK);
-                    }
+            }
 
-                }
-                rows.add(row);
-
-                if (limit.countDown() == 0)
-                    return new Status(0); /// stops the iteration
-                return new Status(Status.OK);
+            @Override
+            protected void closeCursor() {
+                cursor.close();
             }
-        });
+        };
 
         // If given keys, sort the output into that order, and add entries for missing keys:
         if (options.getKeys() != null && options.getKeys().size() > 0) {
             // Group rows by key:
             Map<Object, List<QueryRow>> rowsByKey = new HashMap<Object, List<QueryRow>>();
-            for (QueryRow row : rows) {
+            for (QueryRow row : rows.toList()) {
                 List<QueryRow> rs = rowsByKey.get(row.getKey());
                 if (rs == null) {
                     rs = new ArrayList<QueryRow>();
@@ -711,12 +1238,124 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                     sortedRows.addAll(rs);
             }
 
-            return sortedRows;
+            return QueryRowIterator.fromList(sortedRows);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Brings the result of a regular query up to date after some documents changed, by replacing
+     * the previous result rows emitted by those documents with their current rows. The view's
+     * index must already be up to date. Returns null if the query has keys, skip or a limit
+     * (so rows that weren't in the previous result could be needed), or is a full-text or geo
+     * query, or too many documents changed; the query then has to be rerun.
+     */
+    @Override
+    public List<QueryRow> updateRegularQuery(QueryOptions options, List<QueryRow> previousRows,
+                                             Set<String> changedDocIDs)
+            throws CouchbaseLiteException {
+        if (options.getKeys() != null || options.getSkip() > 0 ||
+                options.getLimit() != QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT ||
+                options.getFullTextQuery() != null || options.getBoundingBox() != null)
+            return null;
+
+        // With includeDocs a row's document may be a linked one, so the rows linking to a
+        // changed document have to be reread too:
+        Set<String> docIDs = new HashSet<String>(changedDocIDs);
+        if (options.isIncludeDocs()) {
+            for (QueryRow row : previousRows) {
+                if (changedDocIDs.contains(row.getDocumentId()))
+                    docIDs.add(row.getSourceDocumentId());
+            }
+        }
+        if (docIDs.size() > MAX_UPDATED_QUERY_DOCS)
+            return null;
+
+        List<QueryRow> rows = new ArrayList<QueryRow>(previousRows.size());
+        for (QueryRow row : previousRows) {
+            if (!docIDs.contains(row.getSourceDocumentId()))
+                rows.add(row);
         }
 
+        // Insert the changed documents' current rows in query order:
+        Predicate<QueryRow> postFilter = options.getPostFilter();
+        Comparator<QueryRow> order = queryRowOrder(options.isDescending());
+        Cursor cursor = null;
+        try {
+            cursor = openQueryCursor(options, docIDs);
+            while (cursor.moveToNext()) {
+                QueryRow row = queryRow(cursor, options);
+                if (postFilter != null && !postFilter.apply(row))
+                    continue;
+                int index = Collections.binarySearch(rows, row, order);
+                rows.add(index < 0 ? -index - 1 : index, row);
+            }
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException("Error querying view " + name, e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        Log.v(TAG, "Updated query of view %s for %d changed docs", name, docIDs.size());
         return rows;
     }
 
+    /**
+     * The order of the rows of a regular query: by sort key, then document ID, then index row, as
+     * in SQLite.
+     */
+    private Comparator<QueryRow> queryRowOrder(final boolean descending) {
+        return new Comparator<QueryRow>() {
+            @Override
+            public int compare(QueryRow row1, QueryRow row2) {
+                int result = CollatableKey.compare(
+                        CollatableKey.encode(row1.getKey(), collation),
+                        CollatableKey.encode(row2.getKey(), collation));
+                if (result == 0)
+                    result = CollatableKey.compare(
+                            row1.getSourceDocumentId().getBytes(UTF8),
+                            row2.getSourceDocumentId().getBytes(UTF8));
+                if (result == 0)
+                    result = Long.signum(row1.getIndexRowId() - row2.getIndexRowId());
+                return descending ? -result : result;
+            }
+        };
+    }
+
+    /**
+     * Creates a QueryRow from the current row of a cursor opened by openQueryCursor. The key
+     * and value are left as JSON, to be parsed when they're accessed.
+     */
+    private QueryRow queryRow(Cursor cursor, QueryOptions options) {
+        JsonDocument keyDoc = new JsonDocument(cursor.getBlob(0));
+        JsonDocument valueDoc = new JsonDocument(cursor.getBlob(1));
+        String docID = cursor.getString(2);
+        long sequence = cursor.getLong(3);
+        long indexRowId = cursor.getLong(4);
+        RevisionInternal docRevision = null;
+        if (options.isIncludeDocs()) {
+            Object valueObject = valueDoc.jsonObject();
+            String linkedID = null;
+            if (valueObject instanceof Map)
+                linkedID = (String) ((Map) valueObject).get("_id");
+            if (linkedID != null) {
+                // Linked document: http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+                String linkedRev = (String) ((Map) valueObject).get("_rev");
+                Status linkedStatus = new Status();
+                docRevision = store.getDocument(linkedID, linkedRev, true, linkedStatus);
+                sequence = docRevision.getSequence();
+            } else {
+                String revID = cursor.getString(5);
+                byte[] json = cursor.getBlob(6);
+                docRevision = LazyDocumentBody.revision(store, docID, revID, sequence, json);
+            }
+        }
+        QueryRow row = new QueryRow(docID, sequence, keyDoc, valueDoc, docRevision);
+        row.setIndexRowId(indexRowId);
+        return row;
+    }
+
     /**
      * Queries the view, with reducing or grouping as per the options.
      * in CBL_SQLiteViewStorage.m
@@ -738,6 +1377,18 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             }
         }
 
+        // Built-in reducers are evaluated in SQL, and others can use the reduce index, if the
+        // query only needs whole groups within a key range:
+        if (canReduceInStorage(options)) {
+            List<QueryRow> reduced = null;
+            if (reduce instanceof BuiltInReducer)
+                reduced = reducedQueryInSQL(options, (BuiltInReducer) reduce);
+            else if (reduce != null && delegate.isIncrementalReduce())
+                reduced = reducedQueryFromIndex(options, reduce);
+            if (reduced != null)
+                return applyPostFilter(reduced, postFilter);
+        }
+
         final List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         final List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
         final Object[] lastKeys = new Object[1];
@@ -810,7 +1461,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         if (getViewID() < 0)
             return null;
         List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
-        String sql = "SELECT sequence, key, value FROM 'maps_#' ORDER BY key";
+        String sql = "SELECT sequence, key, value FROM 'maps_#' ORDER BY sort_key";
         Cursor cursor = null;
         try {
             cursor = store.getStorageEngine().rawQuery(queryString(sql), null);
@@ -910,160 +1561,1592 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         return sb.toString();
     }
 
-    // pragma mark - QUERYING:
+    // pragma mark - FULL-TEXT:
+
+    // Rows emitted with a SpecialKey have their text in the FTS4 table 'fulltext_#', whose docid
+    // is the rowid of the row in 'maps_#'. The table is only created when a view first emits
+    // text, so that views (and SQLite builds) without full-text search don't need FTS.
 
     /**
-     * Generates and runs the SQL SELECT statement for a view query, calling the onRow callback.
-     * in CBL_SQLiteViewStorage.m
-     * - (CBLStatus) _runQueryWithOptions: (const CBLQueryOptions*)options onRow: (QueryRowBlock)onRow
+     * Inserts a map row whose key is a SpecialKey, and adds its text to the full-text index or
+     * its rectangle to the geo index.
      */
-    private Status runQuery(QueryOptions options, QueryRowBlock block) {
-        if (options == null)
-            options = new QueryOptions();
+    private void insertSpecialKeyRow(long sequence, EmittedRow row) {
+        SQLiteStorageEngine storageEngine = store.getStorageEngine();
+        Statement statement = storageEngine.getStatement(insertMapSQL());
+        MapRowInserter.bindRow(statement, 0, sequence, row);
+        long rowID = statement.executeInsert();
+        if (row.fullText != null) {
+            createFullTextIndex();
+            statement = storageEngine.getStatement(
+                    queryString("INSERT INTO fulltext_# (docid, content) VALUES (?,?)"));
+            statement.bindLong(1, rowID);
+            statement.bindString(2, row.fullText);
+            statement.execute();
+        } else {
+            createGeoIndex();
+            statement = storageEngine.getStatement(queryString(
+                    "INSERT INTO bboxes_# (id, minX, maxX, minY, maxY) VALUES (?,?,?,?,?)"));
+            statement.bindLong(1, rowID);
+            statement.bindString(2, Double.toString(row.geoRect.getMinX()));
+            statement.bindString(3, Double.toString(row.geoRect.getMaxX()));
+            statement.bindString(4, Double.toString(row.geoRect.getMinY()));
+            statement.bindString(5, Double.toString(row.geoRect.getMaxY()));
+            statement.execute();
+        }
+    }
 
-        // OPT: It would be faster to use separate tables for raw-or ascii-collated views so that
-        // they could be indexed with the right collation, instead of having to specify it here.
-        String collationStr = "";
-        if (collation == View.TDViewCollation.TDViewCollationASCII)
-            collationStr += " COLLATE JSON_ASCII";
-        else if (collation == View.TDViewCollation.TDViewCollationRaw)
-            collationStr += " COLLATE JSON_RAW";
+    private void createFullTextIndex() {
+        if (fullTextIndexCreated)
+            return;
+        store.getStorageEngine().execSQL(queryString(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS fulltext_# USING fts4(content)"));
+        store.getStorageEngine().execSQL(queryString(
+                "CREATE TRIGGER IF NOT EXISTS 'maps_#_fulltext' AFTER DELETE ON 'maps_#' " +
+                        "BEGIN DELETE FROM fulltext_# WHERE docid=OLD.rowid; END"));
+        fullTextIndexCreated = true;
+    }
 
+    private boolean hasFullTextIndex() {
+        if (fullTextIndexCreated)
+            return true;
+        String[] args = {queryString("fulltext_#")};
+        return SQLiteUtils.intForQuery(store.getStorageEngine(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) > 0;
+    }
 
-        StringBuilder sql = new StringBuilder("SELECT key, value, docid, revs.sequence");
-        if (options.isIncludeDocs()) {
-            sql.append(", revid, json");
+    /**
+     * Fails with BAD_REQUEST if the full-text query isn't a valid MATCH expression. It's matched
+     * against a docid no row has, so SQLite parses it without looking anything up; as that's
+     * all this statement does, an error here is down to the expression.
+     */
+    private void checkFullTextQuery(String fullTextQuery) throws CouchbaseLiteException {
+        String[] args = {fullTextQuery};
+        try {
+            SQLiteUtils.intForQuery(store.getStorageEngine(), queryString(
+                    "SELECT COUNT(*) FROM fulltext_# WHERE fulltext_# MATCH ? AND docid = -1"),
+                    args);
+        } catch (SQLException e) {
+            int status = e.getCode() == SQLException.SQLITE_ERROR ?
+                    Status.BAD_REQUEST : Status.DB_ERROR;
+            throw new CouchbaseLiteException("Invalid full-text query on view " + name +
+                    ": " + fullTextQuery, e, status);
         }
-        sql.append(String.format(Locale.ENGLISH, " FROM 'maps_%s', revs, docs", mapTableName()));
-        sql.append(" WHERE 1");
+    }
 
-        List<String> argsList = new ArrayList<String>();
+    /**
+     * Runs a full-text query, returning FullTextQueryRows ordered by relevance (if ranking is
+     * on), which is the number of matches of the query's terms (see
+     * FullTextQueryRow.getMatchCount.)
+     */
+    private List<QueryRow> fullTextQuery(QueryOptions options) throws CouchbaseLiteException {
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        // Unless the rows have to be ranked or filtered first, SQLite can skip and limit them:
+        boolean limitInSQL = !options.isFullTextRanking() && options.getPostFilter() == null;
+        Cursor cursor = null;
+        try {
+            if (!hasFullTextIndex())
+                return rows;
+            checkFullTextQuery(options.getFullTextQuery());
 
-        if (options.getKeys() != null && options.getKeys().size() > 0) {
-            sql.append(" AND key in (");
-            String item = "?";
-            for (Object key : options.getKeys()) {
-                // null key should be ignored
-                if (key != null) {
-                    sql.append(item);
-                    item = ", ?";
-                    argsList.add(toJSONString(key));
+            StringBuilder sql = new StringBuilder(
+                    "SELECT key, value, docs.docid, revs.sequence");
+            if (options.isIncludeDocs())
+                sql.append(", revid, json");
+            sql.append(", content, offsets(fulltext_#)");
+            List<String> args = new ArrayList<String>();
+            if (options.isFullTextSnippets()) {
+                sql.append(", snippet(fulltext_#, ?, ?, '...')");
+                args.add("\001");
+                args.add("\002");
+            }
+            sql.append(" FROM fulltext_#, 'maps_#', revs, docs" +
+                    " WHERE fulltext_# MATCH ?" +
+                    " AND maps_#.rowid = fulltext_#.docid" +
+                    " AND revs.sequence = maps_#.sequence" +
+                    " AND docs.doc_id = revs.doc_id");
+            args.add(options.getFullTextQuery());
+            if (limitInSQL) {
+                sql.append(" LIMIT ? OFFSET ?");
+                args.add(Integer.toString(options.getLimit()));
+                args.add(Integer.toString(options.getSkip()));
+            }
+            cursor = store.getStorageEngine().rawQuery(queryString(sql.toString()),
+                    args.toArray(new String[args.size()]));
+
+            int textColumn = options.isIncludeDocs() ? 6 : 4;
+            while (cursor.moveToNext()) {
+                String docID = cursor.getString(2);
+                long sequence = cursor.getLong(3);
+                RevisionInternal docRevision = null;
+                if (options.isIncludeDocs())
+                    docRevision = LazyDocumentBody.revision(store, docID, cursor.getString(4),
+                            sequence, cursor.getBlob(5));
+                rows.add(new FullTextQueryRow(docID, sequence,
+                        new JsonDocument(cursor.getBlob(1)),
+                        docRevision,
+                        cursor.getString(textColumn),
+                        cursor.getString(textColumn + 1),
+                        options.isFullTextSnippets() ? cursor.getString(textColumn + 2) : null));
+            }
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException("Error running full-text query on view " + name,
+                    e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        if (options.isFullTextRanking()) {
+            Collections.sort(rows, new Comparator<QueryRow>() {
+                @Override
+                public int compare(QueryRow row1, QueryRow row2) {
+                    int count1 = ((FullTextQueryRow) row1).getMatchCount();
+                    int count2 = ((FullTextQueryRow) row2).getMatchCount();
+                    return count1 > count2 ? -1 : (count1 < count2 ? 1 : 0);
                 }
+            });
+        }
+
+        if (limitInSQL)
+            return rows;
+        rows = applyPostFilter(rows, options.getPostFilter());
+        int skip = Math.min(options.getSkip(), rows.size());
+        int end = (int) Math.min((long) skip + options.getLimit(), rows.size());
+        return rows.subList(skip, end);
+    }
+
+    // pragma mark - GEO:
+
+    // Rows emitted with a SpecialKey holding a GeoRect have the rectangle in the R*Tree table
+    // 'bboxes_#', whose id is the rowid of the row in 'maps_#'. Like the full-text table, it's
+    // created when the view first emits one.
+
+    private void createGeoIndex() {
+        if (geoIndexCreated)
+            return;
+        store.getStorageEngine().execSQL(queryString(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS bboxes_# " +
+                        "USING rtree(id, minX, maxX, minY, maxY)"));
+        store.getStorageEngine().execSQL(queryString(
+                "CREATE TRIGGER IF NOT EXISTS 'maps_#_bboxes' AFTER DELETE ON 'maps_#' " +
+                        "BEGIN DELETE FROM bboxes_# WHERE id=OLD.rowid; END"));
+        geoIndexCreated = true;
+    }
+
+    private boolean hasGeoIndex() {
+        if (geoIndexCreated)
+            return true;
+        String[] args = {queryString("bboxes_#")};
+        return SQLiteUtils.intForQuery(store.getStorageEngine(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) > 0;
+    }
+
+    /**
+     * Runs a geo query, returning GeoQueryRows for the emitted rectangles that intersect the
+     * bounding box or, with a radius, lie within it of the bounding box's center.
+     */
+    private List<QueryRow> geoQuery(QueryOptions options) throws CouchbaseLiteException {
+        GeoRect bbox = options.getBoundingBox();
+        double radius = options.getGeoRadius();
+        if (!isFinite(bbox.getMinX()) || !isFinite(bbox.getMinY()) ||
+                !isFinite(bbox.getMaxX()) || !isFinite(bbox.getMaxY()) || !isFinite(radius)) {
+            Log.w(TAG, "Invalid geo query bounding box %s, radius %f", bbox, radius);
+            throw new CouchbaseLiteException(Status.BAD_PARAM);
+        }
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        Cursor cursor = null;
+        try {
+            if (!hasGeoIndex())
+                return rows;
+
+            // The R*Tree finds the candidates by bounding box; a radius is checked below.
+            // (Coordinates are inlined: the cursor API can only bind strings.)
+            StringBuilder sql = new StringBuilder(
+                    "SELECT key, value, docs.docid, revs.sequence");
+            if (options.isIncludeDocs())
+                sql.append(", revid, json");
+            sql.append(", bboxes_#.minX, bboxes_#.minY, bboxes_#.maxX, bboxes_#.maxY");
+            sql.append(" FROM bboxes_#, 'maps_#', revs, docs WHERE");
+            sql.append(" bboxes_#.maxX >= ").append(bbox.getMinX());
+            sql.append(" AND bboxes_#.minX <= ").append(bbox.getMaxX());
+            sql.append(" AND bboxes_#.maxY >= ").append(bbox.getMinY());
+            sql.append(" AND bboxes_#.minY <= ").append(bbox.getMaxY());
+            sql.append(" AND maps_#.rowid = bboxes_#.id" +
+                    " AND revs.sequence = maps_#.sequence" +
+                    " AND docs.doc_id = revs.doc_id");
+            cursor = store.getStorageEngine().rawQuery(queryString(sql.toString()), null);
+
+            double centerX = (bbox.getMinX() + bbox.getMaxX()) / 2;
+            double centerY = (bbox.getMinY() + bbox.getMaxY()) / 2;
+            int rectColumn = options.isIncludeDocs() ? 6 : 4;
+            while (cursor.moveToNext()) {
+                GeoRect rect = new GeoRect(
+                        Double.parseDouble(cursor.getString(rectColumn)),
+                        Double.parseDouble(cursor.getString(rectColumn + 1)),
+                        Double.parseDouble(cursor.getString(rectColumn + 2)),
+                        Double.parseDouble(cursor.getString(rectColumn + 3)));
+                if (radius > 0 && rect.distanceTo(centerX, centerY) > radius)
+                    continue;
+                String docID = cursor.getString(2);
+                long sequence = cursor.getLong(3);
+                RevisionInternal docRevision = null;
+                if (options.isIncludeDocs())
+                    docRevision = LazyDocumentBody.revision(store, docID, cursor.getString(4),
+                            sequence, cursor.getBlob(5));
+                rows.add(new GeoQueryRow(docID, sequence, new JsonDocument(cursor.getBlob(1)),
+                        docRevision, rect));
             }
-            sql.append(')');
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException("Error running geo query on view " + name,
+                    e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
 
-        Object minKey = options.getStartKey();
-        Object maxKey = options.getEndKey();
-        String minKeyDocId = options.getStartKeyDocId();
-        String maxKeyDocId = options.getEndKeyDocId();
+        rows = applyPostFilter(rows, options.getPostFilter());
+        int skip = Math.min(options.getSkip(), rows.size());
+        int end = (int) Math.min((long) skip + options.getLimit(), rows.size());
+        return rows.subList(skip, end);
+    }
 
-        boolean inclusiveMin = options.isInclusiveStart();
-        boolean inclusiveMax = options.isInclusiveEnd();
-        if (options.isDescending()) {
-            Object min = minKey;
-            minKey = maxKey;
-            maxKey = min;
-            inclusiveMin = inclusiveMax;
-            inclusiveMax = true;
-            minKeyDocId = options.getEndKeyDocId();
-            maxKeyDocId = options.getStartKeyDocId();
+    private static boolean isFinite(double number) {
+        return !Double.isNaN(number) && !Double.isInfinite(number);
+    }
+
+    // pragma mark - REDUCING IN STORAGE:
+
+    /**
+     * Can a reduced query with these options be answered by SQL aggregates or from the reduce
+     * index, rather than by reducing the rows it reads? Only if it covers whole groups.
+     */
+    private static boolean canReduceInStorage(QueryOptions options) {
+        return (options.getKeys() == null || options.getKeys().size() == 0)
+                && options.getStartKeyDocId() == null
+                && options.getEndKeyDocId() == null
+                && options.getSkip() == 0
+                && options.getLimit() == QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT;
+    }
+
+    private static List<QueryRow> applyPostFilter(List<QueryRow> rows,
+                                                  Predicate<QueryRow> postFilter) {
+        if (postFilter == null)
+            return rows;
+        List<QueryRow> filtered = new ArrayList<QueryRow>(rows.size());
+        for (QueryRow row : rows) {
+            if (postFilter.apply(row))
+                filtered.add(row);
         }
+        return filtered;
+    }
 
-        if (minKey != null) {
-            String minKeyJSON = toJSONString(minKey);
-            sql.append(inclusiveMin ? " AND key >= ?" : " AND key > ?");
-            sql.append(collationStr);
-            argsList.add(minKeyJSON);
-            if (minKeyDocId != null && inclusiveMin) {
-                //OPT: This calls the JSON collator a 2nd time unnecessarily.
-                sql.append(String.format(Locale.ENGLISH, " AND (key > ? %s OR docid >= ?)", collationStr));
-                argsList.add(minKeyJSON);
-                argsList.add(minKeyDocId);
+    /**
+     * The range of keys a query covers, in ascending order.
+     */
+    private static class KeyRange {
+        final Object minKey;
+        final Object maxKey;
+        final boolean inclusiveMin;
+        final boolean inclusiveMax;
+
+        KeyRange(QueryOptions options) {
+            Object minKey = options.getStartKey();
+            Object maxKey = options.getEndKey();
+            boolean inclusiveMin = options.isInclusiveStart();
+            boolean inclusiveMax = options.isInclusiveEnd();
+            if (options.isDescending()) {
+                Object min = minKey;
+                minKey = maxKey;
+                maxKey = min;
+                inclusiveMin = inclusiveMax;
+                inclusiveMax = options.isInclusiveStart();
             }
+            if (maxKey != null)
+                maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            this.inclusiveMin = inclusiveMin;
+            this.inclusiveMax = inclusiveMax;
         }
 
-        if (maxKey != null) {
-            maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
-            String maxKeyJSON = toJSONString(maxKey);
-            sql.append(inclusiveMax ? " AND key <= ?" : " AND key < ?");
-            sql.append(collationStr);
-            argsList.add(maxKeyJSON);
-            if (maxKeyDocId != null && inclusiveMax) {
-                sql.append(String.format(Locale.ENGLISH, " AND (key < ? %s OR docid <= ?)", collationStr));
-                argsList.add(maxKeyJSON);
-                argsList.add(maxKeyDocId);
+        /**
+         * Returns the range of sort keys of the keys in the range.
+         */
+        SortKeyRange toSortKeyRange(View.TDViewCollation collation) {
+            return new SortKeyRange(
+                    minKey != null ? CollatableKey.encode(minKey, collation) : null, inclusiveMin,
+                    maxKey != null ? CollatableKey.encode(maxKey, collation) : null, inclusiveMax);
+        }
+
+        /**
+         * Returns SQL conditions restricting sort_key to the range.
+         */
+        String toSQL(View.TDViewCollation collation) {
+            return toSortKeyRange(collation).toSQL();
+        }
+    }
+
+    // Map values are JSON, so a number is one that starts with a digit or minus sign:
+    private static final String NUMERIC_VALUE =
+            "(CASE WHEN value GLOB '[-0-9]*' THEN CAST(value AS REAL) END)";
+
+    /**
+     * Returns the SQL aggregates that evaluate a built-in reducer, after a COUNT(*) column.
+     */
+    private static String aggregateSQL(BuiltInReducer reduce) {
+        if (reduce == BuiltInReducer.COUNT)
+            return "COUNT(*)";
+        else if (reduce == BuiltInReducer.SUM)
+            return "COUNT(*), TOTAL(" + NUMERIC_VALUE + ")";
+        else
+            return "COUNT(*), TOTAL(" + NUMERIC_VALUE + "), COUNT(" + NUMERIC_VALUE + "), " +
+                    "MIN(" + NUMERIC_VALUE + "), MAX(" + NUMERIC_VALUE + "), " +
+                    "TOTAL(" + NUMERIC_VALUE + " * " + NUMERIC_VALUE + ")";
+    }
+
+    /**
+     * Returns the reduced value from the columns selected by aggregateSQL, starting at column 1.
+     */
+    private static Object aggregateValue(BuiltInReducer reduce, Cursor cursor) {
+        Aggregate aggregate = new Aggregate(reduce);
+        aggregate.add(cursor);
+        return aggregate.value();
+    }
+
+    /**
+     * Combines the columns selected by aggregateSQL from several rows, e.g. one per key of a
+     * group, into the reduced value of all of them.
+     */
+    private static class Aggregate {
+        private final BuiltInReducer reduce;
+        private long count;
+        private double total;
+        private long numericCount;
+        private Double min;
+        private Double max;
+        private double totalSquares;
+
+        Aggregate(BuiltInReducer reduce) {
+            this.reduce = reduce;
+        }
+
+        void add(Cursor cursor) {
+            count += cursor.getLong(1);
+            if (reduce == BuiltInReducer.COUNT)
+                return;
+            total += Double.parseDouble(cursor.getString(2));
+            if (reduce == BuiltInReducer.SUM)
+                return;
+            numericCount += cursor.getLong(3);
+            if (!cursor.isNull(4)) {
+                double value = Double.parseDouble(cursor.getString(4));
+                min = min == null ? value : Math.min(min, value);
             }
+            if (!cursor.isNull(5)) {
+                double value = Double.parseDouble(cursor.getString(5));
+                max = max == null ? value : Math.max(max, value);
+            }
+            totalSquares += Double.parseDouble(cursor.getString(6));
         }
 
-        sql.append(String.format(Locale.ENGLISH,
-                " AND revs.sequence = 'maps_%s'.sequence AND docs.doc_id = revs.doc_id ORDER BY key",
-                mapTableName()));
-        sql.append(collationStr);
-        if (options.isDescending()) {
-            sql.append(" DESC");
+        Object value() {
+            if (reduce == BuiltInReducer.COUNT)
+                return count;
+            else if (reduce == BuiltInReducer.SUM)
+                return total;
+            else
+                return BuiltInReducer.makeStats(total, numericCount, min, max, totalSquares);
         }
-        sql.append(options.isDescending() ? ", docid DESC" : ", docid");
+    }
 
-        sql.append(" LIMIT ? OFFSET ?");
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
+    /**
+     * Runs a reduced query whose reducer is built in, aggregating the map rows in SQL so that
+     * only one row per group is read.
+     */
+    private List<QueryRow> reducedQueryInSQL(QueryOptions options, BuiltInReducer reduce)
+            throws CouchbaseLiteException {
+        String range = new KeyRange(options).toSQL(collation);
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || groupLevel > 0;
+        String select = "SELECT key, " + aggregateSQL(reduce) + " FROM 'maps_#' WHERE 1" + range;
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        try {
+            if (!group) {
+                addAggregateRows(queryString(select), reduce, false, groupLevel, rows);
+            } else if (groupLevel == 0) {
+                addAggregateRows(queryString(select + " GROUP BY sort_key ORDER BY sort_key"),
+                        reduce, true, groupLevel, rows);
+            } else {
+                // Groups at a group level aren't runs of equal sort keys, but each one is a range
+                // of them: aggregate each key in order, and combine the keys of each group.
+                addGroupAggregateRows(queryString(select + " GROUP BY sort_key ORDER BY sort_key"),
+                        reduce, groupLevel, rows);
+            }
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        }
 
-        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql.toString(), argsList);
+        if (options.isDescending())
+            Collections.reverse(rows);
+        return rows;
+    }
 
-        Status status = new Status(Status.OK);
+    private void addAggregateRows(String sql, BuiltInReducer reduce, boolean group,
+                                  int groupLevel, List<QueryRow> rows) {
         Cursor cursor = null;
         try {
-            cursor = store.getStorageEngine().rawQuery(sql.toString(),
-                    argsList.toArray(new String[argsList.size()]));
-            // regular query
-            cursor.moveToNext();
-            while (!cursor.isAfterLast()) {
-                // Call the block!
-                byte[] keyData = cursor.getBlob(0);
-                byte[] valueData = cursor.getBlob(1);
-                String docID = cursor.getString(2);
-                status = block.onRow(keyData, valueData, docID, cursor);
-                if (status.isError())
-                    break;
-                else if (status.getCode() <= 0) {
-                    status = new Status(Status.OK);
-                    break;
-                }
-                cursor.moveToNext();
+            cursor = store.getStorageEngine().rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                // Without GROUP BY, there's a row even if there was nothing to aggregate:
+                if (cursor.getLong(1) == 0)
+                    continue;
+                Object key = group ?
+                        groupKey(new JsonDocument(cursor.getBlob(0)).jsonObject(), groupLevel) :
+                        null;
+                rows.add(new QueryRow(null, 0, key, aggregateValue(reduce, cursor), null));
             }
         } finally {
             if (cursor != null)
                 cursor.close();
         }
-        return status;
     }
 
-    private static String toJSONString(Object object) {
-        if (object == null) {
-            return null;
-        }
-        String result = null;
+    /**
+     * Adds a row per group at a group level > 0, combining the aggregates of the group's keys,
+     * which the query returns in sort_key order.
+     */
+    private void addGroupAggregateRows(String sql, BuiltInReducer reduce, int groupLevel,
+                                       List<QueryRow> rows) {
+        Cursor cursor = null;
         try {
-            result = Manager.getObjectMapper().writeValueAsString(object);
-        } catch (Exception e) {
-            Log.w(Log.TAG_VIEW, "Exception serializing object to json: %s", e, object);
+            cursor = store.getStorageEngine().rawQuery(sql, null);
+            Object lastGroup = null;
+            byte[] lastGroupSortKey = null;
+            Aggregate aggregate = null;
+            while (cursor.moveToNext()) {
+                Object group = groupKey(new JsonDocument(cursor.getBlob(0)).jsonObject(),
+                        groupLevel);
+                byte[] groupSortKey = CollatableKey.encode(group, collation);
+                if (!Arrays.equals(groupSortKey, lastGroupSortKey)) {
+                    if (aggregate != null)
+                        rows.add(new QueryRow(null, 0, lastGroup, aggregate.value(), null));
+                    lastGroup = group;
+                    lastGroupSortKey = groupSortKey;
+                    aggregate = new Aggregate(reduce);
+                }
+                aggregate.add(cursor);
+            }
+            if (aggregate != null)
+                rows.add(new QueryRow(null, 0, lastGroup, aggregate.value(), null));
+        } finally {
+            if (cursor != null)
+                cursor.close();
         }
-        return result;
     }
 
-    private void updateTotalRows(int totalRows) {
-        ContentValues values = new ContentValues();
-        values.put("total_docs=", totalRows);
-        store.getStorageEngine().update("views", values, "view_id=?",
-                new String[]{String.valueOf(getViewID())});
+    // pragma mark - REDUCE INDEX:
+
+    // The 'reduce_#' table stores partial reductions of the view's map rows, for views whose
+    // reduce block supports rereduce (see ViewStoreDelegate.isIncrementalReduce):
+    // - level 0 has a row for each distinct key, reducing the map rows with that key;
+    // - levels -1 to -TREE_HEIGHT are a tree of range partials over level 0, shaped like a
+    //   skip list: a key whose sort key hashes to height h starts a block at levels -1 to -h,
+    //   and the level -n block starting at it rereduces the rows of level -(n-1) (level 0 for
+    //   n = 1) from its sort key up to the start of the next level -n block. Each tree level
+    //   also has a block starting at the empty sort key, for the keys before its first one.
+    //   Blocks have 2^TREE_FANOUT_BITS rows on average, so a key range is reduced from the
+    //   O(log n) blocks it contains, descending only into the blocks at its two ends. Block
+    //   values are JSON arrays holding the block's reduction, or empty for an empty block;
+    // - level n > 0 has a row for each group at group level n, reduced from the tree.
+    // Level 0 and the tree are built together by the first query that needs them, and level n
+    // by the first query grouped at that level; a row with an empty sort_key and a null key
+    // marks a level as built (in the tree, that's the block of the keys before the first one).
+    // After that the indexer updates the partials of the keys whose map rows it changes, in its
+    // own transaction: their level 0 rows, and the blocks and groups containing them.
+    // Map rows deleted along with their revisions (purged or pruned) bypass the indexer, so a
+    // trigger sets their level 0 partials' value to null and flags the level 0 marker; they're
+    // updated by the indexer's next chunk or the next query, whichever comes first.
+    // Queries only write to the index when a level they need is missing or a purge is flagged,
+    // and read it in a read transaction.
+
+    private static final byte[] LEVEL_MARKER = new byte[0];
+    private static final int TREE_FANOUT_BITS = 4;
+    private static final int TREE_HEIGHT = 6;
+
+    /**
+     * Runs a reduced query from the reduce index, bringing the levels it needs up to date first.
+     */
+    private List<QueryRow> reducedQueryFromIndex(QueryOptions options, Reducer reduce)
+            throws CouchbaseLiteException {
+        KeyRange keyRange = new KeyRange(options);
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || groupLevel > 0;
+
+        Set<Integer> neededLevels = new HashSet<Integer>();
+        neededLevels.add(0);
+        neededLevels.add(-1);
+        neededLevels.add(-TREE_HEIGHT);
+        if (groupLevel > 0)
+            neededLevels.add(groupLevel);
+
+        // Another thread may purge or reset the index between the update and the read, in which
+        // case it's updated again:
+        List<QueryRow> rows = null;
+        while (rows == null) {
+            if (!isReduceIndexCurrent(neededLevels))
+                updateReduceIndex(neededLevels, reduce);
+            boolean inReadTransaction = store.beginReadTransaction();
+            try {
+                if (isReduceIndexCurrent(neededLevels))
+                    rows = readReducedRows(keyRange, group, groupLevel, reduce);
+            } catch (SQLException e) {
+                throw new CouchbaseLiteException(e, Status.DB_ERROR);
+            } finally {
+                if (inReadTransaction)
+                    store.endReadTransaction();
+            }
+        }
+
+        if (options.isDescending())
+            Collections.reverse(rows);
+        return rows;
     }
 
-    private String mapTableName() {
-        if (_mapTableName == null) {
-            _mapTableName = String.valueOf(getViewID());
+    /**
+     * Reads the rows of a reduced query from the reduce index, without writing to it.
+     */
+    private List<QueryRow> readReducedRows(KeyRange keyRange, boolean group, int groupLevel,
+                                           Reducer reduce) throws CouchbaseLiteException {
+        Object minKey = keyRange.minKey;
+        Object maxKey = keyRange.maxKey;
+        SortKeyRange range = keyRange.toSortKeyRange(collation);
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        if (!group) {
+            Reduction reduction = new Reduction(reduce);
+            int partialCount = reduceRange(range, reduction);
+            Log.v(TAG, "Reduced view %s from %d stored partials", name, partialCount);
+            if (!reduction.isEmpty())
+                rows.add(new QueryRow(null, 0, null, reduction.result(), null));
+        } else if (groupLevel == 0) {
+            addPartialRows(0, range.toSQL(), rows);
+        } else {
+            // The groups the ends of the range fall into may be partly outside it, so they're
+            // reduced from the tree. The groups in between are entirely inside it, and come from
+            // the level's own partials.
+            Object minGroup = minKey != null ? groupKey(minKey, groupLevel) : null;
+            Object maxGroup = maxKey != null ? groupKey(maxKey, groupLevel) : null;
+            byte[] minGroupSortKey = minGroup != null ?
+                    CollatableKey.encode(minGroup, collation) : null;
+            byte[] maxGroupSortKey = maxGroup != null ?
+                    CollatableKey.encode(maxGroup, collation) : null;
+            if (minGroup != null)
+                addBoundaryGroupRow(minGroup, groupLevel, range, reduce, rows);
+            addPartialRows(groupLevel,
+                    sortKeyRangeSQL(minGroupSortKey, false, maxGroupSortKey, false), rows);
+            if (maxGroup != null && !Arrays.equals(minGroupSortKey, maxGroupSortKey))
+                addBoundaryGroupRow(maxGroup, groupLevel, range, reduce, rows);
         }
-        return _mapTableName;
+        return rows;
+    }
+
+    /**
+     * Returns true if the reduce index has all the given levels and no purged keys to update.
+     */
+    private boolean isReduceIndexCurrent(Set<Integer> levels) {
+        String[] args = {queryString("reduce_#"), queryString("maps_#_purges")};
+        if (SQLiteUtils.intForQuery(store.getStorageEngine(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE name IN (?,?)", args) < 2)
+            return false;
+        for (int level : levels) {
+            if (!hasReduceIndexLevel(level))
+                return false;
+        }
+        return !hasPurgedKeys();
+    }
+
+    /**
+     * Brings the reduce index up to date for a query, in a write transaction: builds the given
+     * levels if they're missing, and updates the partials of keys whose map rows were purged.
+     */
+    private void updateReduceIndex(Set<Integer> neededLevels, Reducer reduce)
+            throws CouchbaseLiteException {
+        if (!store.beginTransaction())
+            throw new CouchbaseLiteException("Error in beginTransaction()", Status.DB_ERROR);
+        boolean success = false;
+        try {
+            createReduceIndex();
+            Set<Integer> levels = getReduceIndexLevels();
+            if (hasReduceIndexBase(levels)) {
+                refreshReducePartials(levels, new HashSet<String>(), reduce);
+            } else {
+                // The other levels are reduced from level 0 and the tree, so they're rebuilt:
+                store.getStorageEngine().execSQL(queryString("DELETE FROM 'reduce_#'"));
+                buildReduceLevel0(reduce);
+                buildReduceTree(reduce);
+                levels = getReduceIndexLevels();
+            }
+            for (int level : neededLevels) {
+                if (level > 0 && !levels.contains(level))
+                    buildReduceLevel(level, reduce);
+            }
+            success = true;
+        } catch (SQLException e) {
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            if (!store.endTransaction(success))
+                throw new CouchbaseLiteException("Error in endTransaction()", Status.DB_ERROR);
+        }
+    }
+
+    private void createReduceIndex() {
+        store.runStatements(queryString("CREATE TABLE IF NOT EXISTS 'reduce_#' (" +
+                "group_level INTEGER NOT NULL," +
+                "sort_key BLOB NOT NULL," +
+                "key TEXT," +
+                "value TEXT," +
+                "PRIMARY KEY (group_level, sort_key))"));
+        // Map rows deleted along with their revisions (when they're purged or pruned) mark their
+        // key's level 0 partial out of date and flag the level 0 marker. (This replaces the
+        // triggers of earlier versions of the index, which dropped partials instead.)
+        store.getStorageEngine().execSQL(queryString("DROP TRIGGER IF EXISTS 'maps_#_purged'"));
+        store.getStorageEngine().execSQL(
+                queryString("DROP TRIGGER IF EXISTS 'maps_#_purged_keys'"));
+        store.getStorageEngine().execSQL(queryString(
+                "CREATE TRIGGER IF NOT EXISTS 'maps_#_purges' AFTER DELETE ON 'maps_#' " +
+                        "WHEN NOT EXISTS (SELECT 1 FROM revs WHERE sequence=OLD.sequence) BEGIN " +
+                        "UPDATE 'reduce_#' SET value=NULL " +
+                        "WHERE group_level=0 AND sort_key=OLD.sort_key; " +
+                        "UPDATE 'reduce_#' SET value='purged' " +
+                        "WHERE group_level=0 AND sort_key=X''; " +
+                        "END"));
+    }
+
+    /**
+     * Returns the levels of the reduce index that have been built; none if there's no index.
+     */
+    private Set<Integer> getReduceIndexLevels() {
+        Set<Integer> levels = new HashSet<Integer>();
+        String[] args = {queryString("reduce_#")};
+        if (SQLiteUtils.intForQuery(store.getStorageEngine(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", args) == 0)
+            return levels;
+        // Step through the distinct levels with the primary key index, not a table scan:
+        Cursor cursor = null;
+        try {
+            String sql = queryString("SELECT MIN(group_level) FROM 'reduce_#' WHERE group_level>?");
+            long level = Long.MIN_VALUE;
+            while (true) {
+                cursor = store.getStorageEngine().rawQuery(sql, new String[]{Long.toString(level)});
+                if (!cursor.moveToNext() || cursor.isNull(0))
+                    break;
+                level = cursor.getLong(0);
+                cursor.close();
+                cursor = null;
+                if (hasReduceIndexLevel((int) level))
+                    levels.add((int) level);
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return levels;
+    }
+
+    private boolean hasReduceIndexLevel(int level) {
+        return SQLiteUtils.intForQuery(store.getStorageEngine(), queryString(
+                "SELECT COUNT(*) FROM 'reduce_#' WHERE group_level=" + level +
+                        " AND sort_key=X'' AND key IS NULL"), null) > 0;
+    }
+
+    /**
+     * Returns true if level 0 and the tree, which the other levels are reduced from, are built.
+     */
+    private static boolean hasReduceIndexBase(Set<Integer> levels) {
+        return levels.contains(0) && levels.contains(-1) && levels.contains(-TREE_HEIGHT);
+    }
+
+    /**
+     * Returns true if the purge trigger has marked level 0 partials out of date.
+     */
+    private boolean hasPurgedKeys() {
+        return SQLiteUtils.intForQuery(store.getStorageEngine(), queryString(
+                "SELECT COUNT(*) FROM 'reduce_#' WHERE group_level=0 AND sort_key=X'' " +
+                        "AND value NOT NULL"), null) > 0;
+    }
+
+    /**
+     * Adds the keys (as JSON) of the map rows matching a WHERE clause to a set.
+     */
+    private void addMapKeys(String where, String[] args, Set<String> keys) {
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(
+                    queryString("SELECT key FROM 'maps_#' WHERE ") + where, args);
+            while (cursor.moveToNext())
+                keys.add(cursor.getString(0));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    /**
+     * Updates the partials of the keys (as JSON) whose map rows the indexer changed. Called by
+     * the indexer in its write transaction, with the levels that were built before it started.
+     */
+    private void updateReducePartials(Set<Integer> levels, Set<String> keys)
+            throws CouchbaseLiteException {
+        if (levels.isEmpty())
+            return;
+        Reducer reduce = delegate.isIncrementalReduce() ? delegate.getReduce() : null;
+        if (reduce == null || !hasReduceIndexBase(levels)) {
+            // The partials can't be updated without the reduce block (or the tree, in an index
+            // built by an earlier version), so drop them all; the next query rebuilds them:
+            store.getStorageEngine().delete(queryString("reduce_#"), null, null);
+            return;
+        }
+        refreshReducePartials(levels, keys, reduce);
+    }
+
+    /**
+     * Updates the partials of the given keys (as JSON), and of the keys whose map rows were
+     * purged, at every built level: level 0 first, then the tree bottom-up, then the groups.
+     */
+    private void refreshReducePartials(Set<Integer> levels, Set<String> keys, Reducer reduce)
+            throws CouchbaseLiteException {
+        if (hasPurgedKeys()) {
+            addPurgedKeys(keys);
+            writePartial(0, LEVEL_MARKER, null, null);
+        }
+        if (keys.isEmpty())
+            return;
+
+        // Different JSON may encode to the same sort key (e.g. 1 and 1.0), so dedupe by sort key:
+        Map<String, Object> keysBySortKey = new HashMap<String, Object>();
+        Map<String, byte[]> sortKeys = new HashMap<String, byte[]>();
+        for (String keyJson : keys) {
+            Object key;
+            try {
+                key = Manager.getObjectMapper().readValue(keyJson, Object.class);
+            } catch (IOException e) {
+                throw new CouchbaseLiteException(e, Status.CORRUPT_ERROR);
+            }
+            byte[] sortKey = CollatableKey.encode(key, collation);
+            String literal = CollatableKey.toSQLLiteral(sortKey);
+            keysBySortKey.put(literal, key);
+            sortKeys.put(literal, sortKey);
+        }
+
+        for (byte[] sortKey : sortKeys.values())
+            refreshKeyPartial(sortKey, reduce);
+        updateReduceTree(sortKeys.values(), reduce);
+
+        Map<String, Object> groups = new HashMap<String, Object>();
+        for (int level : levels) {
+            if (level <= 0)
+                continue;
+            groups.clear();
+            for (Object key : keysBySortKey.values()) {
+                Object group = groupKey(key, level);
+                groups.put(CollatableKey.toSQLLiteral(CollatableKey.encode(group, collation)),
+                        group);
+            }
+            for (Object group : groups.values())
+                refreshGroupPartial(level, group, reduce);
+        }
+    }
+
+    /**
+     * Adds the keys (as JSON) of the level 0 partials the purge trigger marked out of date.
+     */
+    private void addPurgedKeys(Set<String> keys) {
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(queryString(
+                    "SELECT key FROM 'reduce_#' WHERE group_level=0 AND key NOT NULL " +
+                            "AND value IS NULL"), null);
+            while (cursor.moveToNext())
+                keys.add(cursor.getString(0));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    /**
+     * Builds level 0 of the reduce index, reducing the map rows of each key.
+     */
+    private void buildReduceLevel0(Reducer reduce) {
+        store.getStorageEngine().execSQL(queryString("DELETE FROM 'reduce_#' WHERE group_level=0"));
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(
+                    queryString("SELECT sort_key, key, value FROM 'maps_#' ORDER BY sort_key"), null);
+            byte[] lastSortKey = null;
+            String lastKeyJson = null;
+            Reduction reduction = null;
+            while (cursor.moveToNext()) {
+                byte[] sortKey = cursor.getBlob(0);
+                if (!Arrays.equals(sortKey, lastSortKey)) {
+                    if (reduction != null)
+                        writePartial(0, lastSortKey, lastKeyJson, reduction.result());
+                    lastSortKey = sortKey;
+                    lastKeyJson = cursor.getString(1);
+                    reduction = new Reduction(reduce);
+                }
+                reduction.addRow(new JsonDocument(cursor.getBlob(1)).jsonObject(),
+                        new JsonDocument(cursor.getBlob(2)).jsonObject());
+            }
+            if (reduction != null)
+                writePartial(0, lastSortKey, lastKeyJson, reduction.result());
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        writePartial(0, LEVEL_MARKER, null, null);
+    }
+
+    /**
+     * Builds the tree levels of the reduce index, bottom-up, from level 0.
+     */
+    private void buildReduceTree(Reducer reduce) throws CouchbaseLiteException {
+        for (int height = 1; height <= TREE_HEIGHT; height++) {
+            store.getStorageEngine().execSQL(queryString(
+                    "DELETE FROM 'reduce_#' WHERE group_level=" + (-height)));
+            Cursor cursor = null;
+            try {
+                cursor = store.getStorageEngine().rawQuery(
+                        treeRowsSQL(height - 1, null, null), null);
+                byte[] blockStart = LEVEL_MARKER;
+                Reduction reduction = new Reduction(reduce);
+                while (cursor.moveToNext()) {
+                    byte[] sortKey = cursor.getBlob(0);
+                    if (sortKey.length > 0 && treeHeight(sortKey) >= height) {
+                        writeTreeBlock(height, blockStart, reduction);
+                        blockStart = sortKey;
+                        reduction = new Reduction(reduce);
+                    }
+                    addTreeRowPartials(height - 1, cursor.getBlob(1), reduction);
+                }
+                writeTreeBlock(height, blockStart, reduction);
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Builds a level > 0 of the reduce index, rereducing the level 0 partials of each group.
+     */
+    private void buildReduceLevel(int groupLevel, Reducer reduce) throws CouchbaseLiteException {
+        store.getStorageEngine().execSQL(queryString(
+                "DELETE FROM 'reduce_#' WHERE group_level=" + groupLevel));
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(queryString(
+                    "SELECT key, value FROM 'reduce_#' WHERE group_level=0 AND key NOT NULL " +
+                            "ORDER BY sort_key"), null);
+            Object lastGroup = null;
+            byte[] lastGroupSortKey = null;
+            Reduction reduction = null;
+            while (cursor.moveToNext()) {
+                Object group = groupKey(new JsonDocument(cursor.getBlob(0)).jsonObject(),
+                        groupLevel);
+                byte[] groupSortKey = CollatableKey.encode(group, collation);
+                if (!Arrays.equals(groupSortKey, lastGroupSortKey)) {
+                    if (reduction != null)
+                        writeGroupPartial(groupLevel, lastGroup, reduction);
+                    lastGroup = group;
+                    lastGroupSortKey = groupSortKey;
+                    reduction = new Reduction(reduce);
+                }
+                reduction.addPartial(new JsonDocument(cursor.getBlob(1)).jsonObject());
+            }
+            if (reduction != null)
+                writeGroupPartial(groupLevel, lastGroup, reduction);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        writePartial(groupLevel, LEVEL_MARKER, null, null);
+    }
+
+    /**
+     * Updates the tree after the level 0 partials of the given sort keys changed, bottom-up: at
+     * each level, adds or removes the blocks the keys start, then recomputes the blocks that
+     * contain them and the blocks before the ones added or removed.
+     */
+    private void updateReduceTree(Collection<byte[]> sortKeys, Reducer reduce)
+            throws CouchbaseLiteException {
+        for (int height = 1; height <= TREE_HEIGHT; height++) {
+            for (byte[] sortKey : sortKeys) {
+                if (treeHeight(sortKey) < height)
+                    continue;
+                if (hasKeyPartial(sortKey))
+                    writeTreeBlock(height, sortKey, new Reduction(reduce));
+                else
+                    deletePartial(-height, sortKey);
+            }
+            Map<String, byte[]> blockStarts = new HashMap<String, byte[]>();
+            for (byte[] sortKey : sortKeys) {
+                addTreeBlockStart(height, sortKey, true, blockStarts);
+                if (treeHeight(sortKey) >= height)
+                    addTreeBlockStart(height, sortKey, false, blockStarts);
+            }
+            for (byte[] blockStart : blockStarts.values())
+                refreshTreeBlock(height, blockStart, reduce);
+        }
+    }
+
+    /**
+     * Adds the start of the block at a tree level that contains a sort key (inclusive) or the
+     * keys before it (not inclusive) to a map.
+     */
+    private void addTreeBlockStart(int height, byte[] sortKey, boolean inclusive,
+                                   Map<String, byte[]> blockStarts) {
+        byte[] blockStart = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
+                queryString("SELECT sort_key FROM 'reduce_#' WHERE group_level=" + (-height) +
+                        (inclusive ? " AND sort_key <= " : " AND sort_key < ") +
+                        CollatableKey.toSQLLiteral(sortKey) +
+                        " ORDER BY sort_key DESC LIMIT 1"), null);
+        if (blockStart != null)
+            blockStarts.put(CollatableKey.toSQLLiteral(blockStart), blockStart);
+    }
+
+    /**
+     * Recomputes a block at a tree level from the rows of the level below that it contains.
+     */
+    private void refreshTreeBlock(int height, byte[] blockStart, Reducer reduce) {
+        byte[] blockEnd = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
+                queryString("SELECT sort_key FROM 'reduce_#' WHERE group_level=" + (-height) +
+                        " AND sort_key > " + CollatableKey.toSQLLiteral(blockStart) +
+                        " ORDER BY sort_key LIMIT 1"), null);
+        Reduction reduction = new Reduction(reduce);
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(
+                    treeRowsSQL(height - 1, blockStart, blockEnd), null);
+            while (cursor.moveToNext())
+                addTreeRowPartials(height - 1, cursor.getBlob(1), reduction);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        writeTreeBlock(height, blockStart, reduction);
+    }
+
+    /**
+     * Adds the reduction of the keys in a range of sort keys to a Reduction, from the tree.
+     * Returns the number of stored partials it was reduced from.
+     */
+    private int reduceRange(SortKeyRange range, Reduction reduction) {
+        return reduceTreeRange(TREE_HEIGHT, null, null, range, reduction);
+    }
+
+    /**
+     * Adds the reduction of the keys in a range to a Reduction, from the rows of a tree level
+     * (or level 0, at height 0) from start to end. Blocks inside the range are added whole, and
+     * blocks partly inside it are descended into. Returns the number of partials added.
+     */
+    private int reduceTreeRange(int height, byte[] start, byte[] end, SortKeyRange range,
+                                Reduction reduction) {
+        List<byte[]> blockStarts = new ArrayList<byte[]>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(treeRowsSQL(height, start, end), null);
+            while (cursor.moveToNext()) {
+                blockStarts.add(cursor.getBlob(0));
+                values.add(cursor.getBlob(1));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        int partialCount = 0;
+        for (int i = 0; i < blockStarts.size(); i++) {
+            byte[] blockStart = blockStarts.get(i);
+            byte[] blockEnd = i + 1 < blockStarts.size() ? blockStarts.get(i + 1) : end;
+            if (height == 0 ? range.contains(blockStart) :
+                    range.containsAll(blockStart, blockEnd)) {
+                addTreeRowPartials(height, values.get(i), reduction);
+                partialCount++;
+            } else if (height > 0 && range.overlaps(blockStart, blockEnd)) {
+                partialCount += reduceTreeRange(height - 1, blockStart, blockEnd, range,
+                        reduction);
+            }
+        }
+        return partialCount;
+    }
+
+    /**
+     * Returns the query for the sort keys and values of the rows of a tree level (or level 0,
+     * at height 0) from start (inclusive) to end (exclusive), in order; null bounds are open.
+     */
+    private String treeRowsSQL(int height, byte[] start, byte[] end) {
+        return queryString("SELECT sort_key, value FROM 'reduce_#' WHERE group_level=" +
+                (-height) + (height == 0 ? " AND key NOT NULL" : "") +
+                sortKeyRangeSQL(start, true, end, false) + " ORDER BY sort_key");
+    }
+
+    private static void addTreeRowPartials(int height, byte[] value, Reduction reduction) {
+        Object partial = new JsonDocument(value).jsonObject();
+        if (height == 0) {
+            reduction.addPartial(partial);
+        } else if (partial instanceof List) {
+            for (Object blockPartial : (List<?>) partial)
+                reduction.addPartial(blockPartial);
+        }
+    }
+
+    private void writeTreeBlock(int height, byte[] blockStart, Reduction reduction) {
+        List<Object> partials = new ArrayList<Object>(1);
+        if (!reduction.isEmpty())
+            partials.add(reduction.result());
+        writePartial(-height, blockStart, null, partials);
+    }
+
+    /**
+     * Returns the number of tree levels at which a key starts a block. Each level takes another
+     * TREE_FANOUT_BITS zero bits of the hash of the key's sort key, so that one key in
+     * 2^TREE_FANOUT_BITS starts a block at each level, whatever order the keys are added in.
+     */
+    private static int treeHeight(byte[] sortKey) {
+        int hash = 0x811C9DC5; // FNV-1a
+        for (byte b : sortKey) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        // MurmurHash3's finalizer, so that the low bits depend on every byte:
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        int mask = (1 << TREE_FANOUT_BITS) - 1;
+        int height = 0;
+        while (height < TREE_HEIGHT && (hash & mask) == 0) {
+            height++;
+            hash >>>= TREE_FANOUT_BITS;
+        }
+        return height;
+    }
+
+    /**
+     * Adds the row of a group at one end of the query's key range, reduced from the tree over
+     * the part of the group inside the range.
+     */
+    private void addBoundaryGroupRow(Object group, int groupLevel, SortKeyRange range,
+                                     Reducer reduce, List<QueryRow> rows) {
+        Reduction reduction = new Reduction(reduce);
+        reduceRange(range.intersect(groupRange(group, groupLevel)), reduction);
+        if (!reduction.isEmpty())
+            rows.add(new QueryRow(null, 0, group, reduction.result(), null));
+    }
+
+    /**
+     * Adds the partials of a level in a range of sort keys to the query results.
+     */
+    private void addPartialRows(int groupLevel, String range, List<QueryRow> rows) {
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(queryString(
+                    "SELECT key, value FROM 'reduce_#' WHERE group_level=" + groupLevel +
+                            " AND key NOT NULL" + range + " ORDER BY sort_key"), null);
+            while (cursor.moveToNext())
+                rows.add(new QueryRow(null, 0,
+                        new JsonDocument(cursor.getBlob(0)),
+                        new JsonDocument(cursor.getBlob(1)),
+                        null));
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private boolean hasKeyPartial(byte[] sortKey) {
+        return SQLiteUtils.intForQuery(store.getStorageEngine(), queryString(
+                "SELECT COUNT(*) FROM 'reduce_#' WHERE group_level=0 AND sort_key=" +
+                        CollatableKey.toSQLLiteral(sortKey)), null) > 0;
+    }
+
+    /**
+     * Recomputes the level 0 partial of a key from the map rows, deleting it if the key no longer
+     * has any.
+     */
+    private void refreshKeyPartial(byte[] sortKey, Reducer reduce) {
+        Cursor cursor = null;
+        Reduction reduction = new Reduction(reduce);
+        String keyJson = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(queryString(
+                    "SELECT key, value FROM 'maps_#' WHERE sort_key=" +
+                            CollatableKey.toSQLLiteral(sortKey)), null);
+            while (cursor.moveToNext()) {
+                if (keyJson == null)
+                    keyJson = cursor.getString(0);
+                reduction.addRow(new JsonDocument(cursor.getBlob(0)).jsonObject(),
+                        new JsonDocument(cursor.getBlob(1)).jsonObject());
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (reduction.isEmpty())
+            deletePartial(0, sortKey);
+        else
+            writePartial(0, sortKey, keyJson, reduction.result());
+    }
+
+    /**
+     * Recomputes the partial of a group at a level > 0 from the tree, deleting it if the group
+     * no longer has any rows.
+     */
+    private void refreshGroupPartial(int groupLevel, Object group, Reducer reduce) {
+        Reduction reduction = new Reduction(reduce);
+        reduceRange(groupRange(group, groupLevel), reduction);
+        if (reduction.isEmpty())
+            deletePartial(groupLevel, CollatableKey.encode(group, collation));
+        else
+            writeGroupPartial(groupLevel, group, reduction);
+    }
+
+    private void writeGroupPartial(int groupLevel, Object group, Reduction reduction) {
+        writePartial(groupLevel, CollatableKey.encode(group, collation), toJSONString(group),
+                reduction.result());
+    }
+
+    private void writePartial(int groupLevel, byte[] sortKey, String keyJson, Object value) {
+        Statement statement = store.getStorageEngine().getStatement(queryString(
+                "INSERT OR REPLACE INTO 'reduce_#' (group_level, sort_key, key, value) " +
+                        "VALUES (?,?,?,?)"));
+        statement.bindLong(1, groupLevel);
+        statement.bindBlob(2, sortKey);
+        if (keyJson != null)
+            statement.bindString(3, keyJson);
+        else
+            statement.bindNull(3);
+        // A null value marks a partial as out of date, so a null reduction is stored as 'null':
+        if (keyJson != null || groupLevel < 0)
+            statement.bindString(4, value != null ? toJSONString(value) : "null");
+        else
+            statement.bindNull(4);
+        statement.execute();
+    }
+
+    private void deletePartial(int groupLevel, byte[] sortKey) {
+        Statement statement = store.getStorageEngine().getStatement(queryString(
+                "DELETE FROM 'reduce_#' WHERE group_level=? AND sort_key=?"));
+        statement.bindLong(1, groupLevel);
+        statement.bindBlob(2, sortKey);
+        statement.execute();
+    }
+
+    /**
+     * Returns the range of sort keys of the rows of a group at a group level. A group that's an
+     * array of groupLevel items contains every key starting with those items; any other group
+     * contains only itself.
+     */
+    private SortKeyRange groupRange(Object group, int groupLevel) {
+        byte[] prefix = groupPrefix(group, groupLevel);
+        if (prefix == null) {
+            byte[] sortKey = CollatableKey.encode(group, collation);
+            return new SortKeyRange(sortKey, true, sortKey, true);
+        }
+        return new SortKeyRange(prefix, true, CollatableKey.successor(prefix), false);
+    }
+
+    /**
+     * Returns the sort key prefix of the keys in a group that's an array of groupLevel items:
+     * the group's sort key minus the array terminator. Returns null for any other group, which
+     * contains only itself.
+     */
+    private byte[] groupPrefix(Object group, int groupLevel) {
+        if (!(group instanceof List) || ((List<?>) group).size() != groupLevel)
+            return null;
+        byte[] sortKey = CollatableKey.encode(group, collation);
+        return Arrays.copyOf(sortKey, sortKey.length - 1);
+    }
+
+    /**
+     * Returns SQL conditions restricting sort_key to a range; null bounds are open.
+     */
+    private static String sortKeyRangeSQL(byte[] min, boolean inclusiveMin,
+                                          byte[] max, boolean inclusiveMax) {
+        StringBuilder sql = new StringBuilder();
+        if (min != null)
+            sql.append(inclusiveMin ? " AND sort_key >= " : " AND sort_key > ")
+                    .append(CollatableKey.toSQLLiteral(min));
+        if (max != null)
+            sql.append(inclusiveMax ? " AND sort_key <= " : " AND sort_key < ")
+                    .append(CollatableKey.toSQLLiteral(max));
+        return sql.toString();
+    }
+
+    /**
+     * A range of sort keys; null bounds are open.
+     */
+    private static class SortKeyRange {
+        final byte[] min;
+        final boolean inclusiveMin;
+        final byte[] max;
+        final boolean inclusiveMax;
+
+        SortKeyRange(byte[] min, boolean inclusiveMin, byte[] max, boolean inclusiveMax) {
+            this.min = min;
+            this.inclusiveMin = inclusiveMin;
+            this.max = max;
+            this.inclusiveMax = inclusiveMax;
+        }
+
+        boolean contains(byte[] sortKey) {
+            return isAboveMin(sortKey) && isBelowMax(sortKey);
+        }
+
+        /**
+         * Whether every sort key from start (inclusive) to end (exclusive; null if unbounded)
+         * is in the range.
+         */
+        boolean containsAll(byte[] start, byte[] end) {
+            return isAboveMin(start) &&
+                    (max == null || (end != null && CollatableKey.compare(end, max) <= 0));
+        }
+
+        /**
+         * Whether any sort key from start (inclusive) to end (exclusive; null if unbounded)
+         * may be in the range.
+         */
+        boolean overlaps(byte[] start, byte[] end) {
+            return isBelowMax(start) &&
+                    (min == null || end == null || CollatableKey.compare(end, min) > 0);
+        }
+
+        SortKeyRange intersect(SortKeyRange other) {
+            byte[] newMin = min;
+            boolean newInclusiveMin = inclusiveMin;
+            if (other.min != null) {
+                int cmp = min == null ? -1 : CollatableKey.compare(min, other.min);
+                if (cmp < 0 || (cmp == 0 && !other.inclusiveMin)) {
+                    newMin = other.min;
+                    newInclusiveMin = other.inclusiveMin;
+                }
+            }
+            byte[] newMax = max;
+            boolean newInclusiveMax = inclusiveMax;
+            if (other.max != null) {
+                int cmp = max == null ? 1 : CollatableKey.compare(max, other.max);
+                if (cmp > 0 || (cmp == 0 && !other.inclusiveMax)) {
+                    newMax = other.max;
+                    newInclusiveMax = other.inclusiveMax;
+                }
+            }
+            return new SortKeyRange(newMin, newInclusiveMin, newMax, newInclusiveMax);
+        }
+
+        String toSQL() {
+            return sortKeyRangeSQL(min, inclusiveMin, max, inclusiveMax);
+        }
+
+        private boolean isAboveMin(byte[] sortKey) {
+            if (min == null)
+                return true;
+            int cmp = CollatableKey.compare(sortKey, min);
+            return cmp > 0 || (cmp == 0 && inclusiveMin);
+        }
+
+        private boolean isBelowMax(byte[] sortKey) {
+            if (max == null)
+                return true;
+            int cmp = CollatableKey.compare(sortKey, max);
+            return cmp < 0 || (cmp == 0 && inclusiveMax);
+        }
+    }
+
+    /**
+     * Reduces map rows and/or rereduces partial reductions, REDUCE_BATCH_SIZE values at a time.
+     */
+    private static class Reduction {
+        private final Reducer reduce;
+        private final List<Object> keys = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        private final List<Object> values = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        private final List<Object> partials = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+
+        Reduction(Reducer reduce) {
+            this.reduce = reduce;
+        }
+
+        boolean isEmpty() {
+            return keys.isEmpty() && partials.isEmpty();
+        }
+
+        void addRow(Object key, Object value) {
+            keys.add(key);
+            values.add(value);
+            if (keys.size() >= REDUCE_BATCH_SIZE)
+                reduceRows();
+        }
+
+        void addPartial(Object partial) {
+            partials.add(partial);
+            if (partials.size() >= REDUCE_BATCH_SIZE) {
+                Object rereduced = reduce.reduce(null, new ArrayList<Object>(partials), true);
+                partials.clear();
+                partials.add(rereduced);
+            }
+        }
+
+        Object result() {
+            if (!keys.isEmpty()) {
+                if (partials.isEmpty())
+                    return reduce.reduce(keys, values, false);
+                reduceRows();
+            }
+            if (partials.size() == 1)
+                return partials.get(0);
+            return reduce.reduce(null, partials, true);
+        }
+
+        private void reduceRows() {
+            Object reduced = reduce.reduce(new ArrayList<Object>(keys),
+                    new ArrayList<Object>(values), false);
+            keys.clear();
+            values.clear();
+            addPartial(reduced);
+        }
+    }
+
+    private static String toJSONString(Object object) {
+        if (object == null) {
+            return null;
+        }
+        String result = null;
+        try {
+            result = Manager.getObjectMapper().writeValueAsString(object);
+        } catch (Exception e) {
+            Log.w(Log.TAG_VIEW, "Exception serializing object to json: %s", e, object);
+        }
+        return result;
+    }
+
+    // pragma mark - QUERYING:
+
+    /**
+     * Generates and runs the SQL SELECT statement for a view query, calling the onRow callback.
+     * in CBL_SQLiteViewStorage.m
+     * - (CBLStatus) _runQueryWithOptions: (const CBLQueryOptions*)options onRow: (QueryRowBlock)onRow
+     */
+    private Status runQuery(QueryOptions options, QueryRowBlock block) {
+        Status status = new Status(Status.OK);
+        Cursor cursor = null;
+        try {
+            cursor = openQueryCursor(options);
+            // regular query
+            cursor.moveToNext();
+            while (!cursor.isAfterLast()) {
+                // Call the block!
+                byte[] keyData = cursor.getBlob(0);
+                byte[] valueData = cursor.getBlob(1);
+                String docID = cursor.getString(2);
+                status = block.onRow(keyData, valueData, docID, cursor);
+                if (status.isError())
+                    break;
+                else if (status.getCode() <= 0) {
+                    status = new Status(Status.OK);
+                    break;
+                }
+                cursor.moveToNext();
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return status;
+    }
+
+    /**
+     * Generates and runs the SQL SELECT statement for a view query. The result columns are key,
+     * value, docid, sequence and the index row's rowid, followed by revid and json if the options
+     * include docs.
+     */
+    private Cursor openQueryCursor(QueryOptions options) {
+        return openQueryCursor(options, null);
+    }
+
+    /**
+     * Like openQueryCursor(options), but if docIDs is non-null only reads the rows emitted by
+     * those documents.
+     */
+    private Cursor openQueryCursor(QueryOptions options, Set<String> docIDs) {
+        if (options == null)
+            options = new QueryOptions();
+
+        // Keys are compared by their sort keys, which collate with memcmp, so they're passed as
+        // blob literals rather than bound as (string) arguments.
+        StringBuilder sql = new StringBuilder("SELECT key, value, docid, revs.sequence");
+        sql.append(String.format(Locale.ENGLISH, ", 'maps_%s'.rowid", mapTableName()));
+        if (options.isIncludeDocs()) {
+            sql.append(", revid, json");
+        }
+        sql.append(String.format(Locale.ENGLISH, " FROM 'maps_%s', revs, docs", mapTableName()));
+        sql.append(" WHERE 1");
+
+        List<String> argsList = new ArrayList<String>();
+
+        if (docIDs != null) {
+            sql.append(" AND docid IN (").append(TextUtils.joinQuoted(new ArrayList<String>(docIDs))).append(')');
+        }
+
+        if (options.getKeys() != null && options.getKeys().size() > 0) {
+            sql.append(" AND sort_key in (");
+            String item = "";
+            for (Object key : options.getKeys()) {
+                // null key should be ignored
+                if (key != null) {
+                    sql.append(item).append(sortKeyLiteral(key));
+                    item = ", ";
+                }
+            }
+            sql.append(')');
+        }
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        String minKeyDocId = options.getStartKeyDocId();
+        String maxKeyDocId = options.getEndKeyDocId();
+        long minKeyRowId = options.getStartKeyRowId();
+        long maxKeyRowId = 0;
+
+        boolean inclusiveMin = options.isInclusiveStart();
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            Object min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = options.isInclusiveStart();
+            minKeyDocId = options.getEndKeyDocId();
+            maxKeyDocId = options.getStartKeyDocId();
+            minKeyRowId = 0;
+            maxKeyRowId = options.getStartKeyRowId();
+        }
+
+        // With a doc ID, the range bound is the (key, doc ID) pair, so the rows of that key are
+        // selected by doc ID; and with a row ID too (from a continuation token) it's the
+        // (key, doc ID, rowid) triple, which tells apart the rows a document emitted with the same
+        // key. This is also what makes seeking to a continuation token cheap.
+        if (minKey != null) {
+            String minSortKey = sortKeyLiteral(minKey);
+            if (minKeyDocId != null) {
+                sql.append(" AND sort_key >= ").append(minSortKey);
+                sql.append(String.format(Locale.ENGLISH, " AND (sort_key > %s OR %s)",
+                        minSortKey, docIdBound(">", inclusiveMin, minKeyRowId)));
+                argsList.add(minKeyDocId);
+                if (minKeyRowId > 0)
+                    argsList.add(minKeyDocId);
+            } else {
+                sql.append(inclusiveMin ? " AND sort_key >= " : " AND sort_key > ");
+                sql.append(minSortKey);
+            }
+        }
+
+        if (maxKey != null) {
+            maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
+            String maxSortKey = sortKeyLiteral(maxKey);
+            if (maxKeyDocId != null) {
+                sql.append(" AND sort_key <= ").append(maxSortKey);
+                sql.append(String.format(Locale.ENGLISH, " AND (sort_key < %s OR %s)",
+                        maxSortKey, docIdBound("<", inclusiveMax, maxKeyRowId)));
+                argsList.add(maxKeyDocId);
+                if (maxKeyRowId > 0)
+                    argsList.add(maxKeyDocId);
+            } else {
+                sql.append(inclusiveMax ? " AND sort_key <= " : " AND sort_key < ");
+                sql.append(maxSortKey);
+            }
+        }
+
+        sql.append(String.format(Locale.ENGLISH,
+                " AND revs.sequence = 'maps_%s'.sequence AND docs.doc_id = revs.doc_id ORDER BY sort_key",
+                mapTableName()));
+        if (options.isDescending()) {
+            sql.append(" DESC");
+        }
+        sql.append(options.isDescending() ? ", docid DESC" : ", docid");
+        sql.append(String.format(Locale.ENGLISH, ", 'maps_%s'.rowid", mapTableName()));
+        if (options.isDescending())
+            sql.append(" DESC");
+
+        sql.append(" LIMIT ? OFFSET ?");
+        argsList.add(Integer.toString(options.getLimit()));
+        argsList.add(Integer.toString(options.getSkip()));
+
+        Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql.toString(), argsList);
+
+        return store.getStorageEngine().rawQuery(sql.toString(),
+                argsList.toArray(new String[argsList.size()]));
+    }
+
+    /**
+     * Returns the SQL condition for the rows of a range bound's key that are within the bound,
+     * given the comparison (">" or "<") and its doc ID, which is bound as the argument(s), and
+     * rowid (0 if none).
+     */
+    private String docIdBound(String comparison, boolean inclusive, long rowId) {
+        String inclusiveComparison = comparison + (inclusive ? "=" : "");
+        if (rowId <= 0)
+            return "docid " + inclusiveComparison + " ?";
+        return String.format(Locale.ENGLISH, "docid %s ? OR (docid = ? AND 'maps_%s'.rowid %s %d)",
+                comparison, mapTableName(), inclusiveComparison, rowId);
+    }
+
+    /**
+     * Returns the sort key of a key, in this view's collation, as an SQL blob literal.
+     */
+    private String sortKeyLiteral(Object key) {
+        return CollatableKey.toSQLLiteral(CollatableKey.encode(key, collation));
+    }
+
+    private void updateTotalRows(int totalRows) {
+        ContentValues values = new ContentValues();
+        values.put("total_docs=", totalRows);
+        store.getStorageEngine().update("views", values, "view_id=?",
+                new String[]{String.valueOf(getViewID())});
+    }
+
+    private String mapTableName() {
+        if (_mapTableName == null) {
+            _mapTableName = String.valueOf(getViewID());
+        }
+        return _mapTableName;
+    }
+
+    // Keys and values are bound as UTF-8 blobs, and cast to be stored as text:
+    private static final String INSERT_MAP_ROW_VALUES = "(?,CAST(? AS TEXT),?,CAST(? AS TEXT))";
+
+    private String insertMapSQL() {
+        if (_insertMapSQL == null)
+            _insertMapSQL = queryString(
+                    "INSERT INTO 'maps_#' (sequence, key, sort_key, value) VALUES " +
+                            INSERT_MAP_ROW_VALUES);
+        return _insertMapSQL;
+    }
+
+    private String insertMapBatchSQL() {
+        if (_insertMapBatchSQL == null) {
+            StringBuilder sql = new StringBuilder(
+                    "INSERT INTO 'maps_#' (sequence, key, sort_key, value) VALUES ");
+            for (int i = 0; i < MAP_INSERT_BATCH_SIZE; i++) {
+                if (i > 0)
+                    sql.append(',');
+                sql.append(INSERT_MAP_ROW_VALUES);
+            }
+            _insertMapBatchSQL = queryString(sql.toString());
+        }
+        return _insertMapBatchSQL;
     }
 
     /**
@@ -1092,7 +3175,8 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     private void createIndex() {
         String sql = "CREATE TABLE IF NOT EXISTS 'maps_#' (" +
                 "sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE," +
-                "key TEXT NOT NULL COLLATE JSON," +
+                "key TEXT NOT NULL," +
+                "sort_key BLOB NOT NULL DEFAULT X''," + // older releases don't set it
                 "value TEXT)";
         if (!runStatements(sql))
             Log.w(TAG, "Couldn't create view _index `%s`", name);
@@ -1148,7 +3232,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
      * - (void) finishCreatingIndex
      */
     private void finishCreatingIndex() {
-        String sql = "CREATE INDEX IF NOT EXISTS 'maps_#_keys' on 'maps_#'(key COLLATE JSON);"
+        String sql = "CREATE INDEX IF NOT EXISTS 'maps_#_keys' on 'maps_#'(sort_key);"
                 + "CREATE INDEX IF NOT EXISTS 'maps_#_sequence' ON 'maps_#'(sequence)";
         if (!runStatements(sql))
             Log.w(TAG, "Couldn't create view SQL index `%s`", name);
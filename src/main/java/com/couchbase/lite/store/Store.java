@@ -222,6 +222,12 @@ public interface Store {
     //List<QueryRow> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
     Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Iterates over all documents in the database, according to the given query options, reading
+     * them lazily. The iterator must be read to the end or closed, to release its cursor.
+     */
+    QueryRowIterator getAllDocsIterator(QueryOptions options) throws CouchbaseLiteException;
+
     /**
      * Returns all database changes with sequences greater than `lastSequence`.
      *
@@ -292,6 +298,24 @@ public interface Store {
                      URL source)
             throws CouchbaseLiteException;
 
+    /**
+     * Inserts a batch of already-existing revisions, each as with forceInsert, in a single
+     * transaction. A revision that fails to insert doesn't stop the rest of the batch.
+     *
+     * @param inRevs          The revisions to insert. Their revIDs will be non-nil.
+     * @param histories       The revision history of each revision, in the same order as inRevs.
+     * @param validationBlock If non-nil, this block will be called before each revision is added.
+     * @param source          The URL of the remote database these were pulled from, or nil.
+     * @return The status of each insertion, in the same order as inRevs: 201 for a created
+     * revision, 200 if it already existed, or an error status.
+     * @throws CouchbaseLiteException if the transaction fails.
+     */
+    List<Status> forceInsertBatch(List<RevisionInternal> inRevs,
+                                  List<List<String>> histories,
+                                  StorageValidation validationBlock,
+                                  URL source)
+            throws CouchbaseLiteException;
+
     /**
      * Purges specific revisions, which deletes them completely from the local database
      * _without_ adding a "tombstone" revision. It's as though they were never there.
@@ -17,6 +17,7 @@ import com.couchbase.lite.*;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Storage for a view. Instances are created by Storage implementations,
@@ -85,11 +86,24 @@ public interface ViewStore {
      */
     List<QueryRow> regularQuery(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Queries the view without performing any reducing or grouping, reading the rows lazily.
+     * The iterator must be read to the end or closed, to release the underlying cursor.
+     */
+    QueryRowIterator regularQueryIterator(QueryOptions options) throws CouchbaseLiteException;
+
     /**
      * Queries the view, with reducing or grouping as per the options.
      */
     List<QueryRow> reducedQuery(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Brings the result of a regular query up to date after the given documents changed, or
+     * returns null if it can't be done without rerunning the query.
+     */
+    List<QueryRow> updateRegularQuery(QueryOptions options, List<QueryRow> previousRows,
+                                      Set<String> changedDocIDs) throws CouchbaseLiteException;
+
     /**
      * Methods for debugging
      */
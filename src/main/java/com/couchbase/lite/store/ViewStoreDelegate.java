@@ -40,4 +40,10 @@ public interface ViewStoreDelegate {
      * The document "type" property values this view is filtered to (nil if none.)
      */
     String getDocumentType();
+
+    /**
+     * Whether reduced queries may use stored partial reductions. If true, the reduce block
+     * supports rereduce.
+     */
+    boolean isIncrementalReduce();
 }
@@ -19,10 +19,16 @@ import com.couchbase.lite.Manager;
 import com.couchbase.lite.Misc;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.Utils;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
@@ -37,6 +43,7 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
     private Database database;
     private Map<String, BlobStoreWriter> attachmentsByName;
     private Map<String, BlobStoreWriter> attachmentsByMd5Digest;
+    private Map<String, BlobStoreWriter> inlineAttachmentsByDigest;
 
     public MultipartDocumentReader(Database database) {
         this.database = database;
@@ -61,14 +68,14 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
                 if (jsonCompressed) {
                     GZIPInputStream gzipStream = new GZIPInputStream(in);
                     try {
-                        document = Manager.getObjectMapper().readValue(gzipStream, Map.class);
+                        document = parseDocument(gzipStream);
                     } finally {
                         gzipStream.close();
                     }
                 }
                 //  plain json
                 else
-                    document = Manager.getObjectMapper().readValue(in, Map.class);
+                    document = parseDocument(in);
             } catch (IOException e) {
                 throw new IllegalStateException("Failed to parse json buffer", e);
             }
@@ -85,6 +92,105 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
         }
     }
 
+    /**
+     * Parses the document JSON with a streaming parser. Inline attachment bodies ("data") are
+     * decoded straight into BlobStoreWriters and replaced by "follows", so the parsed document
+     * never holds them in memory.
+     */
+    private Map<String, Object> parseDocument(InputStream in) throws IOException {
+        ObjectMapper mapper = Manager.getObjectMapper();
+        JsonParser jp = mapper.getFactory().createParser(in);
+        boolean success = false;
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Document is not a JSON object");
+            Map<String, Object> doc = new LinkedHashMap<String, Object>();
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if (key.equals("_attachments") && token == JsonToken.START_OBJECT)
+                    doc.put(key, parseAttachments(jp));
+                else
+                    doc.put(key, mapper.readValue(jp, Object.class));
+            }
+            success = true;
+            return doc;
+        } finally {
+            jp.close();
+            if (!success && inlineAttachmentsByDigest != null) {
+                for (BlobStoreWriter writer : inlineAttachmentsByDigest.values())
+                    writer.cancel();
+                inlineAttachmentsByDigest = null;
+            }
+        }
+    }
+
+    private Map<String, Object> parseAttachments(JsonParser jp) throws IOException {
+        Map<String, Object> attachments = new LinkedHashMap<String, Object>();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String name = jp.getCurrentName();
+            if (jp.nextToken() == JsonToken.START_OBJECT)
+                attachments.put(name, parseAttachment(name, jp));
+            else
+                attachments.put(name, Manager.getObjectMapper().readValue(jp, Object.class));
+        }
+        return attachments;
+    }
+
+    private Map<String, Object> parseAttachment(String name, JsonParser jp) throws IOException {
+        Map<String, Object> attachment = new LinkedHashMap<String, Object>();
+        BlobStoreWriter writer = null;
+        boolean success = false;
+        try {
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if (key.equals("data") && token == JsonToken.VALUE_STRING) {
+                    if (writer != null)
+                        writer.cancel();
+                    writer = database.getAttachmentWriter();
+                    jp.readBinaryValue(new BlobStoreWriterOutputStream(writer));
+                    try {
+                        writer.finish();
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to finish attachment", e);
+                    }
+                } else
+                    attachment.put(key, Manager.getObjectMapper().readValue(jp, Object.class));
+            }
+            if (writer == null) {
+                success = true;
+                return attachment;
+            }
+
+            // Same checks Database applies to inline attachment data:
+            String digest = (String) attachment.get("digest");
+            if (digest == null) {
+                digest = writer.sHA1DigestString();
+                attachment.put("digest", digest);
+            } else if (!digest.equals(writer.sHA1DigestString()) &&
+                    !digest.equals(writer.mD5DigestString())) {
+                String errMsg = String.format(Locale.ENGLISH,
+                        "Attachment '%s' has incorrect digest (%s; should be either %s or %s)",
+                        name, digest, writer.sHA1DigestString(), writer.mD5DigestString());
+                throw new IllegalStateException(errMsg);
+            }
+            attachment.remove("stub");
+            attachment.put("follows", true);
+            if (inlineAttachmentsByDigest == null)
+                inlineAttachmentsByDigest = new HashMap<String, BlobStoreWriter>();
+            BlobStoreWriter previous = inlineAttachmentsByDigest.put(digest, writer);
+            if (previous != null)
+                previous.cancel();  // same data, named twice
+            success = true;
+            return attachment;
+        } finally {
+            // Don't leave the temporary file of a blob that won't be installed behind:
+            if (!success && writer != null)
+                writer.cancel();
+        }
+    }
+
     public void setHeaders(Map<String, String> headers) {
         String contentType = headers.get("Content-Type");
         if (contentType != null && contentType.startsWith("multipart/")) {
@@ -128,6 +234,8 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
             registerAttachments();
         } else
             parseJsonBuffer();
+        if (inlineAttachmentsByDigest != null)
+            database.rememberAttachmentWritersForDigests(inlineAttachmentsByDigest);
     }
 
     private void registerAttachments() {
@@ -145,6 +253,11 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
             if (attachment.containsKey("encoded_length")) {
                 length = ((Number)attachment.get("encoded_length")).intValue();
             }
+            if (inlineAttachmentsByDigest != null &&
+                    inlineAttachmentsByDigest.containsKey(attachment.get("digest"))) {
+                // Its inline data was already decoded into a blob by parseAttachment()
+                continue;
+            }
             if (attachment.containsKey("follows") &&
                     ((Boolean) attachment.get("follows")).booleanValue() == true) {
                 // Check that each attachment in the JSON corresponds to an attachment MIME body.
@@ -261,4 +374,31 @@ public class MultipartDocumentReader implements MultipartReaderDelegate {
             curAttachment = null;
         }
     }
+
+    /**
+     * Lets a JsonParser decode base64 attachment data directly into a BlobStoreWriter.
+     */
+    private static class BlobStoreWriterOutputStream extends OutputStream {
+        private final BlobStoreWriter writer;
+
+        BlobStoreWriterOutputStream(BlobStoreWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                writer.appendData(b, off, len);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to append data", e);
+            }
+        }
+    }
 }
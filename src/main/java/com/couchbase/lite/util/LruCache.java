@@ -16,6 +16,7 @@
 
 package com.couchbase.lite.util;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -210,12 +211,12 @@ public class LruCache<K, V> {
                 }
 
                 // BEGIN LAYOUTLIB CHANGE
-                // get the last item in the linked list.
-                // This is not efficient, the goal here is to minimize the changes
-                // compared to the platform version.
+                // get the eldest item in the linked list. With access ordering
+                // the least recently used entry is the head of the list.
                 Map.Entry<K, V> toEvict = null;
-                for (Map.Entry<K, V> entry : map.entrySet()) {
-                    toEvict = entry;
+                Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+                if (it.hasNext()) {
+                    toEvict = it.next();
                 }
                 // END LAYOUTLIB CHANGE
 